@@ -3,6 +3,12 @@ package org.thoughtcrime.securesms;
 import android.content.Context;
 import android.test.InstrumentationTestCase;
 
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+
+import java.security.SecureRandom;
+
+import javax.crypto.spec.SecretKeySpec;
+
 public class TextSecureTestCase extends InstrumentationTestCase {
 
   @Override
@@ -13,4 +19,15 @@ public class TextSecureTestCase extends InstrumentationTestCase {
   protected Context getContext() {
     return getInstrumentation().getContext();
   }
+
+  protected MasterSecret createMasterSecret() {
+    SecureRandom random        = new SecureRandom();
+    byte[]       encryptionKey = new byte[16];
+    byte[]       macKey        = new byte[20];
+
+    random.nextBytes(encryptionKey);
+    random.nextBytes(macKey);
+
+    return new MasterSecret(new SecretKeySpec(encryptionKey, "AES"), new SecretKeySpec(macKey, "HmacSHA1"));
+  }
 }
@@ -20,6 +20,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
@@ -28,29 +30,41 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 import android.util.Log;
 
 /**
- * A class for streaming an encrypted MMS "part" to disk.
+ * A class for streaming an encrypted MMS "part" to disk in the original
+ * single-stream layout.  Parts are now written chunked, so this only exists
+ * to produce legacy parts for the tests which read and migrate them.
+ *
+ * Plaintext is encrypted a chunk at a time into a pooled buffer, which is
+ * then written out through the file's channel.
  * 
  * @author Moxie Marlinspike
  */
 
 public class EncryptingPartOutputStream extends FileOutputStream {
 
-  private Cipher cipher;
-  private Mac mac;
-  private boolean closed;
+  private final FileChannel channel;
+  private final byte[]      singleByte = new byte[1];
+
+  private Cipher     cipher;
+  private Mac        mac;
+  private ByteBuffer ciphertext;
+  private boolean    closed;
 
   public EncryptingPartOutputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
     super(file);
 
     try {
-      mac    = initializeMac(masterSecret.getMacKey());
-      cipher = initializeCipher(mac, masterSecret.getEncryptionKey());
-      closed = false;
+      channel    = getChannel();
+      mac        = initializeMac(masterSecret.getMacKey());
+      cipher     = initializeCipher(mac, masterSecret.getEncryptionKey());
+      ciphertext = PartBufferPool.acquire();
+      closed     = false;
     } catch (IOException ioe) {
       Log.w("EncryptingPartOutputStream", ioe);
       throw new FileNotFoundException("Couldn't write IV");
@@ -63,6 +77,12 @@ public class EncryptingPartOutputStream extends FileOutputStream {
     }
   }
 
+  @Override
+  public void write(int oneByte) throws IOException {
+    singleByte[0] = (byte)oneByte;
+    this.write(singleByte, 0, 1);
+  }
+
   @Override
   public void write(byte[] buffer) throws IOException {
     this.write(buffer, 0, buffer.length);
@@ -70,11 +90,21 @@ public class EncryptingPartOutputStream extends FileOutputStream {
 
   @Override
   public void write(byte[] buffer, int offset, int length) throws IOException {
-    byte[] encryptedBuffer = cipher.update(buffer, offset, length);
+    if (closed) throw new IOException("Stream closed!");
+
+    try {
+      while (length > 0) {
+        int chunk     = Math.min(length, PartBufferPool.CHUNK_SIZE);
+        int encrypted = cipher.update(buffer, offset, chunk, ciphertext.array(), 0);
+
+        mac.update(ciphertext.array(), 0, encrypted);
+        writeCiphertext(encrypted);
 
-    if (encryptedBuffer != null) {
-      mac.update(encryptedBuffer);
-      super.write(encryptedBuffer, 0, encryptedBuffer.length);
+        offset += chunk;
+        length -= chunk;
+      }
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
     }
   }
 
@@ -82,15 +112,16 @@ public class EncryptingPartOutputStream extends FileOutputStream {
   public void close() throws IOException {
     try {
       if (!closed) {
-        byte[] encryptedRemainder = cipher.doFinal();
-        mac.update(encryptedRemainder);
+        byte[] buffer    = ciphertext.array();
+        int    remainder = cipher.doFinal(buffer, 0);
 
-        byte[] macBytes = mac.doFinal();
+        mac.update(buffer, 0, remainder);
+        mac.doFinal(buffer, remainder);
 
-        super.write(encryptedRemainder, 0, encryptedRemainder.length);
-        super.write(macBytes, 0, macBytes.length);
+        writeCiphertext(remainder + mac.getMacLength());
 
         closed = true;
+        PartBufferPool.release(ciphertext);
       }
 
       super.close();
@@ -98,6 +129,19 @@ public class EncryptingPartOutputStream extends FileOutputStream {
       throw new AssertionError(bpe);
     } catch (IllegalBlockSizeException e) {
       throw new AssertionError(e);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private void writeCiphertext(int length) throws IOException {
+    if (length <= 0) return;
+
+    ciphertext.clear();
+    ciphertext.limit(length);
+
+    while (ciphertext.hasRemaining()) {
+      channel.write(ciphertext);
     }
   }
 
@@ -0,0 +1,92 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MasterCipherTest extends TextSecureTestCase {
+
+  private MasterSecret masterSecret;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    masterSecret = createMasterSecret();
+  }
+
+  public void testBufferRoundTrip() throws Exception {
+    MasterCipher masterCipher = new MasterCipher(masterSecret);
+    byte[]       plaintext    = "the quick brown fox".getBytes();
+    byte[]       ciphertext   = new byte[MasterCipher.getEncryptedLength(plaintext.length) + 8];
+    int          written      = masterCipher.encryptBytes(plaintext, 0, plaintext.length, ciphertext, 8);
+
+    assertThat(written).isEqualTo(MasterCipher.getEncryptedLength(plaintext.length));
+
+    byte[] decrypted = new byte[MasterCipher.getDecryptedMaxLength(written)];
+    int    length    = masterCipher.decryptBytes(ciphertext, 8, written, decrypted, 0);
+
+    assertThat(Arrays.copyOf(decrypted, length)).isEqualTo(plaintext);
+    assertThat(masterCipher.decryptBytes(Arrays.copyOfRange(ciphertext, 8, 8 + written))).isEqualTo(plaintext);
+  }
+
+  public void testBadMacRejected() throws Exception {
+    MasterCipher masterCipher = new MasterCipher(masterSecret);
+    byte[]       ciphertext   = masterCipher.encryptBytes("hello".getBytes());
+
+    ciphertext[ciphertext.length - 1] ^= 0x01;
+
+    try {
+      masterCipher.decryptBytes(ciphertext);
+      throw new AssertionError("accepted a bad MAC");
+    } catch (InvalidMessageException ime) {
+      // success
+    }
+  }
+
+  public void testRoundTripAfterClearContexts() throws Exception {
+    MasterCipher masterCipher = new MasterCipher(masterSecret);
+    String       ciphertext   = masterCipher.encryptBody("hello");
+
+    MasterCipher.clearContexts();
+
+    assertThat(masterCipher.decryptBody(ciphertext)).isEqualTo("hello");
+    assertThat(masterCipher.decryptBody(masterCipher.encryptBody("world"))).isEqualTo("world");
+  }
+
+  public void testSharedAcrossThreads() throws Exception {
+    final MasterCipher    masterCipher = new MasterCipher(masterSecret);
+    final MasterCipher    otherCipher  = new MasterCipher(createMasterSecret());
+    ExecutorService       executor     = Executors.newFixedThreadPool(4);
+    List<Future<Boolean>> results      = new LinkedList<>();
+
+    for (int i=0;i<16;i++) {
+      final String body = "message " + i;
+
+      results.add(executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          for (int j=0;j<100;j++) {
+            if (!body.equals(masterCipher.decryptBody(masterCipher.encryptBody(body)))) return false;
+            if (!body.equals(otherCipher.decryptBody(otherCipher.encryptBody(body))))   return false;
+          }
+          return true;
+        }
+      }));
+    }
+
+    for (Future<Boolean> result : results) {
+      assertThat(result.get()).isTrue();
+    }
+
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,170 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PartStreamTest extends TextSecureTestCase {
+
+  private MasterSecret masterSecret;
+  private File         file;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    masterSecret = createMasterSecret();
+    file         = File.createTempFile("part", ".mms", getInstrumentation().getTargetContext().getCacheDir());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    file.delete();
+    super.tearDown();
+  }
+
+  public void testRoundTripAcrossChunkBoundaries() throws Exception {
+    int[] lengths = {1, 15, 16, 17, PartBufferPool.CHUNK_SIZE - 1, PartBufferPool.CHUNK_SIZE,
+                     PartBufferPool.CHUNK_SIZE + 1, 3 * PartBufferPool.CHUNK_SIZE + 1000};
+
+    for (int length : lengths) {
+      byte[] plaintext = randomBytes(length);
+
+      writePart(plaintext, 7);
+      assertThat(readPart(1000)).isEqualTo(plaintext);
+      assertThat(readPart(PartBufferPool.CHUNK_SIZE * 2)).isEqualTo(plaintext);
+    }
+  }
+
+  public void testSkip() throws Exception {
+    byte[] plaintext = randomBytes(2 * PartBufferPool.CHUNK_SIZE + 123);
+    writePart(plaintext, plaintext.length);
+
+    InputStream in = new DecryptingPartInputStream(file, masterSecret);
+
+    assertThat(in.skip(PartBufferPool.CHUNK_SIZE + 5)).isEqualTo(PartBufferPool.CHUNK_SIZE + 5);
+    assertThat(in.read()).isEqualTo(plaintext[PartBufferPool.CHUNK_SIZE + 5] & 0xff);
+    assertThat(in.skip(plaintext.length)).isEqualTo(plaintext.length - PartBufferPool.CHUNK_SIZE - 6);
+    assertThat(in.read()).isEqualTo(-1);
+
+    in.close();
+  }
+
+  public void testTamperingDetected() throws Exception {
+    writePart(randomBytes(5000), 5000);
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(100);
+    int value = raf.read();
+    raf.seek(100);
+    raf.write(value ^ 0x01);
+    raf.close();
+
+    try {
+      readPart(4096);
+      throw new AssertionError("accepted a tampered part");
+    } catch (IOException e) {
+      // success
+    }
+  }
+
+  public void testChunkedRoundTripAndSeek() throws Exception {
+    byte[] plaintext = randomBytes(3 * ChunkedPart.SEGMENT_SIZE + 1000);
+
+    OutputStream out = new EncryptingChunkedPartOutputStream(file, masterSecret);
+    out.write(plaintext);
+    out.close();
+
+    assertThat(DecryptingChunkedPartChannel.isChunked(file, masterSecret)).isTrue();
+
+    DecryptingChunkedPartChannel channel = new DecryptingChunkedPartChannel(file, masterSecret);
+    byte[]                       buffer  = new byte[1];
+
+    assertThat(channel.size()).isEqualTo(plaintext.length);
+
+    for (int position : new int[] {plaintext.length - 1, 0, 2 * ChunkedPart.SEGMENT_SIZE + 7, ChunkedPart.SEGMENT_SIZE}) {
+      channel.position(position);
+      assertThat(channel.read(buffer, 0, 1)).isEqualTo(1);
+      assertThat(buffer[0]).isEqualTo(plaintext[position]);
+    }
+
+    channel.position(plaintext.length);
+    assertThat(channel.read(buffer, 0, 1)).isEqualTo(-1);
+    channel.close();
+  }
+
+  public void testTamperedChunkedSegmentRejected() throws Exception {
+    byte[] plaintext = randomBytes(3 * ChunkedPart.SEGMENT_SIZE);
+
+    OutputStream out = new EncryptingChunkedPartOutputStream(file, masterSecret);
+    out.write(plaintext);
+    out.close();
+
+    RandomAccessFile raf    = new RandomAccessFile(file, "rw");
+    long             offset = ChunkedPart.getSegmentOffset(1) + ChunkedPart.IV_LENGTH + 100;
+    raf.seek(offset);
+    int value = raf.read();
+    raf.seek(offset);
+    raf.write(value ^ 0x01);
+    raf.close();
+
+    DecryptingChunkedPartChannel channel = new DecryptingChunkedPartChannel(file, masterSecret);
+    byte[]                       buffer  = new byte[1];
+
+    channel.position(2 * ChunkedPart.SEGMENT_SIZE);
+    assertThat(channel.read(buffer, 0, 1)).isEqualTo(1);
+    assertThat(buffer[0]).isEqualTo(plaintext[2 * ChunkedPart.SEGMENT_SIZE]);
+
+    try {
+      channel.position(ChunkedPart.SEGMENT_SIZE + 5);
+      channel.read(buffer, 0, 1);
+      throw new AssertionError("accepted a tampered segment");
+    } catch (IOException e) {
+      // success
+    } finally {
+      channel.close();
+    }
+  }
+
+  public void testLegacyPartNotChunked() throws Exception {
+    writePart(randomBytes(5000), 5000);
+    assertThat(DecryptingChunkedPartChannel.isChunked(file, masterSecret)).isFalse();
+  }
+
+  private void writePart(byte[] plaintext, int writeSize) throws IOException {
+    OutputStream out = new EncryptingPartOutputStream(file, masterSecret);
+
+    for (int offset=0;offset<plaintext.length;offset+=writeSize) {
+      out.write(plaintext, offset, Math.min(writeSize, plaintext.length - offset));
+    }
+
+    out.close();
+  }
+
+  private byte[] readPart(int readSize) throws IOException {
+    InputStream           in     = new DecryptingPartInputStream(file, masterSecret);
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[readSize];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+
+    in.close();
+    return out.toByteArray();
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new SecureRandom().nextBytes(bytes);
+    return bytes;
+  }
+}
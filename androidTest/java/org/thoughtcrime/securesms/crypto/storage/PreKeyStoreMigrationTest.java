@@ -0,0 +1,115 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.content.Context;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.whispersystems.libaxolotl.ecc.Curve;
+import org.whispersystems.libaxolotl.state.PreKeyRecord;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PreKeyStoreMigrationTest extends TextSecureTestCase {
+
+  private static final int MIGRATED_ID   = 16000001;
+  private static final int REMOVED_ID    = 16000002;
+  private static final int STORED_ID     = 16000003;
+  private static final int UNREADABLE_ID = 16000004;
+
+  private Context      context;
+  private MasterSecret masterSecret;
+  private boolean      wasMigrated;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    context      = getInstrumentation().getTargetContext();
+    masterSecret = createMasterSecret();
+    wasMigrated  = TextSecurePreferences.isDatabaseKeyStoreMigrated(context);
+
+    TextSecurePreferences.setDatabaseKeyStoreMigrated(context, false);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    TextSecureDatabaseAxolotlStore databaseStore = new TextSecureDatabaseAxolotlStore(context, masterSecret);
+
+    for (int preKeyId : new int[] {MIGRATED_ID, REMOVED_ID, STORED_ID, UNREADABLE_ID}) {
+      databaseStore.removePreKey(preKeyId);
+      getPreKeyFile(preKeyId).delete();
+    }
+
+    TextSecurePreferences.setDatabaseKeyStoreMigrated(context, wasMigrated);
+    super.tearDown();
+  }
+
+  public void testWritesDuringMigrationReachDatabase() throws Exception {
+    final TextSecurePreKeyStore      fileStore = new TextSecurePreKeyStore(context, masterSecret);
+    final AtomicReference<Throwable> failure   = new AtomicReference<>();
+
+    fileStore.storePreKey(MIGRATED_ID, createPreKey(MIGRATED_ID));
+    fileStore.storePreKey(REMOVED_ID, createPreKey(REMOVED_ID));
+
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          fileStore.storePreKey(STORED_ID, createPreKey(STORED_ID));
+          fileStore.removePreKey(REMOVED_ID);
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }
+    };
+
+    AxolotlStoreFactory.MIGRATION_LOCK.writeLock().lock();
+
+    try {
+      writer.start();
+      writer.join(500);
+
+      assertThat(writer.isAlive()).isTrue();
+
+      AxolotlStoreFactory.migrateToDatabase(context, masterSecret);
+    } finally {
+      AxolotlStoreFactory.MIGRATION_LOCK.writeLock().unlock();
+    }
+
+    writer.join();
+
+    assertThat(failure.get()).isNull();
+
+    TextSecureDatabaseAxolotlStore databaseStore = new TextSecureDatabaseAxolotlStore(context, masterSecret);
+
+    assertThat(databaseStore.containsPreKey(MIGRATED_ID)).isTrue();
+    assertThat(databaseStore.containsPreKey(STORED_ID)).isTrue();
+    assertThat(databaseStore.containsPreKey(REMOVED_ID)).isFalse();
+    assertThat(fileStore.containsPreKey(STORED_ID)).isTrue();
+    assertThat(fileStore.loadPreKey(MIGRATED_ID).getId()).isEqualTo(MIGRATED_ID);
+
+    assertThat(getPreKeyFile(MIGRATED_ID).exists()).isFalse();
+    assertThat(getPreKeyFile(STORED_ID).exists()).isFalse();
+  }
+
+  public void testUnreadablePreKeysStayInPlace() throws Exception {
+    new TextSecurePreKeyStore(context, createMasterSecret()).storePreKey(UNREADABLE_ID, createPreKey(UNREADABLE_ID));
+
+    AxolotlStoreFactory.migrateToDatabase(context, masterSecret);
+
+    assertThat(getPreKeyFile(UNREADABLE_ID).exists()).isTrue();
+    assertThat(new TextSecureDatabaseAxolotlStore(context, masterSecret).containsPreKey(UNREADABLE_ID)).isFalse();
+  }
+
+  private PreKeyRecord createPreKey(int preKeyId) {
+    return new PreKeyRecord(preKeyId, Curve.generateKeyPair());
+  }
+
+  private File getPreKeyFile(int preKeyId) {
+    return new File(new File(context.getFilesDir(), TextSecurePreKeyStore.PREKEY_DIRECTORY), String.valueOf(preKeyId));
+  }
+}
@@ -0,0 +1,105 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SessionIndexTest extends TextSecureTestCase {
+
+  private File directory;
+  private File indexFile;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    directory = new File(getInstrumentation().getTargetContext().getCacheDir(), "session-index-test");
+    indexFile = new File(getInstrumentation().getTargetContext().getCacheDir(), "session-index-test.index");
+
+    deleteAll();
+    assertThat(directory.mkdirs()).isTrue();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    deleteAll();
+    super.tearDown();
+  }
+
+  public void testRebuildsFromDirectory() throws Exception {
+    createSessionFile("1");
+    createSessionFile("1.2");
+    createSessionFile("1.3");
+    createSessionFile("4.5");
+    createSessionFile("not-a-session");
+
+    SessionIndex index = new SessionIndex(directory, indexFile);
+
+    assertThat(index.getSubDevices(1)).containsOnly(2, 3);
+    assertThat(index.getSubDevices(4)).containsOnly(5);
+    assertThat(index.getSubDevices(6)).isEmpty();
+    assertThat(indexFile.exists()).isTrue();
+  }
+
+  public void testReadsExistingIndex() throws Exception {
+    SessionIndex index = new SessionIndex(directory, indexFile);
+    index.add("7.2");
+    index.write();
+
+    createSessionFile("8.3");
+
+    SessionIndex reloaded = new SessionIndex(directory, indexFile);
+
+    assertThat(reloaded.getSubDevices(7)).containsOnly(2);
+    assertThat(reloaded.getSubDevices(8)).isEmpty();
+  }
+
+  public void testAddAndRemovePersist() throws Exception {
+    SessionIndex index = new SessionIndex(directory, indexFile);
+    index.add("1");
+    index.add("1.2");
+    index.add("1.3");
+    index.remove("1.2");
+    index.write();
+
+    SessionIndex reloaded = new SessionIndex(directory, indexFile);
+
+    assertThat(reloaded.getSubDevices(1)).containsOnly(3);
+
+    reloaded.remove("1.3");
+    reloaded.write();
+
+    assertThat(new SessionIndex(directory, indexFile).getSubDevices(1)).isEmpty();
+  }
+
+  public void testRebuildsCorruptIndex() throws Exception {
+    createSessionFile("9.4");
+
+    FileOutputStream out = new FileOutputStream(indexFile);
+    out.write("garbage\n".getBytes());
+    out.close();
+
+    assertThat(new SessionIndex(directory, indexFile).getSubDevices(9)).containsOnly(4);
+  }
+
+  private void createSessionFile(String name) throws IOException {
+    assertThat(new File(directory, name).createNewFile()).isTrue();
+  }
+
+  private void deleteAll() {
+    File[] children = directory.listFiles();
+
+    if (children != null) {
+      for (File child : children) {
+        child.delete();
+      }
+    }
+
+    directory.delete();
+    indexFile.delete();
+  }
+}
@@ -0,0 +1,104 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.content.Context;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.recipients.RecipientFactory;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.whispersystems.libaxolotl.AxolotlAddress;
+import org.whispersystems.libaxolotl.state.SessionRecord;
+
+import java.io.File;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SessionStoreCacheTest extends TextSecureTestCase {
+
+  private static final String NUMBER = "+15555550123";
+
+  private Context        context;
+  private MasterSecret   masterSecret;
+  private AxolotlAddress address;
+  private boolean        wasMigrated;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    context      = getInstrumentation().getTargetContext();
+    masterSecret = createMasterSecret();
+    address      = new AxolotlAddress(NUMBER, 1);
+    wasMigrated  = TextSecurePreferences.isDatabaseKeyStoreMigrated(context);
+
+    TextSecurePreferences.setDatabaseKeyStoreMigrated(context, false);
+    TextSecureSessionStore.reset();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    File sessionFile = getSessionFile();
+
+    if (sessionFile.isDirectory()) sessionFile.delete();
+    else                           new TextSecureSessionStore(context, masterSecret).deleteSession(address);
+
+    TextSecureSessionStore.reset();
+    TextSecurePreferences.setDatabaseKeyStoreMigrated(context, wasMigrated);
+    super.tearDown();
+  }
+
+  public void testStoredSessionSurvivesClearCache() throws Exception {
+    TextSecureSessionStore sessionStore = new TextSecureSessionStore(context, masterSecret);
+
+    sessionStore.storeSession(address, createSession(42));
+
+    assertThat(getSessionFile().exists()).isTrue();
+    assertThat(sessionStore.loadSession(address).getSessionState().getRemoteRegistrationId()).isEqualTo(42);
+
+    TextSecureSessionStore.clearCache();
+
+    assertThat(sessionStore.loadSession(address).getSessionState().getRemoteRegistrationId()).isEqualTo(42);
+  }
+
+  public void testDeletedSessionIsNotServedFromCache() throws Exception {
+    TextSecureSessionStore sessionStore = new TextSecureSessionStore(context, masterSecret);
+
+    sessionStore.storeSession(address, createSession(42));
+    sessionStore.loadSession(address);
+    sessionStore.deleteSession(address);
+
+    assertThat(getSessionFile().exists()).isFalse();
+    assertThat(sessionStore.loadSession(address).getSessionState().getRemoteRegistrationId()).isEqualTo(0);
+  }
+
+  public void testFailedWriteReachesCaller() throws Exception {
+    TextSecureSessionStore sessionStore = new TextSecureSessionStore(context, masterSecret);
+
+    assertThat(getSessionFile().mkdirs()).isTrue();
+
+    boolean thrown = false;
+
+    try {
+      sessionStore.storeSession(address, createSession(42));
+    } catch (AssertionError e) {
+      thrown = true;
+    }
+
+    assertThat(thrown).isTrue();
+    assertThat(sessionStore.loadSession(address).getSessionState().getRemoteRegistrationId()).isEqualTo(0);
+  }
+
+  private SessionRecord createSession(int remoteRegistrationId) {
+    SessionRecord record = new SessionRecord();
+    record.getSessionState().setRemoteRegistrationId(remoteRegistrationId);
+
+    return record;
+  }
+
+  private File getSessionFile() {
+    long recipientId = RecipientFactory.getRecipientsFromString(context, NUMBER, true)
+                                       .getPrimaryRecipient().getRecipientId();
+
+    return new File(new File(context.getFilesDir(), "sessions-v2"), recipientId + "");
+  }
+}
@@ -0,0 +1,100 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.crypto.DecryptingChunkedPartChannel;
+import org.thoughtcrime.securesms.crypto.EncryptingPartOutputStream;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PartMigrationTest extends TextSecureTestCase {
+
+  private Context      context;
+  private MasterSecret masterSecret;
+  private PartDatabase database;
+  private File         legacyFile;
+  private long         partId = -1;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    context      = getInstrumentation().getTargetContext();
+    masterSecret = createMasterSecret();
+    database     = DatabaseFactory.getPartDatabase(context);
+    legacyFile   = File.createTempFile("part", ".mms", context.getDir("parts", Context.MODE_PRIVATE));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    if (partId != -1) {
+      File current = getDataFile();
+
+      if (current != null) current.delete();
+      database.databaseHelper.getWritableDatabase().delete("part", "_id = ?", new String[] {partId + ""});
+    }
+
+    legacyFile.delete();
+    super.tearDown();
+  }
+
+  public void testLegacyPartMigratedOnRead() throws Exception {
+    byte[] plaintext = new byte[3 * 32 * 1024 + 1000];
+    new SecureRandom().nextBytes(plaintext);
+
+    OutputStream out = new EncryptingPartOutputStream(legacyFile, masterSecret);
+    out.write(plaintext);
+    out.close();
+
+    ContentValues values = new ContentValues(2);
+    values.put("mid", -1);
+    values.put("_data", legacyFile.getAbsolutePath());
+
+    partId = database.databaseHelper.getWritableDatabase().insert("part", null, values);
+
+    assertThat(readFully(database.getDataStream(masterSecret, partId, "_data"))).isEqualTo(plaintext);
+
+    File migratedFile = getDataFile();
+
+    assertThat(migratedFile).isNotEqualTo(legacyFile);
+    assertThat(legacyFile.exists()).isFalse();
+    assertThat(DecryptingChunkedPartChannel.isChunked(migratedFile, masterSecret)).isTrue();
+    assertThat(readFully(database.getDataStream(masterSecret, partId, "_data"))).isEqualTo(plaintext);
+  }
+
+  private File getDataFile() {
+    Cursor cursor = database.databaseHelper.getReadableDatabase()
+                                           .query("part", new String[] {"_data"}, "_id = ?",
+                                                  new String[] {partId + ""}, null, null, null);
+
+    try {
+      if (cursor.moveToFirst() && !cursor.isNull(0)) return new File(cursor.getString(0));
+      else                                           return null;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private byte[] readFully(InputStream in) throws Exception {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[4096];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+
+    in.close();
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,53 @@
+package org.thoughtcrime.securesms.database;
+
+import android.test.AndroidTestCase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PlaintextCacheTest extends AndroidTestCase {
+
+  public void testTablesAreDistinct() {
+    PlaintextCache cache = new PlaintextCache(64 * 1024);
+
+    cache.put(PlaintextCache.SMS, 1, "ciphertext", "sms");
+    cache.put(PlaintextCache.MMS, 1, "ciphertext", "mms");
+
+    assertThat(cache.get(PlaintextCache.SMS, 1, "ciphertext")).isEqualTo("sms");
+    assertThat(cache.get(PlaintextCache.MMS, 1, "ciphertext")).isEqualTo("mms");
+    assertThat(cache.getHitCount()).isEqualTo(2);
+  }
+
+  public void testRewrittenCiphertextMisses() {
+    PlaintextCache cache = new PlaintextCache(64 * 1024);
+
+    cache.put(PlaintextCache.SMS, 1, "ciphertextA", "old");
+
+    assertThat(cache.get(PlaintextCache.SMS, 1, "ciphertextB")).isNull();
+    assertThat(cache.getMissCount()).isEqualTo(1);
+
+    cache.remove(PlaintextCache.SMS, 1);
+    assertThat(cache.get(PlaintextCache.SMS, 1, "ciphertextA")).isNull();
+  }
+
+  public void testEvictsToByteBudget() {
+    PlaintextCache cache = new PlaintextCache(16 * 1024);
+
+    for (int i=0;i<1000;i++) {
+      cache.put(PlaintextCache.SMS, i, "ciphertext" + i, "a reasonably long plaintext body " + i);
+    }
+
+    assertThat(cache.getEvictionCount()).isGreaterThan(0);
+    assertThat(cache.get(PlaintextCache.SMS, 999, "ciphertext999")).isNotNull();
+  }
+
+  public void testClear() {
+    PlaintextCache cache = new PlaintextCache(64 * 1024);
+
+    cache.put(PlaintextCache.SMS, 1, "ciphertext", "sms");
+    cache.put(PlaintextCache.MMS, 2, "ciphertext", "mms");
+    cache.clear();
+
+    assertThat(cache.get(PlaintextCache.SMS, 1, "ciphertext")).isNull();
+    assertThat(cache.get(PlaintextCache.MMS, 2, "ciphertext")).isNull();
+  }
+}
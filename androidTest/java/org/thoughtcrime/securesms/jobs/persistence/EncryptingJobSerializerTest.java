@@ -0,0 +1,92 @@
+package org.thoughtcrime.securesms.jobs.persistence;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.crypto.MasterCipher;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.util.ParcelUtil;
+import org.whispersystems.jobqueue.EncryptionKeys;
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.JobParameters;
+import org.whispersystems.jobqueue.persistence.JavaJobSerializer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EncryptingJobSerializerTest extends TextSecureTestCase {
+
+  private MasterSecret   masterSecret;
+  private EncryptionKeys keys;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    masterSecret = createMasterSecret();
+    keys         = new EncryptionKeys(ParcelUtil.serialize(masterSecret));
+
+    EncryptingJobSerializer.clearCache();
+  }
+
+  public void testEncryptedRoundTrip() throws Exception {
+    EncryptingJobSerializer serializer = new EncryptingJobSerializer();
+    String                  serialized = serializer.serialize(new TestJob(keys, "encrypted"));
+
+    assertThat(serialized).startsWith("2:");
+    assertThat(((TestJob)serializer.deserialize(keys, true, serialized)).value).isEqualTo("encrypted");
+  }
+
+  public void testPlaintextRoundTrip() throws Exception {
+    EncryptingJobSerializer serializer = new EncryptingJobSerializer();
+    String                  serialized = serializer.serialize(new TestJob(null, "plaintext"));
+
+    assertThat(serialized).startsWith("2:");
+    assertThat(((TestJob)serializer.deserialize(null, false, serialized)).value).isEqualTo("plaintext");
+  }
+
+  public void testLegacyEncryptedRecord() throws Exception {
+    String legacy = new MasterCipher(masterSecret).encryptBody(new JavaJobSerializer().serialize(new TestJob(keys, "legacy")));
+    Job    job    = new EncryptingJobSerializer().deserialize(keys, true, legacy);
+
+    assertThat(((TestJob)job).value).isEqualTo("legacy");
+  }
+
+  public void testLegacyPlaintextRecord() throws Exception {
+    String legacy = new JavaJobSerializer().serialize(new TestJob(null, "legacy plaintext"));
+    Job    job    = new EncryptingJobSerializer().deserialize(null, false, legacy);
+
+    assertThat(((TestJob)job).value).isEqualTo("legacy plaintext");
+  }
+
+  public void testKeyChange() throws Exception {
+    EncryptingJobSerializer serializer = new EncryptingJobSerializer();
+    EncryptionKeys          otherKeys  = new EncryptionKeys(ParcelUtil.serialize(createMasterSecret()));
+
+    String first  = serializer.serialize(new TestJob(keys, "first"));
+    String second = serializer.serialize(new TestJob(otherKeys, "second"));
+
+    assertThat(((TestJob)serializer.deserialize(keys, true, first)).value).isEqualTo("first");
+    assertThat(((TestJob)serializer.deserialize(otherKeys, true, second)).value).isEqualTo("second");
+  }
+
+  private static class TestJob extends Job {
+    private final String value;
+
+    TestJob(EncryptionKeys keys, String value) {
+      super(keys == null ? JobParameters.newBuilder().withPersistence().create()
+                         : JobParameters.newBuilder().withPersistence().withEncryption(keys).create());
+      this.value = value;
+    }
+
+    @Override
+    public void onAdded() {}
+
+    @Override
+    public void onRun() {}
+
+    @Override
+    public boolean onShouldRetry(Exception exception) {
+      return false;
+    }
+
+    @Override
+    public void onCanceled() {}
+  }
+}
@@ -28,6 +28,7 @@ import org.thoughtcrime.securesms.jobs.persistence.EncryptingJobSerializer;
 import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirementProvider;
 import org.thoughtcrime.securesms.jobs.requirements.ServiceRequirementProvider;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.whispersystems.jobqueue.EncryptionKeys;
 import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.jobqueue.dependencies.DependencyInjector;
 import org.whispersystems.jobqueue.requirements.NetworkRequirementProvider;
@@ -48,7 +49,8 @@ import dagger.ObjectGraph;
  */
 public class ApplicationContext extends Application implements DependencyInjector {
 
-  private JobManager jobManager;
+  private JobManager  jobManager;
+  private JobManager  backgroundJobManager;
   private ObjectGraph objectGraph;
 
   public static ApplicationContext getInstance(Context context) {
@@ -75,6 +77,15 @@ public class ApplicationContext extends Application implements DependencyInjecto
     return jobManager;
   }
 
+  public JobManager getBackgroundJobManager() {
+    return backgroundJobManager;
+  }
+
+  public void setEncryptionKeys(EncryptionKeys keys) {
+    jobManager.setEncryptionKeys(keys);
+    backgroundJobManager.setEncryptionKeys(keys);
+  }
+
   private void initializeRandomNumberFix() {
     PRNGFixes.apply();
   }
@@ -83,16 +94,27 @@ public class ApplicationContext extends Application implements DependencyInjecto
     AxolotlLoggerProvider.setProvider(new AndroidAxolotlLogger());
   }
 
+  /**
+   * Jobs run in two lanes, each with its own queue and consumer threads.  Sends, receives
+   * and decrypts go in the default lane, so a user's send never waits behind background
+   * work like attachment downloads, directory refreshes, pre-key maintenance or thread
+   * trimming, which go in the background lane.
+   */
   private void initializeJobManager() {
-    this.jobManager = JobManager.newBuilder(this)
-                                .withName("TextSecureJobs")
-                                .withDependencyInjector(this)
-                                .withJobSerializer(new EncryptingJobSerializer())
-                                .withRequirementProviders(new MasterSecretRequirementProvider(this),
-                                                          new ServiceRequirementProvider(this),
-                                                          new NetworkRequirementProvider(this))
-                                .withConsumerThreads(5)
-                                .build();
+    this.jobManager           = createJobManager("TextSecureJobs", 4);
+    this.backgroundJobManager = createJobManager("TextSecureBackgroundJobs", 2);
+  }
+
+  private JobManager createJobManager(String name, int consumerThreads) {
+    return JobManager.newBuilder(this)
+                     .withName(name)
+                     .withDependencyInjector(this)
+                     .withJobSerializer(new EncryptingJobSerializer())
+                     .withRequirementProviders(new MasterSecretRequirementProvider(this),
+                                               new ServiceRequirementProvider(this),
+                                               new NetworkRequirementProvider(this))
+                     .withConsumerThreads(consumerThreads)
+                     .build();
   }
 
   private void initializeDependencyInjection() {
@@ -104,7 +126,7 @@ public class ApplicationContext extends Application implements DependencyInjecto
     if (TextSecurePreferences.isPushRegistered(this) &&
         TextSecurePreferences.getGcmRegistrationId(this) == null)
     {
-      this.jobManager.add(new GcmRefreshJob(this));
+      this.backgroundJobManager.add(new GcmRefreshJob(this));
     }
   }
 
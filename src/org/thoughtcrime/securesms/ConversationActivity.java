@@ -897,7 +897,7 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
           draftDatabase.insertDrafts(new MasterCipher(thisMasterSecret), threadId, drafts);
           threadDatabase.updateSnippet(threadId, drafts.getSnippet(ConversationActivity.this), Types.BASE_DRAFT_TYPE);
         } else if (threadId > 0) {
-          threadDatabase.update(threadId);
+          threadDatabase.refresh(threadId);
         }
         return null;
       }
@@ -27,6 +27,7 @@ import android.support.v4.widget.CursorAdapter;
 
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.DecryptingCursor;
 import org.thoughtcrime.securesms.database.MmsSmsColumns;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.SmsDatabase;
@@ -87,6 +88,10 @@ public class ConversationAdapter extends CursorAdapter implements AbsListView.Re
     String type                 = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
     MessageRecord messageRecord = getMessageRecord(id, cursor, type);
 
+    if (cursor instanceof DecryptingCursor) {
+      ((DecryptingCursor)cursor).prefetch(cursor.getPosition());
+    }
+
     item.set(masterSecret, messageRecord, batchSelected, selectionClickListener,
              groupThread, pushDestination);
   }
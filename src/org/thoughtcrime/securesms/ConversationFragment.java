@@ -21,6 +21,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.Toast;
@@ -60,6 +61,7 @@ public class ConversationFragment extends ListFragment
   private Recipients   recipients;
   private long         threadId;
   private ActionMode   actionMode;
+  private boolean      loadingOlder;
 
   @Override
   public void onCreate(Bundle icicle) {
@@ -116,6 +118,7 @@ public class ConversationFragment extends ListFragment
                                                   (!this.recipients.isSingleRecipient()) || this.recipients.isGroupRecipient(),
                                                   DirectoryHelper.isPushDestination(getActivity(), this.recipients)));
       getListView().setRecyclerListener((ConversationAdapter)getListAdapter());
+      this.loadingOlder = false;
       getLoaderManager().restartLoader(0, null, this);
     }
   }
@@ -123,6 +126,7 @@ public class ConversationFragment extends ListFragment
   private void initializeContextualActionBar() {
     getListView().setOnItemClickListener(selectionClickListener);
     getListView().setOnItemLongClickListener(selectionClickListener);
+    getListView().setOnScrollListener(new OlderMessagesScrollListener());
   }
 
   private void setCorrectMenuVisibility(Menu menu) {
@@ -274,12 +278,25 @@ public class ConversationFragment extends ListFragment
 
   @Override
   public Loader<Cursor> onCreateLoader(int arg0, Bundle arg1) {
-    return new ConversationLoader(getActivity(), threadId);
+    return new ConversationLoader(getActivity(), masterSecret, threadId);
   }
 
   @Override
   public void onLoadFinished(Loader<Cursor> arg0, Cursor cursor) {
-    ((CursorAdapter)getListAdapter()).changeCursor(cursor);
+    ListView list = getListView();
+
+    if (loadingOlder && cursor != null && list.getChildCount() > 0) {
+      int added = cursor.getCount() - getListAdapter().getCount();
+      int first = list.getFirstVisiblePosition();
+      int top   = list.getChildAt(0).getTop();
+
+      ((CursorAdapter)getListAdapter()).changeCursor(cursor);
+      list.setSelectionFromTop(first + Math.max(added, 0), top);
+    } else {
+      ((CursorAdapter)getListAdapter()).changeCursor(cursor);
+    }
+
+    loadingOlder = false;
   }
 
   @Override
@@ -287,6 +304,23 @@ public class ConversationFragment extends ListFragment
     ((CursorAdapter)getListAdapter()).changeCursor(null);
   }
 
+  private class OlderMessagesScrollListener implements AbsListView.OnScrollListener {
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {}
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+      if (firstVisibleItem != 0 || totalItemCount == 0 || loadingOlder) return;
+
+      Loader<Cursor> loader = getLoaderManager().getLoader(0);
+
+      if (loader instanceof ConversationLoader && ((ConversationLoader)loader).hasOlder()) {
+        loadingOlder = true;
+        ((ConversationLoader)loader).loadOlder();
+      }
+    }
+  }
+
   public interface ConversationFragmentListener {
     public void setComposeText(String text);
   }
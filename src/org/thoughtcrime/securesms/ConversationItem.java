@@ -486,7 +486,7 @@ public class ConversationItem extends LinearLayout {
       mmsDownloadingLabel.setVisibility(View.VISIBLE);
 
       ApplicationContext.getInstance(context)
-                        .getJobManager()
+                        .getBackgroundJobManager()
                         .add(new MmsDownloadJob(context, messageRecord.getId(),
                                                 messageRecord.getThreadId(), false));
     }
@@ -210,8 +210,9 @@ public class ConversationListActivity extends PassphraseRequiredActionBarActivit
       public void onChange(boolean selfChange) {
         super.onChange(selfChange);
         Log.w("ConversationListActivity", "detected android contact data changed, refreshing cache");
-        // TODO only clear updated recipients from cache
-        RecipientFactory.clearCache();
+
+        if (RecipientFactory.invalidateChangedContacts(ConversationListActivity.this) == 0) return;
+
         ConversationListActivity.this.runOnUiThread(new Runnable() {
             @Override
             public void run() {
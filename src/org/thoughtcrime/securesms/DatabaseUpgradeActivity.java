@@ -89,7 +89,6 @@ public class DatabaseUpgradeActivity extends BaseActivity {
     } else {
       VersionTracker.updateLastSeenVersion(this);
       ApplicationContext.getInstance(this)
-                        .getJobManager()
                         .setEncryptionKeys(new EncryptionKeys(ParcelUtil.serialize(masterSecret)));
 //      DecryptingQueue.schedulePendingDecrypts(DatabaseUpgradeActivity.this, masterSecret);
       MessageNotifier.updateNotification(DatabaseUpgradeActivity.this, masterSecret);
@@ -175,7 +174,7 @@ public class DatabaseUpgradeActivity extends BaseActivity {
 
       if (params[0] < SIGNED_PREKEY_VERSION) {
         ApplicationContext.getInstance(getApplicationContext())
-                          .getJobManager()
+                          .getBackgroundJobManager()
                           .add(new CreateSignedPreKeyJob(context, masterSecret));
       }
 
@@ -234,7 +233,6 @@ public class DatabaseUpgradeActivity extends BaseActivity {
       VersionTracker.updateLastSeenVersion(DatabaseUpgradeActivity.this);
 //      DecryptingQueue.schedulePendingDecrypts(DatabaseUpgradeActivity.this, masterSecret);
       ApplicationContext.getInstance(DatabaseUpgradeActivity.this)
-                        .getJobManager()
                         .setEncryptionKeys(new EncryptionKeys(ParcelUtil.serialize(masterSecret)));
 
       MessageNotifier.updateNotification(DatabaseUpgradeActivity.this, masterSecret);
@@ -25,7 +25,7 @@ import android.widget.Toast;
 import org.thoughtcrime.securesms.crypto.IdentityKeyParcelable;
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
-import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
+import org.thoughtcrime.securesms.crypto.storage.AxolotlStoreFactory;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.whispersystems.libaxolotl.AxolotlAddress;
@@ -168,7 +168,7 @@ public class VerifyIdentityActivity extends KeyScanningActivity {
   }
 
   private IdentityKey getRemoteIdentityKey(MasterSecret masterSecret, Recipient recipient) {
-    SessionStore   sessionStore   = new TextSecureSessionStore(this, masterSecret);
+    SessionStore   sessionStore   = AxolotlStoreFactory.createSessionStore(this, masterSecret);
     AxolotlAddress axolotlAddress = new AxolotlAddress(recipient.getNumber(), TextSecureAddress.DEFAULT_DEVICE_ID);
     SessionRecord  record         = sessionStore.loadSession(axolotlAddress);
 
@@ -7,14 +7,18 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
+import android.util.Log;
 
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.LRUCache;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class ContactPhotoFactory {
@@ -28,6 +32,9 @@ public class ContactPhotoFactory {
   private static final Map<Uri,Bitmap> localUserContactPhotoCache =
       Collections.synchronizedMap(new LRUCache<Uri,Bitmap>(2));
 
+  private static final ContactPhotoCache contactPhotoCache =
+      new ContactPhotoCache((int)Math.min(4 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16));
+
   private static final String[] CONTENT_URI_PROJECTION = new String[] {
     ContactsContract.Contacts._ID,
     ContactsContract.Contacts.DISPLAY_NAME,
@@ -76,6 +83,11 @@ public class ContactPhotoFactory {
 
   public static void clearCache() {
     localUserContactPhotoCache.clear();
+    contactPhotoCache.clear();
+  }
+
+  public static void clearCache(Uri uri) {
+    contactPhotoCache.remove(uri);
   }
 
   public static void clearCache(Recipient recipient) {
@@ -84,12 +96,82 @@ public class ContactPhotoFactory {
   }
 
   public static Bitmap getContactPhoto(Context context, Uri uri) {
+    Bitmap contactPhoto = contactPhotoCache.get(uri);
+
+    if (contactPhoto != null) {
+      return contactPhoto;
+    }
+
     InputStream inputStream = ContactsContract.Contacts.openContactPhotoInputStream(context.getContentResolver(), uri);
 
-    final Bitmap contactPhoto;
-    if (inputStream == null) contactPhoto = ContactPhotoFactory.getDefaultContactPhoto(context);
-    else                     contactPhoto = BitmapFactory.decodeStream(inputStream);
+    if (inputStream == null) {
+      return ContactPhotoFactory.getDefaultContactPhoto(context);
+    }
 
+    try {
+      contactPhoto = BitmapFactory.decodeStream(inputStream);
+    } finally {
+      try {
+        inputStream.close();
+      } catch (IOException e) {
+        Log.w("ContactPhotoFactory", e);
+      }
+    }
+
+    if (contactPhoto == null) {
+      return ContactPhotoFactory.getDefaultContactPhoto(context);
+    }
+
+    contactPhotoCache.put(uri, contactPhoto);
     return contactPhoto;
   }
+
+  /**
+   * An LRU of decoded contact photos, bounded by the memory their pixels occupy
+   * rather than by a number of entries.
+   */
+  private static class ContactPhotoCache {
+    private final LinkedHashMap<Uri, Bitmap> photos = new LinkedHashMap<>(16, 0.75f, true);
+    private final int                        maxSize;
+
+    private int size;
+
+    public ContactPhotoCache(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    public synchronized Bitmap get(Uri uri) {
+      return photos.get(uri);
+    }
+
+    public synchronized void put(Uri uri, Bitmap photo) {
+      Bitmap previous = photos.put(uri, photo);
+
+      if (previous != null) size -= getSize(previous);
+      size += getSize(photo);
+
+      Iterator<Map.Entry<Uri, Bitmap>> iterator = photos.entrySet().iterator();
+
+      while (size > maxSize && iterator.hasNext()) {
+        Bitmap evicted = iterator.next().getValue();
+
+        iterator.remove();
+        size -= getSize(evicted);
+      }
+    }
+
+    public synchronized void remove(Uri uri) {
+      Bitmap removed = photos.remove(uri);
+      if (removed != null) size -= getSize(removed);
+    }
+
+    public synchronized void clear() {
+      photos.clear();
+      size = 0;
+    }
+
+    private static int getSize(Bitmap bitmap) {
+      return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+  }
 }
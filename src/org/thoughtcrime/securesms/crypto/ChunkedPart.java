@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The layout of a part stored as independently authenticated segments, so that
+ * any offset can be reached by decrypting a single segment.
+ *
+ * <pre>
+ * header:  magic (8) | file id (16) | segment size (4) | plaintext length (8) | mac (20)
+ * segment: iv (16) | AES/CBC/PKCS5 ciphertext | mac (20)
+ * </pre>
+ *
+ * The header MAC covers the header.  Each segment's MAC covers the file id, the
+ * segment's index, its IV and its ciphertext, so segments can't be reordered or
+ * spliced in from another part, and the authenticated length rules out truncation.
+ * Every segment but the last holds exactly {@link #SEGMENT_SIZE} bytes of plaintext.
+ */
+class ChunkedPart {
+
+  static final int SEGMENT_SIZE = 32 * 1024;
+
+  static final int    IV_LENGTH      = 16;
+  static final int    MAC_LENGTH     = 20;
+  static final int    FILE_ID_LENGTH = 16;
+  static final byte[] MAGIC          = {'T', 'S', 'P', 'A', 'R', 'T', 0x00, 0x02};
+
+  static final int HEADER_LENGTH         = MAGIC.length + FILE_ID_LENGTH + 4 + 8 + MAC_LENGTH;
+  static final int MAX_SEGMENT_LENGTH    = IV_LENGTH + getCiphertextLength(SEGMENT_SIZE) + MAC_LENGTH;
+
+  static Mac initializeMac(SecretKeySpec key) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA1");
+      mac.init(key);
+
+      return mac;
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static int getCiphertextLength(int plaintextLength) {
+    return (plaintextLength / 16 + 1) * 16;
+  }
+
+  static long getSegmentOffset(long index) {
+    return HEADER_LENGTH + index * MAX_SEGMENT_LENGTH;
+  }
+
+  static int getSegmentPlaintextLength(long length, long index) {
+    return (int)Math.min(SEGMENT_SIZE, length - index * SEGMENT_SIZE);
+  }
+
+  static ByteBuffer createHeader(Mac mac, byte[] fileId, long plaintextLength) {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    header.put(MAGIC);
+    header.put(fileId);
+    header.putInt(SEGMENT_SIZE);
+    header.putLong(plaintextLength);
+
+    mac.update(header.array(), 0, header.position());
+
+    try {
+      mac.doFinal(header.array(), header.position());
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+
+    header.clear();
+    return header;
+  }
+
+  /**
+   * @return the authenticated header of a chunked part, or null if the file is
+   *         in the original single-stream format.
+   */
+  static Header readHeader(FileChannel channel, Mac mac) throws IOException {
+    if (channel.size() < HEADER_LENGTH) return null;
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+
+    while (header.hasRemaining()) {
+      if (channel.read(header, header.position()) == -1) return null;
+    }
+
+    byte[] bytes = header.array();
+
+    if (!Arrays.equals(MAGIC, Arrays.copyOf(bytes, MAGIC.length))) return null;
+
+    mac.update(bytes, 0, HEADER_LENGTH - MAC_LENGTH);
+
+    byte[] ourMac   = mac.doFinal();
+    byte[] theirMac = Arrays.copyOfRange(bytes, HEADER_LENGTH - MAC_LENGTH, HEADER_LENGTH);
+
+    if (!MessageDigest.isEqual(ourMac, theirMac)) return null;
+
+    header.position(MAGIC.length);
+
+    byte[] fileId = new byte[FILE_ID_LENGTH];
+    header.get(fileId);
+
+    int  segmentSize     = header.getInt();
+    long plaintextLength = header.getLong();
+
+    if (segmentSize != SEGMENT_SIZE || plaintextLength < 0)
+      throw new IOException("Unsupported part layout!");
+
+    return new Header(fileId, plaintextLength);
+  }
+
+  static void updateSegmentMac(Mac mac, byte[] fileId, long index) {
+    mac.update(fileId);
+
+    for (int i=7;i>=0;i--) {
+      mac.update((byte)(index >>> (i * 8)));
+    }
+  }
+
+  static class Header {
+    final byte[] fileId;
+    final long   plaintextLength;
+
+    Header(byte[] fileId, long plaintextLength) {
+      this.fileId          = fileId;
+      this.plaintextLength = plaintextLength;
+    }
+  }
+}
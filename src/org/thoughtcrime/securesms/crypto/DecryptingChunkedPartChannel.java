@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.crypto;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A seekable, read-only channel over a part stored in the {@link ChunkedPart} layout.
+ * Moving to a new position costs nothing; reading there decrypts and authenticates
+ * only the segment which contains it.
+ */
+public class DecryptingChunkedPartChannel implements ReadableByteChannel {
+
+  private static final String TAG = DecryptingChunkedPartChannel.class.getSimpleName();
+
+  private final RandomAccessFile file;
+  private final FileChannel      channel;
+  private final SecretKeySpec    encryptionKey;
+  private final Cipher           cipher;
+  private final Mac              mac;
+  private final byte[]           fileId;
+  private final long             length;
+  private final byte[]           ourMac   = new byte[ChunkedPart.MAC_LENGTH];
+  private final byte[]           theirMac = new byte[ChunkedPart.MAC_LENGTH];
+
+  private ByteBuffer segment;
+  private ByteBuffer plaintext;
+  private long       segmentIndex = -1;
+  private long       position;
+
+  /**
+   * @return true if the file is a part stored in the chunked layout, and false if it's
+   *         in the original single-stream layout read by {@link DecryptingPartInputStream}.
+   */
+  public static boolean isChunked(File file, MasterSecret masterSecret) {
+    RandomAccessFile in = null;
+
+    try {
+      in = new RandomAccessFile(file, "r");
+      return ChunkedPart.readHeader(in.getChannel(), ChunkedPart.initializeMac(masterSecret.getMacKey())) != null;
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return false;
+    } finally {
+      try {
+        if (in != null) in.close();
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+    }
+  }
+
+  public DecryptingChunkedPartChannel(File file, MasterSecret masterSecret) throws IOException {
+    this.file          = new RandomAccessFile(file, "r");
+    this.channel       = this.file.getChannel();
+    this.encryptionKey = masterSecret.getEncryptionKey();
+    this.mac           = ChunkedPart.initializeMac(masterSecret.getMacKey());
+
+    try {
+      this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+
+    ChunkedPart.Header header = ChunkedPart.readHeader(channel, mac);
+
+    if (header == null) {
+      this.file.close();
+      throw new FileNotFoundException("Not a chunked part: " + file.getAbsolutePath());
+    }
+
+    this.fileId    = header.fileId;
+    this.length    = header.plaintextLength;
+    this.segment   = PartBufferPool.acquire();
+    this.plaintext = PartBufferPool.acquire();
+  }
+
+  public long size() {
+    return length;
+  }
+
+  public long position() {
+    return position;
+  }
+
+  public DecryptingChunkedPartChannel position(long position) {
+    if (position < 0) throw new IllegalArgumentException("Negative position: " + position);
+
+    this.position = position;
+    return this;
+  }
+
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    if (buffer.hasArray()) {
+      int read = read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+      if (read > 0) buffer.position(buffer.position() + read);
+      return read;
+    }
+
+    int read = loadPosition(buffer.remaining());
+
+    if (read > 0) {
+      buffer.put(plaintext.array(), (int)(position % ChunkedPart.SEGMENT_SIZE), read);
+      position += read;
+    }
+
+    return read;
+  }
+
+  public int read(byte[] buffer, int offset, int count) throws IOException {
+    int read = loadPosition(count);
+
+    if (read > 0) {
+      System.arraycopy(plaintext.array(), (int)(position % ChunkedPart.SEGMENT_SIZE), buffer, offset, read);
+      position += read;
+    }
+
+    return read;
+  }
+
+  /**
+   * Decrypts the segment holding the current position into the plaintext buffer.
+   *
+   * @return The number of bytes, at most count, which can be read from there, or -1 at the end.
+   */
+  private int loadPosition(int count) throws IOException {
+    if (!isOpen())          throw new ClosedChannelException();
+    if (position >= length) return -1;
+    if (count == 0)         return 0;
+
+    long index         = position / ChunkedPart.SEGMENT_SIZE;
+    int  segmentOffset = (int)(position % ChunkedPart.SEGMENT_SIZE);
+    int  segmentLength = ChunkedPart.getSegmentPlaintextLength(length, index);
+
+    loadSegment(index, segmentLength);
+
+    return Math.min(count, segmentLength - segmentOffset);
+  }
+
+  @Override
+  public boolean isOpen() {
+    return segment != null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!isOpen()) return;
+
+    try {
+      file.close();
+    } finally {
+      PartBufferPool.release(segment);
+      PartBufferPool.release(plaintext);
+
+      segment   = null;
+      plaintext = null;
+    }
+  }
+
+  private void loadSegment(long index, int plaintextLength) throws IOException {
+    if (index == segmentIndex) return;
+
+    segmentIndex = -1;
+
+    int  macOffset = ChunkedPart.IV_LENGTH + ChunkedPart.getCiphertextLength(plaintextLength);
+    long offset    = ChunkedPart.getSegmentOffset(index);
+
+    segment.clear();
+    segment.limit(macOffset + ChunkedPart.MAC_LENGTH);
+
+    while (segment.hasRemaining()) {
+      if (channel.read(segment, offset + segment.position()) == -1)
+        throw new IOException("Part truncated!");
+    }
+
+    byte[] input = segment.array();
+
+    try {
+      ChunkedPart.updateSegmentMac(mac, fileId, index);
+      mac.update(input, 0, macOffset);
+      mac.doFinal(ourMac, 0);
+
+      System.arraycopy(input, macOffset, theirMac, 0, theirMac.length);
+
+      if (!MessageDigest.isEqual(ourMac, theirMac))
+        throw new IOException("MAC doesn't match! Potential tampering?");
+
+      cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(input, 0, ChunkedPart.IV_LENGTH));
+
+      int decrypted = cipher.doFinal(input, ChunkedPart.IV_LENGTH, macOffset - ChunkedPart.IV_LENGTH,
+                                     plaintext.array(), 0);
+
+      if (decrypted != plaintextLength)
+        throw new IOException("Segment length mismatch!");
+    } catch (GeneralSecurityException e) {
+      Log.w(TAG, e);
+      throw new IOException("Couldn't decrypt segment " + index);
+    }
+
+    segmentIndex = index;
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link InputStream} over a {@link DecryptingChunkedPartChannel}.  Skipping
+ * is a seek, and mark/reset are supported at any distance.
+ */
+public class DecryptingChunkedPartInputStream extends InputStream {
+
+  private final DecryptingChunkedPartChannel channel;
+  private final byte[]                       singleByte = new byte[1];
+
+  private long mark;
+
+  public DecryptingChunkedPartInputStream(File file, MasterSecret masterSecret) throws IOException {
+    this.channel = new DecryptingChunkedPartChannel(file, masterSecret);
+  }
+
+  @Override
+  public int read() throws IOException {
+    int read;
+
+    while ((read = read(singleByte, 0, 1)) == 0);
+
+    return read == -1 ? -1 : singleByte[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer) throws IOException {
+    return read(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    return channel.read(buffer, offset, length);
+  }
+
+  @Override
+  public long skip(long byteCount) throws IOException {
+    if (byteCount <= 0) return 0;
+
+    long position = channel.position();
+    long skipped  = Math.max(0, Math.min(byteCount, channel.size() - position));
+
+    channel.position(position + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int)Math.min(Integer.MAX_VALUE, Math.max(0, channel.size() - channel.position()));
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readLimit) {
+    mark = channel.position();
+  }
+
+  @Override
+  public synchronized void reset() throws IOException {
+    channel.position(mark);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
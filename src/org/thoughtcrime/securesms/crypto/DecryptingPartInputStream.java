@@ -20,11 +20,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.lang.System;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -39,6 +40,9 @@ import android.util.Log;
 
 /**
  * Class for streaming an encrypted MMS "part" off the disk.
+ *
+ * Ciphertext is read through the file's channel a chunk at a time into a pooled
+ * buffer and decrypted into a second pooled buffer, which reads are then served from.
  * 
  * @author Moxie Marlinspike
  */
@@ -48,13 +52,17 @@ public class DecryptingPartInputStream extends FileInputStream {
   private static final int IV_LENGTH  = 16;
   private static final int MAC_LENGTH = 20;
 
-  private Cipher cipher;
-  private Mac mac;
+  private final FileChannel channel;
+  private final byte[]      ourMac   = new byte[MAC_LENGTH];
+  private final byte[]      theirMac = new byte[MAC_LENGTH];
+
+  private Cipher     cipher;
+  private Mac        mac;
+  private ByteBuffer ciphertext;
+  private ByteBuffer plaintext;
 
   private boolean done;
-  private long totalDataSize;
-  private long totalRead;
-  private byte[] overflowBuffer;
+  private long    ciphertextRemaining;
 
   public DecryptingPartInputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
     super(file);
@@ -62,11 +70,15 @@ public class DecryptingPartInputStream extends FileInputStream {
       if (file.length() <= IV_LENGTH + MAC_LENGTH)
         throw new FileNotFoundException("Part shorter than crypto overhead!");
 
-      done          = false;
-      mac           = initializeMac(masterSecret.getMacKey());
-      cipher        = initializeCipher(masterSecret.getEncryptionKey());
-      totalDataSize = file.length() - cipher.getBlockSize() - mac.getMacLength();
-      totalRead     = 0;
+      done                = false;
+      channel             = getChannel();
+      mac                 = initializeMac(masterSecret.getMacKey());
+      cipher              = initializeCipher(masterSecret.getEncryptionKey());
+      ciphertextRemaining = file.length() - cipher.getBlockSize() - mac.getMacLength();
+      ciphertext          = PartBufferPool.acquire();
+      plaintext           = PartBufferPool.acquire();
+
+      plaintext.limit(0);
     } catch (InvalidKeyException ike) {
       Log.w("EncryptingPartInputStream", ike);
       throw new FileNotFoundException("Invalid key!");
@@ -82,6 +94,12 @@ public class DecryptingPartInputStream extends FileInputStream {
     }
   }
 
+  @Override
+  public int read() throws IOException {
+    if (!fillPlaintext()) return -1;
+    return plaintext.get() & 0xff;
+  }
+
   @Override
   public int read(byte[] buffer) throws IOException {
     return read(buffer, 0, buffer.length);
@@ -89,12 +107,13 @@ public class DecryptingPartInputStream extends FileInputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
-    if (totalRead != totalDataSize)
-      return readIncremental(buffer, offset, length);
-    else if (!done)
-      return readFinal(buffer, offset, length);
-    else 
-      return -1;
+    if (length == 0)        return 0;
+    if (!fillPlaintext())   return -1;
+
+    int read = Math.min(length, plaintext.remaining());
+    plaintext.get(buffer, offset, read);
+
+    return read;
   }
 
   @Override
@@ -105,30 +124,88 @@ public class DecryptingPartInputStream extends FileInputStream {
   @Override
   public long skip(long byteCount) throws IOException {
     long skipped = 0L;
-    while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int)(byteCount-skipped))];
-      int    read = read(buf);
 
-      skipped += read;
+    while (skipped < byteCount && fillPlaintext()) {
+      int skip = (int)Math.min(byteCount - skipped, plaintext.remaining());
+
+      plaintext.position(plaintext.position() + skip);
+      skipped += skip;
     }
 
     return skipped;
   }
-	
-  private int readFinal(byte[] buffer, int offset, int length) throws IOException {
+
+  @Override
+  public void close() throws IOException {
     try {
-      int flourish = cipher.doFinal(buffer, offset);
-      //mac.update(buffer, offset, flourish);
+      super.close();
+    } finally {
+      if (ciphertext != null) PartBufferPool.release(ciphertext);
+      if (plaintext != null)  PartBufferPool.release(plaintext);
+
+      ciphertext = null;
+      plaintext  = null;
+    }
+  }
+
+  /**
+   * Makes sure there's decrypted data waiting in the plaintext buffer.
+   *
+   * @return false if the end of the part has been reached.
+   */
+  private boolean fillPlaintext() throws IOException {
+    if (plaintext == null)
+      throw new IOException("Stream closed!");
+
+    while (!plaintext.hasRemaining()) {
+      if (done) return false;
+
+      plaintext.clear();
+
+      if (ciphertextRemaining > 0) decryptChunk();
+      else                         decryptFinal();
+
+      plaintext.flip();
+    }
+
+    return true;
+  }
+
+  private void decryptChunk() throws IOException {
+    ciphertext.clear();
+    ciphertext.limit((int)Math.min(PartBufferPool.CHUNK_SIZE, ciphertextRemaining));
 
-      byte[] ourMac   = mac.doFinal();
-      byte[] theirMac = new byte[mac.getMacLength()];
+    while (ciphertext.hasRemaining()) {
+      if (channel.read(ciphertext) == -1)
+        throw new IOException("Part truncated!");
+    }
+
+    ciphertext.flip();
+    ciphertextRemaining -= ciphertext.remaining();
+
+    mac.update(ciphertext);
+    ciphertext.rewind();
+
+    try {
+      cipher.update(ciphertext, plaintext);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private void decryptFinal() throws IOException {
+    try {
+      ciphertext.clear();
+      ciphertext.limit(0);
+
+      cipher.doFinal(ciphertext, plaintext);
+      mac.doFinal(ourMac, 0);
       readFully(theirMac);
 
-      if (!Arrays.equals(ourMac, theirMac))
+      if (!MessageDigest.isEqual(ourMac, theirMac))
         throw new IOException("MAC doesn't match! Potential tampering?");
 
       done = true;
-      return flourish;
     } catch (IllegalBlockSizeException e) {
       Log.w("EncryptingPartInputStream", e);
       throw new IOException("Illegal block size exception!");
@@ -141,59 +218,6 @@ public class DecryptingPartInputStream extends FileInputStream {
     }
   }
 
-  private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
-    int readLength = 0;
-    if (null != overflowBuffer) {
-      if (overflowBuffer.length > length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(overflowBuffer, length, overflowBuffer.length);
-        return length;
-      } else if (overflowBuffer.length == length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = null;
-        return length;
-      } else {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, overflowBuffer.length);
-        readLength += overflowBuffer.length;
-        offset += readLength;
-        length -= readLength;
-        overflowBuffer = null;
-      }
-    }
-
-    if (length + totalRead > totalDataSize)
-      length = (int)(totalDataSize - totalRead);
-
-    byte[] internalBuffer = new byte[length];
-    int read              = super.read(internalBuffer, 0, internalBuffer.length <= cipher.getBlockSize() ? internalBuffer.length : internalBuffer.length - cipher.getBlockSize());
-    totalRead            += read;
-
-    try {
-      mac.update(internalBuffer, 0, read);
-
-      int outputLen = cipher.getOutputSize(read);
-
-      if (outputLen <= length) {
-        readLength += cipher.update(internalBuffer, 0, read, buffer, offset);
-        return readLength;
-      }
-
-      byte[] transientBuffer = new byte[outputLen];
-      outputLen = cipher.update(internalBuffer, 0, read, transientBuffer, 0);
-      if (outputLen <= length) {
-        System.arraycopy(transientBuffer, 0, buffer, offset, outputLen);
-        readLength += outputLen;
-      } else {
-        System.arraycopy(transientBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(transientBuffer, length, outputLen);
-        readLength += length;
-      }
-      return readLength;
-    } catch (ShortBufferException e) {
-      throw new AssertionError(e);
-    }
-  }
-
   private Mac initializeMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
     Mac hmac = Mac.getInstance("HmacSHA1");
     hmac.init(key);
@@ -223,11 +247,11 @@ public class DecryptingPartInputStream extends FileInputStream {
   private void readFully(byte[] buffer) throws IOException {
     int offset = 0;
 
-    for (;;) {
+    while (offset < buffer.length) {
       int read = super.read(buffer, offset, buffer.length-offset);
 
-      if (read + offset < buffer.length) offset += read;
-      else                               return;
+      if (read == -1) throw new IOException("Part truncated!");
+      offset += read;
     }
   }
 }
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.crypto;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Streams a part to disk in the {@link ChunkedPart} layout, encrypting and
+ * authenticating each segment as it fills.  The header is written on close,
+ * once the length is known.
+ */
+public class EncryptingChunkedPartOutputStream extends OutputStream {
+
+  private final RandomAccessFile file;
+  private final FileChannel      channel;
+  private final SecretKeySpec    encryptionKey;
+  private final Cipher           cipher;
+  private final Mac              mac;
+  private final SecureRandom     random     = new SecureRandom();
+  private final byte[]           fileId     = new byte[ChunkedPart.FILE_ID_LENGTH];
+  private final byte[]           iv         = new byte[ChunkedPart.IV_LENGTH];
+  private final byte[]           singleByte = new byte[1];
+
+  private ByteBuffer plaintext;
+  private ByteBuffer segment;
+  private long       segmentIndex;
+  private long       length;
+  private boolean    closed;
+
+  public EncryptingChunkedPartOutputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
+    try {
+      this.file          = new RandomAccessFile(file, "rw");
+      this.channel       = this.file.getChannel();
+      this.encryptionKey = masterSecret.getEncryptionKey();
+      this.cipher        = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.mac           = ChunkedPart.initializeMac(masterSecret.getMacKey());
+
+      this.file.setLength(0);
+      this.channel.position(ChunkedPart.HEADER_LENGTH);
+      this.random.nextBytes(fileId);
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    } catch (FileNotFoundException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new FileNotFoundException(e.getMessage());
+    }
+
+    this.plaintext = PartBufferPool.acquire();
+    this.segment   = PartBufferPool.acquire();
+    this.plaintext.limit(ChunkedPart.SEGMENT_SIZE);
+  }
+
+  @Override
+  public void write(int oneByte) throws IOException {
+    singleByte[0] = (byte)oneByte;
+    write(singleByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    if (closed) throw new IOException("Stream closed!");
+
+    while (length > 0) {
+      int write = Math.min(length, plaintext.remaining());
+
+      plaintext.put(buffer, offset, write);
+      offset += write;
+      length -= write;
+
+      if (!plaintext.hasRemaining()) writeSegment();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+
+    try {
+      writeSegment();
+
+      ByteBuffer header = ChunkedPart.createHeader(mac, fileId, length);
+
+      while (header.hasRemaining()) {
+        channel.write(header, header.position());
+      }
+    } finally {
+      closed = true;
+      file.close();
+
+      PartBufferPool.release(plaintext);
+      PartBufferPool.release(segment);
+    }
+  }
+
+  private void writeSegment() throws IOException {
+    int plaintextLength = plaintext.position();
+
+    if (plaintextLength == 0) return;
+
+    try {
+      byte[] output = segment.array();
+
+      random.nextBytes(iv);
+      System.arraycopy(iv, 0, output, 0, iv.length);
+      cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+
+      int ciphertextLength = cipher.doFinal(plaintext.array(), 0, plaintextLength, output, ChunkedPart.IV_LENGTH);
+      int macOffset        = ChunkedPart.IV_LENGTH + ciphertextLength;
+
+      ChunkedPart.updateSegmentMac(mac, fileId, segmentIndex);
+      mac.update(output, 0, macOffset);
+      mac.doFinal(output, macOffset);
+
+      segment.clear();
+      segment.limit(macOffset + ChunkedPart.MAC_LENGTH);
+
+      while (segment.hasRemaining()) {
+        channel.write(segment);
+      }
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+
+    length += plaintextLength;
+    segmentIndex++;
+
+    plaintext.clear();
+    plaintext.limit(ChunkedPart.SEGMENT_SIZE);
+  }
+}
@@ -27,14 +27,12 @@ import org.whispersystems.libaxolotl.ecc.ECPrivateKey;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.LinkedList;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
@@ -48,26 +46,32 @@ import javax.crypto.spec.SecretKeySpec;
  * 1) 16 byte random IV.
  * 2) AES-CBC(plaintext)
  * 3) HMAC-SHA1 of 1 and 2
+ *
+ * Instances are cheap to construct and safe to share between threads.  The
+ * underlying JCE Cipher and Mac objects are borrowed from a small shared pool
+ * for the length of each operation, and reused across every MasterCipher (and
+ * MasterSecret).  {@link #clearContexts()} empties the pool, so no keyed
+ * object outlives the master secret beyond an operation already under way.
  * 
  * @author Moxie Marlinspike
  */
 
 public class MasterCipher {
 
+  private static final int IV_LENGTH  = 16;
+  private static final int BLOCK_SIZE = 16;
+  private static final int MAC_LENGTH = 20;
+
+  private static final int MAX_POOLED_CONTEXTS = 4;
+
+  private static final LinkedList<CipherContext> contexts = new LinkedList<>();
+
+  private static int generation;
+
   private final MasterSecret masterSecret;
-  private final Cipher encryptingCipher;
-  private final Cipher decryptingCipher;
-  private final Mac hmac;
-	
+
   public MasterCipher(MasterSecret masterSecret) {
-    try {
-      this.masterSecret = masterSecret;		
-      this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.hmac             = Mac.getInstance("HmacSHA1");
-    } catch (NoSuchPaddingException | NoSuchAlgorithmException nspe) {
-      throw new AssertionError(nspe);
-    }
+    this.masterSecret = masterSecret;
   }
 
   public byte[] encryptKey(ECPrivateKey privateKey) {
@@ -93,33 +97,92 @@ public class MasterCipher {
   }
 	
   public byte[] decryptBytes(byte[] decodedBody) throws InvalidMessageException {
+    CipherContext context = acquireContext();
+
     try {
-      Mac mac              = getMac(masterSecret.getMacKey());
-      byte[] encryptedBody = verifyMacBody(mac, decodedBody);
-			
-      Cipher cipher        = getDecryptingCipher(masterSecret.getEncryptionKey(), encryptedBody);
-      byte[] encrypted     = getDecryptedBody(cipher, encryptedBody);
-			
-      return encrypted;
+      int    length = verifyMac(context, decodedBody, 0, decodedBody.length);
+      Cipher cipher = getDecryptingCipher(context, decodedBody, 0);
+
+      return cipher.doFinal(decodedBody, IV_LENGTH, length - IV_LENGTH);
     } catch (GeneralSecurityException ge) {
       throw new InvalidMessageException(ge);
-    }		
+    } finally {
+      releaseContext(context);
+    }
+  }
+
+  /**
+   * Decrypts input[inputOffset, inputOffset + inputLength) into output at outputOffset,
+   * without allocating intermediate copies of the ciphertext.
+   *
+   * @return The number of plaintext bytes written to output.
+   */
+  public int decryptBytes(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset)
+      throws InvalidMessageException
+  {
+    if (output.length - outputOffset < getDecryptedMaxLength(inputLength)) {
+      throw new IllegalArgumentException("Output buffer too small: " + (output.length - outputOffset));
+    }
+
+    CipherContext context = acquireContext();
+
+    try {
+      int    length = verifyMac(context, input, inputOffset, inputLength);
+      Cipher cipher = getDecryptingCipher(context, input, inputOffset);
+
+      return cipher.doFinal(input, inputOffset + IV_LENGTH, length - IV_LENGTH, output, outputOffset);
+    } catch (GeneralSecurityException ge) {
+      throw new InvalidMessageException(ge);
+    } finally {
+      releaseContext(context);
+    }
   }
 	
   public byte[] encryptBytes(byte[] body) {
+    CipherContext context = acquireContext();
+
     try {
-      Cipher cipher              = getEncryptingCipher(masterSecret.getEncryptionKey());
-      Mac    mac                 = getMac(masterSecret.getMacKey());
-		
-      byte[] encryptedBody       = getEncryptedBody(cipher, body);
-      byte[] encryptedAndMacBody = getMacBody(mac, encryptedBody);
-		
-      return encryptedAndMacBody;
+      byte[] output  = new byte[getEncryptedLength(body.length)];
+      int    written = encryptBytes(context, body, 0, body.length, output, 0);
+
+      if (written == output.length) return output;
+      else                          return Arrays.copyOf(output, written);
     } catch (GeneralSecurityException ge) {
       Log.w("bodycipher", ge);
       return null;
-    }	
-		
+    } finally {
+      releaseContext(context);
+    }
+  }
+
+  /**
+   * Encrypts input[inputOffset, inputOffset + inputLength) into output at outputOffset,
+   * writing the IV, ciphertext, and MAC directly into the caller-supplied buffer.
+   *
+   * @return The number of bytes written to output.
+   */
+  public int encryptBytes(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) {
+    if (output.length - outputOffset < getEncryptedLength(inputLength)) {
+      throw new IllegalArgumentException("Output buffer too small: " + (output.length - outputOffset));
+    }
+
+    CipherContext context = acquireContext();
+
+    try {
+      return encryptBytes(context, input, inputOffset, inputLength, output, outputOffset);
+    } catch (GeneralSecurityException ge) {
+      throw new AssertionError(ge);
+    } finally {
+      releaseContext(context);
+    }
+  }
+
+  public static int getEncryptedLength(int plaintextLength) {
+    return IV_LENGTH + ((plaintextLength / BLOCK_SIZE) + 1) * BLOCK_SIZE + MAC_LENGTH;
+  }
+
+  public static int getDecryptedMaxLength(int ciphertextLength) {
+    return Math.max(0, ciphertextLength - IV_LENGTH - MAC_LENGTH);
   }
 	
   public boolean verifyMacFor(String content, byte[] theirMac) {
@@ -131,11 +194,15 @@ public class MasterCipher {
 	
   public byte[] getMacFor(String content) {
     Log.w("MasterCipher", "Macing: " + content);
+    CipherContext context = acquireContext();
+
     try {
-      Mac mac = getMac(masterSecret.getMacKey());
+      Mac mac = getMac(context, masterSecret.getMacKey());
       return mac.doFinal(content.getBytes());
     } catch (GeneralSecurityException ike) {
       throw new AssertionError(ike);
+    } finally {
+      releaseContext(context);
     }
   }
 
@@ -152,67 +219,136 @@ public class MasterCipher {
     byte[] encryptedAndMacBody = encryptBytes(bytes);
     return Base64.encodeBytes(encryptedAndMacBody);
   }
-	
-  private byte[] verifyMacBody(Mac hmac, byte[] encryptedAndMac) throws InvalidMessageException {		
-    byte[] encrypted = new byte[encryptedAndMac.length - hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, 0, encrypted, 0, encrypted.length);
-		
-    byte[] remoteMac = new byte[hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, encryptedAndMac.length - remoteMac.length, remoteMac, 0, remoteMac.length);
-		
-    byte[] localMac  = hmac.doFinal(encrypted);
-		
-    if (!Arrays.equals(remoteMac, localMac))
+
+  private int encryptBytes(CipherContext context, byte[] input, int inputOffset, int inputLength,
+                           byte[] output, int outputOffset)
+      throws GeneralSecurityException
+  {
+    Cipher cipher = getEncryptingCipher(context);
+    byte[] iv     = cipher.getIV();
+
+    System.arraycopy(iv, 0, output, outputOffset, iv.length);
+
+    int encrypted = cipher.doFinal(input, inputOffset, inputLength, output, outputOffset + iv.length);
+    int macOffset = outputOffset + iv.length + encrypted;
+
+    Mac mac = getMac(context, masterSecret.getMacKey());
+    mac.update(output, outputOffset, iv.length + encrypted);
+    mac.doFinal(output, macOffset);
+
+    return iv.length + encrypted + MAC_LENGTH;
+  }
+
+  /**
+   * @return The length of the IV and ciphertext which precede the verified MAC.
+   */
+  private int verifyMac(CipherContext context, byte[] input, int offset, int length)
+      throws GeneralSecurityException, InvalidMessageException
+  {
+    if (length < IV_LENGTH + BLOCK_SIZE + MAC_LENGTH) {
+      throw new InvalidMessageException("Message too short: " + length);
+    }
+
+    Mac mac             = getMac(context, masterSecret.getMacKey());
+    int encryptedLength = length - MAC_LENGTH;
+
+    mac.update(input, offset, encryptedLength);
+    mac.doFinal(context.macBuffer, 0);
+
+    if (!isEqual(context.macBuffer, 0, input, offset + encryptedLength, MAC_LENGTH))
       throw new InvalidMessageException("MAC doesen't match.");
-		
-    return encrypted;
+
+    return encryptedLength;
   }
-	
-  private byte[] getDecryptedBody(Cipher cipher, byte[] encryptedBody) throws IllegalBlockSizeException, BadPaddingException {
-    return cipher.doFinal(encryptedBody, cipher.getBlockSize(), encryptedBody.length - cipher.getBlockSize());
+
+  private Mac getMac(CipherContext context, SecretKeySpec key) throws InvalidKeyException {
+    if (context.hmacKey != key) {
+      context.hmacKey = null;
+      context.hmac.init(key);
+      context.hmacKey = key;
+    }
+
+    return context.hmac;
   }
-	
-  private byte[] getEncryptedBody(Cipher cipher, byte[] body) throws IllegalBlockSizeException, BadPaddingException {
-    byte[] encrypted = cipher.doFinal(body);
-    byte[] iv        = cipher.getIV();
-		
-    byte[] ivAndBody = new byte[iv.length + encrypted.length];
-    System.arraycopy(iv, 0, ivAndBody, 0, iv.length);
-    System.arraycopy(encrypted, 0, ivAndBody, iv.length, encrypted.length);
-		
-    return ivAndBody;
+
+  /**
+   * Drops every pooled cipher context, along with the keys last used with it.  Contexts
+   * in use by an operation at the time are dropped when it finishes.  Called when the
+   * master secret is cleared.
+   */
+  public static void clearContexts() {
+    synchronized (contexts) {
+      contexts.clear();
+      generation++;
+    }
   }
-	
-  private Mac getMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
-    //		Mac hmac = Mac.getInstance("HmacSHA1");
-    hmac.init(key);
 
-    return hmac;
+  private static CipherContext acquireContext() {
+    int currentGeneration;
+
+    synchronized (contexts) {
+      CipherContext context = contexts.poll();
+      if (context != null) return context;
+
+      currentGeneration = generation;
+    }
+
+    return new CipherContext(currentGeneration);
   }
-	
-  private byte[] getMacBody(Mac hmac, byte[] encryptedBody) {
-    byte[] mac             = hmac.doFinal(encryptedBody);
-    byte[] encryptedAndMac = new byte[encryptedBody.length + mac.length];
 
-    System.arraycopy(encryptedBody, 0, encryptedAndMac, 0, encryptedBody.length);
-    System.arraycopy(mac, 0, encryptedAndMac, encryptedBody.length, mac.length);
-		
-    return encryptedAndMac;
+  private static void releaseContext(CipherContext context) {
+    synchronized (contexts) {
+      if (context.generation == generation && contexts.size() < MAX_POOLED_CONTEXTS) {
+        contexts.add(context);
+      }
+    }
   }
-	
-  private Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody) throws InvalidKeyException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher      = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    IvParameterSpec iv = new IvParameterSpec(encryptedBody, 0, decryptingCipher.getBlockSize());
-    decryptingCipher.init(Cipher.DECRYPT_MODE, key, iv);
-		
-    return decryptingCipher;
+
+  private Cipher getDecryptingCipher(CipherContext context, byte[] input, int offset)
+      throws GeneralSecurityException
+  {
+    IvParameterSpec iv = new IvParameterSpec(input, offset, IV_LENGTH);
+    context.decryptingCipher.init(Cipher.DECRYPT_MODE, masterSecret.getEncryptionKey(), iv);
+
+    return context.decryptingCipher;
   }
-	
-  private Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    encryptingCipher.init(Cipher.ENCRYPT_MODE, key);
-		
-    return encryptingCipher;
+
+  private Cipher getEncryptingCipher(CipherContext context) throws InvalidKeyException {
+    context.encryptingCipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey());
+    return context.encryptingCipher;
+  }
+
+  private static boolean isEqual(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+    int result = 0;
+
+    for (int i=0;i<length;i++) {
+      result |= a[aOffset + i] ^ b[bOffset + i];
+    }
+
+    return result == 0;
+  }
+
+  private static class CipherContext {
+    private final int    generation;
+    private final Cipher encryptingCipher;
+    private final Cipher decryptingCipher;
+    private final Mac    hmac;
+    private final byte[] macBuffer;
+
+    private SecretKeySpec hmacKey;
+
+    public CipherContext(int generation) {
+      this.generation = generation;
+
+      try {
+        this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.hmac             = Mac.getInstance("HmacSHA1");
+        this.macBuffer        = new byte[hmac.getMacLength()];
+      } catch (NoSuchPaddingException | NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
   }
 	
 }
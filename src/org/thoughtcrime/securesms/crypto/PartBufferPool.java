@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * A small pool of the buffers used by the encrypted part streams, so that streaming
+ * a large attachment doesn't allocate on every read or write.
+ *
+ * Buffers are array-backed rather than direct: the JCE providers only operate on
+ * arrays, and would otherwise copy a direct buffer through a temporary one.
+ */
+class PartBufferPool {
+
+  /**
+   * The amount of ciphertext or plaintext processed at a time.  A multiple of
+   * the AES block size.
+   */
+  static final int CHUNK_SIZE  = 32 * 1024;
+
+  /**
+   * Room for a chunk, plus the block of padding or the MAC that may follow it.
+   */
+  static final int BUFFER_SIZE = CHUNK_SIZE + 64;
+
+  private static final int MAX_POOLED = 8;
+
+  private static final LinkedList<ByteBuffer> buffers = new LinkedList<>();
+
+  static ByteBuffer acquire() {
+    ByteBuffer buffer;
+
+    synchronized (buffers) {
+      buffer = buffers.poll();
+    }
+
+    if (buffer == null) buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    buffer.clear();
+
+    return buffer;
+  }
+
+  static void release(ByteBuffer buffer) {
+    synchronized (buffers) {
+      if (buffers.size() < MAX_POOLED) buffers.add(buffer);
+    }
+  }
+}
@@ -22,6 +22,8 @@ import android.util.Log;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import org.thoughtcrime.securesms.crypto.storage.AxolotlStoreFactory;
+import org.thoughtcrime.securesms.crypto.storage.BatchPreKeyStore;
 import org.thoughtcrime.securesms.crypto.storage.TextSecurePreKeyStore;
 import org.thoughtcrime.securesms.util.JsonUtils;
 import org.thoughtcrime.securesms.util.Util;
@@ -49,7 +51,7 @@ public class PreKeyUtil {
   public static final int BATCH_SIZE = 100;
 
   public static List<PreKeyRecord> generatePreKeys(Context context, MasterSecret masterSecret) {
-    PreKeyStore        preKeyStore    = new TextSecurePreKeyStore(context, masterSecret);
+    BatchPreKeyStore   preKeyStore    = AxolotlStoreFactory.createPreKeyStore(context, masterSecret);
     List<PreKeyRecord> records        = new LinkedList<>();
     int                preKeyIdOffset = getNextPreKeyId(context);
 
@@ -58,10 +60,11 @@ public class PreKeyUtil {
       ECKeyPair    keyPair  = Curve.generateKeyPair();
       PreKeyRecord record   = new PreKeyRecord(preKeyId, keyPair);
 
-      preKeyStore.storePreKey(preKeyId, record);
       records.add(record);
     }
 
+    preKeyStore.storePreKeys(records);
+
     setNextPreKeyId(context, (preKeyIdOffset + BATCH_SIZE + 1) % Medium.MAX_VALUE);
     return records;
   }
@@ -70,7 +73,7 @@ public class PreKeyUtil {
                                                         IdentityKeyPair identityKeyPair)
   {
     try {
-      SignedPreKeyStore  signedPreKeyStore = new TextSecurePreKeyStore(context, masterSecret);
+      SignedPreKeyStore  signedPreKeyStore = AxolotlStoreFactory.createSignedPreKeyStore(context, masterSecret);
       int                signedPreKeyId    = getNextSignedPreKeyId(context);
       ECKeyPair          keyPair           = Curve.generateKeyPair();
       byte[]             signature         = Curve.calculateSignature(identityKeyPair.getPrivateKey(), keyPair.getPublicKey().serialize());
@@ -86,7 +89,7 @@ public class PreKeyUtil {
   }
 
   public static PreKeyRecord generateLastResortKey(Context context, MasterSecret masterSecret) {
-    PreKeyStore preKeyStore = new TextSecurePreKeyStore(context, masterSecret);
+    PreKeyStore preKeyStore = AxolotlStoreFactory.createPreKeyStore(context, masterSecret);
 
     if (preKeyStore.containsPreKey(Medium.MAX_VALUE)) {
       try {
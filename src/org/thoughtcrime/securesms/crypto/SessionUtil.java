@@ -3,7 +3,7 @@ package org.thoughtcrime.securesms.crypto;
 import android.content.Context;
 import android.support.annotation.NonNull;
 
-import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
+import org.thoughtcrime.securesms.crypto.storage.AxolotlStoreFactory;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.whispersystems.libaxolotl.AxolotlAddress;
 import org.whispersystems.libaxolotl.state.SessionStore;
@@ -16,7 +16,7 @@ public class SessionUtil {
   }
 
   public static boolean hasSession(Context context, MasterSecret masterSecret, @NonNull String number) {
-    SessionStore   sessionStore   = new TextSecureSessionStore(context, masterSecret);
+    SessionStore   sessionStore   = AxolotlStoreFactory.createSessionStore(context, masterSecret);
     AxolotlAddress axolotlAddress = new AxolotlAddress(number, TextSecureAddress.DEFAULT_DEVICE_ID);
 
     return sessionStore.containsSession(axolotlAddress);
@@ -0,0 +1,102 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.jobs.KeyStoreMigrationJob;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.whispersystems.libaxolotl.state.AxolotlStore;
+import org.whispersystems.libaxolotl.state.SessionStore;
+import org.whispersystems.libaxolotl.state.SignedPreKeyStore;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Creates the key stores, backed either by a file per record or, once enabled, by
+ * {@link TextSecureDatabaseAxolotlStore}.  Enabling the database store schedules a
+ * {@link KeyStoreMigrationJob} the first time a store is requested, and the file stores
+ * are handed out until it finishes.  There's no going back once that's done.
+ */
+public class AxolotlStoreFactory {
+
+  private static final String TAG = AxolotlStoreFactory.class.getSimpleName();
+
+  // Held for reading by every file store operation, and for writing while the records are
+  // migrated into the database store.  Once they have been, file stores created before the
+  // migration forward to the database store instead of the files.
+  static final ReadWriteLock MIGRATION_LOCK = new ReentrantReadWriteLock();
+
+  private static boolean migrationScheduled;
+
+  public static AxolotlStore createAxolotlStore(Context context, MasterSecret masterSecret) {
+    if (isDatabaseStore(context)) return new TextSecureDatabaseAxolotlStore(context, masterSecret);
+    else                          return new TextSecureAxolotlStore(context, masterSecret);
+  }
+
+  public static SessionStore createSessionStore(Context context, MasterSecret masterSecret) {
+    if (isDatabaseStore(context)) return new TextSecureDatabaseAxolotlStore(context, masterSecret);
+    else                          return new TextSecureSessionStore(context, masterSecret);
+  }
+
+  public static BatchPreKeyStore createPreKeyStore(Context context, MasterSecret masterSecret) {
+    if (isDatabaseStore(context)) return new TextSecureDatabaseAxolotlStore(context, masterSecret);
+    else                          return new TextSecurePreKeyStore(context, masterSecret);
+  }
+
+  public static SignedPreKeyStore createSignedPreKeyStore(Context context, MasterSecret masterSecret) {
+    if (isDatabaseStore(context)) return new TextSecureDatabaseAxolotlStore(context, masterSecret);
+    else                          return new TextSecurePreKeyStore(context, masterSecret);
+  }
+
+  /**
+   * Copies the file backed records into the database store and removes the files.  The file
+   * stores are blocked for the duration, so that nothing is written to a file which has
+   * already been migrated, or removed from one but not from the database.
+   */
+  public static void migrateToDatabase(Context context, MasterSecret masterSecret) {
+    MIGRATION_LOCK.writeLock().lock();
+
+    try {
+      if (TextSecurePreferences.isDatabaseKeyStoreMigrated(context)) return;
+
+      Log.w(TAG, "Migrating key records into the database...");
+      TextSecureDatabaseAxolotlStore.migrateFromFiles(context, masterSecret);
+      TextSecurePreferences.setDatabaseKeyStoreMigrated(context, true);
+    } finally {
+      MIGRATION_LOCK.writeLock().unlock();
+
+      synchronized (AxolotlStoreFactory.class) {
+        migrationScheduled = false;
+      }
+    }
+  }
+
+  /**
+   * @return the database store for a file store to forward to, if the records have been
+   * migrated since it was created, or null.
+   */
+  static TextSecureDatabaseAxolotlStore getMigratedStore(Context context, MasterSecret masterSecret) {
+    if (TextSecurePreferences.isDatabaseKeyStoreMigrated(context)) {
+      return new TextSecureDatabaseAxolotlStore(context, masterSecret);
+    }
+
+    return null;
+  }
+
+  private static synchronized boolean isDatabaseStore(Context context) {
+    if (TextSecurePreferences.isDatabaseKeyStoreMigrated(context)) return true;
+    if (!TextSecurePreferences.isDatabaseKeyStoreEnabled(context)) return false;
+
+    if (!migrationScheduled) {
+      migrationScheduled = true;
+      ApplicationContext.getInstance(context)
+                        .getBackgroundJobManager()
+                        .add(new KeyStoreMigrationJob(context));
+    }
+
+    return false;
+  }
+}
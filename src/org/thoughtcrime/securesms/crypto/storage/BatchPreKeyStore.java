@@ -0,0 +1,14 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import org.whispersystems.libaxolotl.state.PreKeyRecord;
+import org.whispersystems.libaxolotl.state.PreKeyStore;
+
+import java.util.List;
+
+/**
+ * A {@link PreKeyStore} which can store a batch of pre-keys at once, so that
+ * generating them doesn't cost a separate write for each.
+ */
+public interface BatchPreKeyStore extends PreKeyStore {
+  public void storePreKeys(List<PreKeyRecord> records);
+}
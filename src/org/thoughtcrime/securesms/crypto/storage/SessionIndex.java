@@ -0,0 +1,171 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the sub-device sessions stored for each recipient, so that finding a
+ * recipient's devices doesn't mean listing every session on disk.
+ *
+ * The index is a file of session names, loaded once and rebuilt from the session
+ * directory if it's missing or unreadable.  It's written before the session files it
+ * describes and pruned after they're deleted, so it may name a session that no longer
+ * exists but never misses one that does.
+ */
+class SessionIndex {
+
+  private static final String TAG = SessionIndex.class.getSimpleName();
+
+  private final File directory;
+  private final File indexFile;
+
+  private Map<Long, Set<Integer>> subDevices;
+  private boolean                 dirty;
+
+  SessionIndex(File directory, File indexFile) {
+    this.directory = directory;
+    this.indexFile = indexFile;
+  }
+
+  synchronized List<Integer> getSubDevices(long recipientId) {
+    Set<Integer> devices = getSubDevices().get(recipientId);
+
+    if (devices == null) return new LinkedList<>();
+    else                 return new LinkedList<>(devices);
+  }
+
+  synchronized void add(String sessionName) {
+    long[] parsed = parseSessionName(sessionName);
+
+    if (parsed == null || parsed.length < 2) return;
+
+    Set<Integer> devices = getSubDevices().get(parsed[0]);
+
+    if (devices == null) {
+      devices = new HashSet<>();
+      getSubDevices().put(parsed[0], devices);
+    }
+
+    dirty |= devices.add((int)parsed[1]);
+  }
+
+  synchronized void remove(String sessionName) {
+    long[] parsed = parseSessionName(sessionName);
+
+    if (parsed == null || parsed.length < 2) return;
+
+    Set<Integer> devices = getSubDevices().get(parsed[0]);
+
+    if (devices != null && devices.remove((int)parsed[1])) {
+      if (devices.isEmpty()) getSubDevices().remove(parsed[0]);
+      dirty = true;
+    }
+  }
+
+  synchronized void write() {
+    if (!dirty) return;
+
+    File temporaryFile = new File(indexFile.getAbsolutePath() + ".tmp");
+
+    try {
+      Writer out = new OutputStreamWriter(new FileOutputStream(temporaryFile));
+
+      for (Map.Entry<Long, Set<Integer>> entry : subDevices.entrySet()) {
+        for (int device : entry.getValue()) {
+          out.write(entry.getKey() + "." + device + "\n");
+        }
+      }
+
+      out.close();
+
+      if (!temporaryFile.renameTo(indexFile)) {
+        throw new IOException("Rename failed: " + indexFile.getAbsolutePath());
+      }
+
+      dirty = false;
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      indexFile.delete();
+    }
+  }
+
+  private Map<Long, Set<Integer>> getSubDevices() {
+    if (subDevices == null) {
+      subDevices = new HashMap<>();
+
+      if (!read()) {
+        subDevices.clear();
+        rebuild();
+      }
+    }
+
+    return subDevices;
+  }
+
+  private boolean read() {
+    if (!indexFile.exists()) return false;
+
+    try {
+      BufferedReader in = new BufferedReader(new FileReader(indexFile));
+      String         line;
+
+      try {
+        while ((line = in.readLine()) != null) {
+          if (parseSessionName(line) == null) return false;
+          add(line);
+        }
+      } finally {
+        in.close();
+      }
+
+      dirty = false;
+      return true;
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return false;
+    }
+  }
+
+  private void rebuild() {
+    Log.w(TAG, "Rebuilding session index...");
+
+    String[] children = directory.list();
+
+    if (children != null) {
+      for (String child : children) {
+        add(child);
+      }
+    }
+
+    dirty = true;
+    write();
+  }
+
+  /**
+   * @return {recipientId} or {recipientId, deviceId}, or null if this isn't a session name.
+   */
+  static long[] parseSessionName(String sessionName) {
+    try {
+      String[] parts = sessionName.split("[.]", 2);
+
+      if (parts.length > 1) return new long[] {Long.parseLong(parts[0]), Integer.parseInt(parts[1])};
+      else                  return new long[] {Long.parseLong(parts[0])};
+    } catch (NumberFormatException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+}
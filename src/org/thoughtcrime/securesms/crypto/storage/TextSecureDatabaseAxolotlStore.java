@@ -0,0 +1,271 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterCipher;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.AxolotlRecordDatabase;
+import org.thoughtcrime.securesms.database.AxolotlRecordDatabase.Record;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.recipients.RecipientFactory;
+import org.whispersystems.libaxolotl.AxolotlAddress;
+import org.whispersystems.libaxolotl.IdentityKey;
+import org.whispersystems.libaxolotl.IdentityKeyPair;
+import org.whispersystems.libaxolotl.InvalidKeyIdException;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+import org.whispersystems.libaxolotl.state.AxolotlStore;
+import org.whispersystems.libaxolotl.state.IdentityKeyStore;
+import org.whispersystems.libaxolotl.state.PreKeyRecord;
+import org.whispersystems.libaxolotl.state.SessionRecord;
+import org.whispersystems.libaxolotl.state.SignedPreKeyRecord;
+import org.whispersystems.textsecure.api.push.TextSecureAddress;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.thoughtcrime.securesms.database.AxolotlRecordDatabase.TYPE_PREKEY;
+import static org.thoughtcrime.securesms.database.AxolotlRecordDatabase.TYPE_SESSION;
+import static org.thoughtcrime.securesms.database.AxolotlRecordDatabase.TYPE_SIGNED_PREKEY;
+
+/**
+ * An {@link AxolotlStore} which keeps pre-keys, signed pre-keys and sessions as
+ * encrypted rows in {@link AxolotlRecordDatabase}, rather than a file per record.
+ */
+public class TextSecureDatabaseAxolotlStore implements AxolotlStore, BatchPreKeyStore {
+
+  private static final String TAG = TextSecureDatabaseAxolotlStore.class.getSimpleName();
+
+  private static final int NO_DEVICE = 0;
+
+  private final Context               context;
+  private final MasterCipher          masterCipher;
+  private final AxolotlRecordDatabase database;
+  private final IdentityKeyStore      identityKeyStore;
+
+  public TextSecureDatabaseAxolotlStore(Context context, MasterSecret masterSecret) {
+    this.context          = context.getApplicationContext();
+    this.masterCipher     = new MasterCipher(masterSecret);
+    this.database         = DatabaseFactory.getAxolotlRecordDatabase(context);
+    this.identityKeyStore = new TextSecureIdentityKeyStore(context, masterSecret);
+  }
+
+  @Override
+  public IdentityKeyPair getIdentityKeyPair() {
+    return identityKeyStore.getIdentityKeyPair();
+  }
+
+  @Override
+  public int getLocalRegistrationId() {
+    return identityKeyStore.getLocalRegistrationId();
+  }
+
+  @Override
+  public void saveIdentity(String number, IdentityKey identityKey) {
+    identityKeyStore.saveIdentity(number, identityKey);
+  }
+
+  @Override
+  public boolean isTrustedIdentity(String number, IdentityKey identityKey) {
+    return identityKeyStore.isTrustedIdentity(number, identityKey);
+  }
+
+  @Override
+  public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+    try {
+      return new PreKeyRecord(loadRecord(TYPE_PREKEY, preKeyId, NO_DEVICE));
+    } catch (IOException | InvalidMessageException e) {
+      Log.w(TAG, e);
+      throw new InvalidKeyIdException(e);
+    }
+  }
+
+  @Override
+  public void storePreKey(int preKeyId, PreKeyRecord record) {
+    database.setRecord(createRecord(TYPE_PREKEY, preKeyId, NO_DEVICE, record.serialize()));
+  }
+
+  @Override
+  public void storePreKeys(List<PreKeyRecord> records) {
+    List<Record> rows = new LinkedList<>();
+
+    for (PreKeyRecord record : records) {
+      rows.add(createRecord(TYPE_PREKEY, record.getId(), NO_DEVICE, record.serialize()));
+    }
+
+    database.setRecords(rows);
+  }
+
+  @Override
+  public boolean containsPreKey(int preKeyId) {
+    return database.containsRecord(TYPE_PREKEY, preKeyId, NO_DEVICE);
+  }
+
+  @Override
+  public void removePreKey(int preKeyId) {
+    database.deleteRecord(TYPE_PREKEY, preKeyId, NO_DEVICE);
+  }
+
+  @Override
+  public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
+    try {
+      return new SignedPreKeyRecord(loadRecord(TYPE_SIGNED_PREKEY, signedPreKeyId, NO_DEVICE));
+    } catch (IOException | InvalidMessageException e) {
+      Log.w(TAG, e);
+      throw new InvalidKeyIdException(e);
+    }
+  }
+
+  @Override
+  public List<SignedPreKeyRecord> loadSignedPreKeys() {
+    List<SignedPreKeyRecord> results = new LinkedList<>();
+
+    for (byte[] encrypted : database.getRecords(TYPE_SIGNED_PREKEY)) {
+      try {
+        results.add(new SignedPreKeyRecord(masterCipher.decryptBytes(encrypted)));
+      } catch (IOException | InvalidMessageException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    return results;
+  }
+
+  @Override
+  public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
+    database.setRecord(createRecord(TYPE_SIGNED_PREKEY, signedPreKeyId, NO_DEVICE, record.serialize()));
+  }
+
+  @Override
+  public boolean containsSignedPreKey(int signedPreKeyId) {
+    return database.containsRecord(TYPE_SIGNED_PREKEY, signedPreKeyId, NO_DEVICE);
+  }
+
+  @Override
+  public void removeSignedPreKey(int signedPreKeyId) {
+    database.deleteRecord(TYPE_SIGNED_PREKEY, signedPreKeyId, NO_DEVICE);
+  }
+
+  @Override
+  public SessionRecord loadSession(AxolotlAddress address) {
+    try {
+      return new SessionRecord(loadRecord(TYPE_SESSION, getRecipientId(address.getName()), address.getDeviceId()));
+    } catch (IOException | InvalidMessageException e) {
+      Log.w(TAG, "No existing session information found.");
+      return new SessionRecord();
+    }
+  }
+
+  @Override
+  public List<Integer> getSubDeviceSessions(String name) {
+    List<Integer> results = new LinkedList<>();
+
+    for (int device : database.getDevices(TYPE_SESSION, getRecipientId(name))) {
+      if (device != TextSecureAddress.DEFAULT_DEVICE_ID) {
+        results.add(device);
+      }
+    }
+
+    return results;
+  }
+
+  @Override
+  public void storeSession(AxolotlAddress address, SessionRecord record) {
+    database.setRecord(createRecord(TYPE_SESSION, getRecipientId(address.getName()),
+                                    address.getDeviceId(), record.serialize()));
+  }
+
+  @Override
+  public boolean containsSession(AxolotlAddress address) {
+    return database.containsRecord(TYPE_SESSION, getRecipientId(address.getName()), address.getDeviceId()) &&
+           loadSession(address).getSessionState().hasSenderChain();
+  }
+
+  @Override
+  public void deleteSession(AxolotlAddress address) {
+    database.deleteRecord(TYPE_SESSION, getRecipientId(address.getName()), address.getDeviceId());
+  }
+
+  @Override
+  public void deleteAllSessions(String name) {
+    database.deleteRecords(TYPE_SESSION, getRecipientId(name));
+  }
+
+  /**
+   * Moves every readable pre-key, signed pre-key and session out of the file stores and into
+   * the database, in a single transaction.  Only the files which were migrated are deleted,
+   * once it has committed.
+   */
+  static void migrateFromFiles(Context context, MasterSecret masterSecret) {
+    TextSecurePreKeyStore          preKeyStore  = new TextSecurePreKeyStore(context, masterSecret);
+    TextSecureSessionStore         sessionStore = new TextSecureSessionStore(context, masterSecret);
+    TextSecureDatabaseAxolotlStore destination  = new TextSecureDatabaseAxolotlStore(context, masterSecret);
+    List<Record>                   rows         = new LinkedList<>();
+    List<Integer>                  preKeyIds    = new LinkedList<>();
+    List<Integer>                  signedIds    = new LinkedList<>();
+    List<String>                   sessionNames = new LinkedList<>();
+    long                           startTime    = System.currentTimeMillis();
+
+    for (int preKeyId : preKeyStore.getPreKeyIds()) {
+      try {
+        rows.add(destination.createRecord(TYPE_PREKEY, preKeyId, NO_DEVICE,
+                                          preKeyStore.loadPreKey(preKeyId).serialize()));
+        preKeyIds.add(preKeyId);
+      } catch (InvalidKeyIdException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    for (int signedPreKeyId : preKeyStore.getSignedPreKeyIds()) {
+      try {
+        rows.add(destination.createRecord(TYPE_SIGNED_PREKEY, signedPreKeyId, NO_DEVICE,
+                                          preKeyStore.loadSignedPreKey(signedPreKeyId).serialize()));
+        signedIds.add(signedPreKeyId);
+      } catch (InvalidKeyIdException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    for (String sessionName : sessionStore.getSessionNames()) {
+      long[]        parsed = SessionIndex.parseSessionName(sessionName);
+      int           device = parsed.length > 1 ? (int)parsed[1] : TextSecureAddress.DEFAULT_DEVICE_ID;
+      SessionRecord record = sessionStore.loadSession(sessionName);
+
+      if (record == null) {
+        Log.w(TAG, "Leaving unreadable session in place: " + sessionName);
+        continue;
+      }
+
+      rows.add(destination.createRecord(TYPE_SESSION, parsed[0], device, record.serialize()));
+      sessionNames.add(sessionName);
+    }
+
+    destination.database.setRecords(rows);
+
+    preKeyStore.deleteRecordFiles(preKeyIds, signedIds);
+    sessionStore.deleteSessionFiles(sessionNames);
+
+    Log.w(TAG, "Migrated " + rows.size() + " records in " + (System.currentTimeMillis() - startTime) + "ms");
+  }
+
+  private byte[] loadRecord(int type, long recordId, int device)
+      throws IOException, InvalidMessageException
+  {
+    byte[] encrypted = database.getRecord(type, recordId, device);
+
+    if (encrypted == null) {
+      throw new IOException("No record: " + type + ", " + recordId + ", " + device);
+    }
+
+    return masterCipher.decryptBytes(encrypted);
+  }
+
+  private Record createRecord(int type, long recordId, int device, byte[] serialized) {
+    return new Record(type, recordId, device, masterCipher.encryptBytes(serialized));
+  }
+
+  private long getRecipientId(String name) {
+    return RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
+  }
+}
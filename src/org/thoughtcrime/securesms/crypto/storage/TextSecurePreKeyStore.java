@@ -10,7 +10,6 @@ import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.whispersystems.libaxolotl.state.SignedPreKeyRecord;
 import org.whispersystems.libaxolotl.state.SignedPreKeyStore;
 import org.whispersystems.libaxolotl.state.PreKeyRecord;
-import org.whispersystems.libaxolotl.state.PreKeyStore;
 import org.thoughtcrime.securesms.util.Conversions;
 
 import java.io.File;
@@ -22,7 +21,9 @@ import java.nio.channels.FileChannel;
 import java.util.LinkedList;
 import java.util.List;
 
-public class TextSecurePreKeyStore implements PreKeyStore, SignedPreKeyStore {
+import static org.thoughtcrime.securesms.crypto.storage.AxolotlStoreFactory.MIGRATION_LOCK;
+
+public class TextSecurePreKeyStore implements BatchPreKeyStore, SignedPreKeyStore {
 
   public  static final String PREKEY_DIRECTORY        = "prekeys";
   public  static final String SIGNED_PREKEY_DIRECTORY = "signed_prekeys";
@@ -42,91 +43,232 @@ public class TextSecurePreKeyStore implements PreKeyStore, SignedPreKeyStore {
 
   @Override
   public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
-    synchronized (FILE_LOCK) {
-      try {
+    MIGRATION_LOCK.readLock().lock();
+
+    try {
+      BatchPreKeyStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+      if (migratedStore != null) return migratedStore.loadPreKey(preKeyId);
+
+      synchronized (FILE_LOCK) {
         return new PreKeyRecord(loadSerializedRecord(getPreKeyFile(preKeyId)));
-      } catch (IOException | InvalidMessageException e) {
-        Log.w(TAG, e);
-        throw new InvalidKeyIdException(e);
       }
+    } catch (IOException | InvalidMessageException e) {
+      Log.w(TAG, e);
+      throw new InvalidKeyIdException(e);
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
     }
   }
 
   @Override
   public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
-    synchronized (FILE_LOCK) {
-      try {
+    MIGRATION_LOCK.readLock().lock();
+
+    try {
+      SignedPreKeyStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+      if (migratedStore != null) return migratedStore.loadSignedPreKey(signedPreKeyId);
+
+      synchronized (FILE_LOCK) {
         return new SignedPreKeyRecord(loadSerializedRecord(getSignedPreKeyFile(signedPreKeyId)));
-      } catch (IOException | InvalidMessageException e) {
-        Log.w(TAG, e);
-        throw new InvalidKeyIdException(e);
       }
+    } catch (IOException | InvalidMessageException e) {
+      Log.w(TAG, e);
+      throw new InvalidKeyIdException(e);
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
     }
   }
 
   @Override
   public List<SignedPreKeyRecord> loadSignedPreKeys() {
-    synchronized (FILE_LOCK) {
-      File                     directory = getSignedPreKeyDirectory();
-      List<SignedPreKeyRecord> results   = new LinkedList<>();
-
-      for (File signedPreKeyFile : directory.listFiles()) {
-        try {
-          results.add(new SignedPreKeyRecord(loadSerializedRecord(signedPreKeyFile)));
-        } catch (IOException | InvalidMessageException e) {
-          Log.w(TAG, e);
+    MIGRATION_LOCK.readLock().lock();
+
+    try {
+      SignedPreKeyStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+      if (migratedStore != null) return migratedStore.loadSignedPreKeys();
+
+      synchronized (FILE_LOCK) {
+        File                     directory = getSignedPreKeyDirectory();
+        List<SignedPreKeyRecord> results   = new LinkedList<>();
+
+        for (File signedPreKeyFile : directory.listFiles()) {
+          try {
+            results.add(new SignedPreKeyRecord(loadSerializedRecord(signedPreKeyFile)));
+          } catch (IOException | InvalidMessageException e) {
+            Log.w(TAG, e);
+          }
         }
-      }
 
-      return results;
+        return results;
+      }
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
     }
   }
 
   @Override
   public void storePreKey(int preKeyId, PreKeyRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
+    MIGRATION_LOCK.readLock().lock();
+
+    try {
+      BatchPreKeyStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+
+      if (migratedStore != null) {
+        migratedStore.storePreKey(preKeyId, record);
+        return;
+      }
+
+      synchronized (FILE_LOCK) {
         storeSerializedRecord(getPreKeyFile(preKeyId), record.serialize());
-      } catch (IOException e) {
-        throw new AssertionError(e);
       }
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void storePreKeys(List<PreKeyRecord> records) {
+    MIGRATION_LOCK.readLock().lock();
+
+    try {
+      BatchPreKeyStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+
+      if (migratedStore != null) {
+        migratedStore.storePreKeys(records);
+        return;
+      }
+
+      synchronized (FILE_LOCK) {
+        for (PreKeyRecord record : records) {
+          storeSerializedRecord(getPreKeyFile(record.getId()), record.serialize());
+        }
+      }
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
     }
   }
 
   @Override
   public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
+    MIGRATION_LOCK.readLock().lock();
+
+    try {
+      SignedPreKeyStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+
+      if (migratedStore != null) {
+        migratedStore.storeSignedPreKey(signedPreKeyId, record);
+        return;
+      }
+
+      synchronized (FILE_LOCK) {
         storeSerializedRecord(getSignedPreKeyFile(signedPreKeyId), record.serialize());
-      } catch (IOException e) {
-        throw new AssertionError(e);
       }
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
     }
   }
 
   @Override
   public boolean containsPreKey(int preKeyId) {
-    File record = getPreKeyFile(preKeyId);
-    return record.exists();
+    MIGRATION_LOCK.readLock().lock();
+
+    try {
+      BatchPreKeyStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+      if (migratedStore != null) return migratedStore.containsPreKey(preKeyId);
+
+      return getPreKeyFile(preKeyId).exists();
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
+    }
   }
 
   @Override
   public boolean containsSignedPreKey(int signedPreKeyId) {
-    File record = getSignedPreKeyFile(signedPreKeyId);
-    return record.exists();
-  }
+    MIGRATION_LOCK.readLock().lock();
 
+    try {
+      SignedPreKeyStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+      if (migratedStore != null) return migratedStore.containsSignedPreKey(signedPreKeyId);
+
+      return getSignedPreKeyFile(signedPreKeyId).exists();
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
+    }
+  }
 
   @Override
   public void removePreKey(int preKeyId) {
-    File record = getPreKeyFile(preKeyId);
-    record.delete();
+    MIGRATION_LOCK.readLock().lock();
+
+    try {
+      BatchPreKeyStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+
+      if (migratedStore != null) migratedStore.removePreKey(preKeyId);
+      else                       getPreKeyFile(preKeyId).delete();
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
+    }
   }
 
   @Override
   public void removeSignedPreKey(int signedPreKeyId) {
-    File record = getSignedPreKeyFile(signedPreKeyId);
-    record.delete();
+    MIGRATION_LOCK.readLock().lock();
+
+    try {
+      SignedPreKeyStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+
+      if (migratedStore != null) migratedStore.removeSignedPreKey(signedPreKeyId);
+      else                       getSignedPreKeyFile(signedPreKeyId).delete();
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
+    }
+  }
+
+  List<Integer> getPreKeyIds() {
+    return getRecordIds(getPreKeyDirectory());
+  }
+
+  List<Integer> getSignedPreKeyIds() {
+    return getRecordIds(getSignedPreKeyDirectory());
+  }
+
+  /**
+   * Removes the given pre-key and signed pre-key files, once they've been migrated
+   * elsewhere.  The files tracking the next key ids are left alone.
+   */
+  void deleteRecordFiles(List<Integer> preKeyIds, List<Integer> signedPreKeyIds) {
+    synchronized (FILE_LOCK) {
+      for (int preKeyId : preKeyIds) {
+        getPreKeyFile(preKeyId).delete();
+      }
+
+      for (int signedPreKeyId : signedPreKeyIds) {
+        getSignedPreKeyFile(signedPreKeyId).delete();
+      }
+    }
+  }
+
+  private List<Integer> getRecordIds(File directory) {
+    List<Integer> results  = new LinkedList<>();
+    String[]      children = directory.list();
+
+    if (children == null) return results;
+
+    for (String child : children) {
+      try {
+        results.add(Integer.parseInt(child));
+      } catch (NumberFormatException e) {
+        // Not a record, e.g. the next id index.
+      }
+    }
+
+    return results;
   }
 
   private byte[] loadSerializedRecord(File recordFile)
@@ -8,6 +8,7 @@ import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.util.Conversions;
+import org.thoughtcrime.securesms.util.LRUCache;
 import org.whispersystems.libaxolotl.AxolotlAddress;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.whispersystems.libaxolotl.state.SessionRecord;
@@ -23,19 +24,39 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
+import static org.thoughtcrime.securesms.crypto.storage.AxolotlStoreFactory.MIGRATION_LOCK;
 import static org.whispersystems.libaxolotl.state.StorageProtos.SessionStructure;
 
 public class TextSecureSessionStore implements SessionStore {
 
   private static final String TAG                   = TextSecureSessionStore.class.getSimpleName();
   private static final String SESSIONS_DIRECTORY_V2 = "sessions-v2";
-  private static final Object FILE_LOCK             = new Object();
+  private static final String SESSIONS_INDEX_V2     = "sessions-v2.index";
 
   private static final int SINGLE_STATE_VERSION   = 1;
   private static final int ARCHIVE_STATES_VERSION = 2;
   private static final int CURRENT_VERSION        = 2;
 
+  private static final int MAX_CACHED_SESSIONS = 500;
+  private static final int LOCK_STRIPES        = 32;
+
+  private static final Object[] SESSION_LOCKS = new Object[LOCK_STRIPES];
+
+  static {
+    for (int i=0;i<SESSION_LOCKS.length;i++) {
+      SESSION_LOCKS[i] = new Object();
+    }
+  }
+
+  // Decrypted sessions, keyed by session file name.  Stores are written through to disk
+  // before storeSession() returns, since the caller goes on to delete the pre-key or push
+  // message it came from, and a session only goes into the cache once it's on disk.
+  private static final Map<String, CachedSession> cache = new LRUCache<>(MAX_CACHED_SESSIONS);
+
+  private static SessionIndex sessionIndex;
+
   private final Context      context;
   private final MasterSecret masterSecret;
 
@@ -46,65 +67,95 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public SessionRecord loadSession(AxolotlAddress address) {
-    synchronized (FILE_LOCK) {
-      try {
-        MasterCipher    cipher = new MasterCipher(masterSecret);
-        FileInputStream in     = new FileInputStream(getSessionFile(address));
-
-        int versionMarker  = readInteger(in);
-
-        if (versionMarker > CURRENT_VERSION) {
-          throw new AssertionError("Unknown version: " + versionMarker);
-        }
-
-        byte[] serialized = cipher.decryptBytes(readBlob(in));
-        in.close();
-
-        if (versionMarker == SINGLE_STATE_VERSION) {
-          SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
-          SessionState     sessionState     = new SessionState(sessionStructure);
-          return new SessionRecord(sessionState);
-        } else if (versionMarker == ARCHIVE_STATES_VERSION) {
-          return new SessionRecord(serialized);
-        } else {
-          throw new AssertionError("Unknown version: " + versionMarker);
-        }
-      } catch (InvalidMessageException | IOException e) {
-        Log.w(TAG, "No existing session information found.");
-        return new SessionRecord();
-      }
+    MIGRATION_LOCK.readLock().lock();
+
+    try {
+      SessionStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+      if (migratedStore != null) return migratedStore.loadSession(address);
+
+      return getCachedSession(getSessionName(address)).getRecord();
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
     }
   }
 
   @Override
   public void storeSession(AxolotlAddress address, SessionRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
-        MasterCipher     masterCipher = new MasterCipher(masterSecret);
-        RandomAccessFile sessionFile  = new RandomAccessFile(getSessionFile(address), "rw");
-        FileChannel      out          = sessionFile.getChannel();
+    MIGRATION_LOCK.readLock().lock();
 
-        out.position(0);
-        writeInteger(CURRENT_VERSION, out);
-        writeBlob(masterCipher.encryptBytes(record.serialize()), out);
-        out.truncate(out.position());
+    try {
+      SessionStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
 
-        sessionFile.close();
-      } catch (IOException e) {
-        throw new AssertionError(e);
+      if (migratedStore != null) migratedStore.storeSession(address, record);
+      else                       storeSessionFile(address, record);
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
+    }
+  }
+
+  private void storeSessionFile(AxolotlAddress address, SessionRecord record) {
+    String        sessionName = getSessionName(address);
+    CachedSession session     = new CachedSession(record.serialize(), record.getSessionState().hasSenderChain());
+
+    synchronized (getLock(sessionName)) {
+      synchronized (cache) {
+        cache.remove(sessionName);
       }
+
+      writeSessionFile(sessionName, session.serialized);
+
+      synchronized (cache) {
+        cache.put(sessionName, session);
+      }
+
+      SessionIndex index = getSessionIndex();
+      index.add(sessionName);
+      index.write();
     }
   }
 
   @Override
   public boolean containsSession(AxolotlAddress address) {
-    return getSessionFile(address).exists() &&
-           loadSession(address).getSessionState().hasSenderChain();
+    MIGRATION_LOCK.readLock().lock();
+
+    try {
+      SessionStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+      if (migratedStore != null) return migratedStore.containsSession(address);
+
+      return getCachedSession(getSessionName(address)).hasSenderChain;
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
+    }
   }
 
   @Override
   public void deleteSession(AxolotlAddress address) {
-    getSessionFile(address).delete();
+    MIGRATION_LOCK.readLock().lock();
+
+    try {
+      SessionStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+
+      if (migratedStore != null) migratedStore.deleteSession(address);
+      else                       deleteSessionFile(address);
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
+    }
+  }
+
+  private void deleteSessionFile(AxolotlAddress address) {
+    String sessionName = getSessionName(address);
+
+    synchronized (getLock(sessionName)) {
+      synchronized (cache) {
+        cache.put(sessionName, CachedSession.NONE);
+      }
+
+      new File(getSessionDirectory(), sessionName).delete();
+
+      SessionIndex index = getSessionIndex();
+      index.remove(sessionName);
+      index.write();
+    }
   }
 
   @Override
@@ -120,31 +171,174 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public List<Integer> getSubDeviceSessions(String name) {
-    long          recipientId = RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
-    List<Integer> results     = new LinkedList<>();
-    File          parent      = getSessionDirectory();
-    String[]      children    = parent.list();
+    MIGRATION_LOCK.readLock().lock();
 
-    if (children == null) return results;
+    try {
+      SessionStore migratedStore = AxolotlStoreFactory.getMigratedStore(context, masterSecret);
+      if (migratedStore != null) return migratedStore.getSubDeviceSessions(name);
 
-    for (String child : children) {
-      try {
-        String[] parts              = child.split("[.]", 2);
-        long     sessionRecipientId = Long.parseLong(parts[0]);
-
-        if (sessionRecipientId == recipientId && parts.length > 1) {
-          results.add(Integer.parseInt(parts[1]));
-        }
-      } catch (NumberFormatException e) {
-        Log.w(TAG, e);
+      long recipientId = RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
+      return getSessionIndex().getSubDevices(recipientId);
+    } finally {
+      MIGRATION_LOCK.readLock().unlock();
+    }
+  }
+
+  /**
+   * Drops every decrypted session from memory.  Called when the master secret is cleared.
+   */
+  public static void clearCache() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * Drops every decrypted session and the loaded session index.  Called before a backup is
+   * restored over the session directory, so that nothing from before the restore is served
+   * in place of what's restored.
+   */
+  public static void reset() {
+    synchronized (cache) {
+      cache.clear();
+    }
+
+    synchronized (TextSecureSessionStore.class) {
+      sessionIndex = null;
+    }
+  }
+
+  /**
+   * Loads a session by its file name, for migrating sessions out of this store.
+   *
+   * @return the session, or null if it couldn't be read.
+   */
+  SessionRecord loadSession(String sessionName) {
+    CachedSession session = getCachedSession(sessionName);
+
+    if (session == CachedSession.NONE) return null;
+    else                               return session.getRecord();
+  }
+
+  /**
+   * @return the names of every session written to disk.
+   */
+  List<String> getSessionNames() {
+    String[]     children = getSessionDirectory().list();
+    List<String> results  = new LinkedList<>();
+
+    if (children != null) {
+      for (String child : children) {
+        if (SessionIndex.parseSessionName(child) != null) results.add(child);
       }
     }
 
     return results;
   }
 
-  private File getSessionFile(AxolotlAddress address) {
-    return new File(getSessionDirectory(), getSessionName(address));
+  /**
+   * Removes the given sessions from disk, and every session from memory, once they've been
+   * migrated elsewhere.
+   */
+  void deleteSessionFiles(List<String> sessionNames) {
+    for (String sessionName : sessionNames) {
+      synchronized (getLock(sessionName)) {
+        new File(getSessionDirectory(), sessionName).delete();
+      }
+    }
+
+    synchronized (cache) {
+      cache.clear();
+    }
+
+    synchronized (TextSecureSessionStore.class) {
+      sessionIndex = null;
+      new File(context.getFilesDir(), SESSIONS_INDEX_V2).delete();
+    }
+  }
+
+  private CachedSession getCachedSession(String sessionName) {
+    synchronized (getLock(sessionName)) {
+      CachedSession session;
+
+      synchronized (cache) {
+        session = cache.get(sessionName);
+      }
+
+      if (session != null) return session;
+
+      session = readSessionFile(sessionName);
+
+      synchronized (cache) {
+        cache.put(sessionName, session);
+      }
+
+      return session;
+    }
+  }
+
+  private CachedSession readSessionFile(String sessionName) {
+    try {
+      MasterCipher    cipher = new MasterCipher(masterSecret);
+      FileInputStream in     = new FileInputStream(new File(getSessionDirectory(), sessionName));
+
+      int versionMarker  = readInteger(in);
+
+      if (versionMarker > CURRENT_VERSION) {
+        throw new AssertionError("Unknown version: " + versionMarker);
+      }
+
+      byte[] serialized = cipher.decryptBytes(readBlob(in));
+      in.close();
+
+      SessionRecord record;
+
+      if (versionMarker == SINGLE_STATE_VERSION) {
+        SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
+        SessionState     sessionState     = new SessionState(sessionStructure);
+        record = new SessionRecord(sessionState);
+      } else if (versionMarker == ARCHIVE_STATES_VERSION) {
+        record = new SessionRecord(serialized);
+      } else {
+        throw new AssertionError("Unknown version: " + versionMarker);
+      }
+
+      return new CachedSession(record.serialize(), record.getSessionState().hasSenderChain());
+    } catch (InvalidMessageException | IOException e) {
+      Log.w(TAG, "No existing session information found.");
+      return CachedSession.NONE;
+    }
+  }
+
+  private void writeSessionFile(String sessionName, byte[] serialized) {
+    try {
+      MasterCipher     masterCipher = new MasterCipher(masterSecret);
+      RandomAccessFile sessionFile  = new RandomAccessFile(new File(getSessionDirectory(), sessionName), "rw");
+      FileChannel      out          = sessionFile.getChannel();
+
+      out.position(0);
+      writeInteger(CURRENT_VERSION, out);
+      writeBlob(masterCipher.encryptBytes(serialized), out);
+      out.truncate(out.position());
+
+      sessionFile.close();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private SessionIndex getSessionIndex() {
+    synchronized (TextSecureSessionStore.class) {
+      if (sessionIndex == null) {
+        sessionIndex = new SessionIndex(getSessionDirectory(), new File(context.getFilesDir(), SESSIONS_INDEX_V2));
+      }
+
+      return sessionIndex;
+    }
+  }
+
+  private static Object getLock(String sessionName) {
+    return SESSION_LOCKS[(sessionName.hashCode() & 0x7fffffff) % SESSION_LOCKS.length];
   }
 
   private File getSessionDirectory() {
@@ -192,4 +386,25 @@ public class TextSecureSessionStore implements SessionStore {
     out.write(ByteBuffer.wrap(valueBytes));
   }
 
+  private static class CachedSession {
+    static final CachedSession NONE = new CachedSession(null, false);
+
+    private final byte[]  serialized;
+    private final boolean hasSenderChain;
+
+    CachedSession(byte[] serialized, boolean hasSenderChain) {
+      this.serialized     = serialized;
+      this.hasSenderChain = hasSenderChain;
+    }
+
+    SessionRecord getRecord() {
+      if (serialized == null) return new SessionRecord();
+
+      try {
+        return new SessionRecord(serialized);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
 }
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Pre-keys, signed pre-keys and sessions, stored as opaque (already encrypted) blobs.
+ * Pre-keys are keyed by their id, sessions by recipient id and device id.
+ */
+public class AxolotlRecordDatabase extends Database {
+
+  public static final int TYPE_PREKEY        = 1;
+  public static final int TYPE_SIGNED_PREKEY = 2;
+  public static final int TYPE_SESSION       = 3;
+
+  private static final String TABLE_NAME = "axolotl_records";
+  private static final String ID         = "_id";
+  private static final String TYPE       = "type";
+  private static final String RECORD_ID  = "record_id";
+  private static final String DEVICE     = "device";
+  private static final String RECORD     = "record";
+
+  private static final String RECORD_WHERE = TYPE + " = ? AND " + RECORD_ID + " = ? AND " + DEVICE + " = ?";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+      TYPE + " INTEGER, " + RECORD_ID + " INTEGER, " + DEVICE + " INTEGER DEFAULT 0, " + RECORD + " BLOB);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE UNIQUE INDEX IF NOT EXISTS axolotl_records_type_record_index ON " + TABLE_NAME + " (" + TYPE + ", " + RECORD_ID + ", " + DEVICE + ");",
+  };
+
+  public AxolotlRecordDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public byte[] getRecord(int type, long recordId, int device) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {RECORD}, RECORD_WHERE,
+                              getRecordArgs(type, recordId, device), null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getBlob(0);
+      else                                        return null;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  public List<byte[]> getRecords(int type) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    List<byte[]>   results  = new LinkedList<>();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {RECORD}, TYPE + " = ?",
+                              new String[] {String.valueOf(type)}, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getBlob(0));
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  public List<Integer> getDevices(int type, long recordId) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    List<Integer>  results  = new LinkedList<>();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {DEVICE}, TYPE + " = ? AND " + RECORD_ID + " = ?",
+                              new String[] {String.valueOf(type), String.valueOf(recordId)},
+                              null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getInt(0));
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  public boolean containsRecord(int type, long recordId, int device) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {ID}, RECORD_WHERE,
+                              getRecordArgs(type, recordId, device), null, null, null);
+
+      return cursor != null && cursor.moveToFirst();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  public void setRecord(Record record) {
+    setRecords(Collections.singletonList(record));
+  }
+
+  public void setRecords(List<Record> records) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+
+    try {
+      ContentValues values = new ContentValues(4);
+
+      for (Record record : records) {
+        values.put(TYPE, record.type);
+        values.put(RECORD_ID, record.recordId);
+        values.put(DEVICE, record.device);
+        values.put(RECORD, record.record);
+
+        database.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
+  public void deleteRecord(int type, long recordId, int device) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.delete(TABLE_NAME, RECORD_WHERE, getRecordArgs(type, recordId, device));
+  }
+
+  public void deleteRecords(int type, long recordId) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.delete(TABLE_NAME, TYPE + " = ? AND " + RECORD_ID + " = ?",
+                    new String[] {String.valueOf(type), String.valueOf(recordId)});
+  }
+
+  private String[] getRecordArgs(int type, long recordId, int device) {
+    return new String[] {String.valueOf(type), String.valueOf(recordId), String.valueOf(device)};
+  }
+
+  public static class Record {
+    private final int    type;
+    private final long   recordId;
+    private final int    device;
+    private final byte[] record;
+
+    public Record(int type, long recordId, int device, byte[] record) {
+      this.type     = type;
+      this.recordId = recordId;
+      this.device   = device;
+      this.record   = record;
+    }
+  }
+}
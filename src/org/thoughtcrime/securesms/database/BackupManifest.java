@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import org.thoughtcrime.securesms.util.Hex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The list of files in one backup snapshot: each file's path relative to the app data
+ * directory, its size and mtime when it was backed up, and the SHA-1 of its contents.
+ *
+ * Stored as one tab separated line per file.
+ */
+class BackupManifest {
+
+  private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+  Entry get(String path) {
+    return entries.get(path);
+  }
+
+  void put(Entry entry) {
+    entries.put(entry.path, entry);
+  }
+
+  Collection<Entry> getEntries() {
+    return entries.values();
+  }
+
+  static BackupManifest read(File file) throws IOException {
+    BackupManifest manifest = new BackupManifest();
+    BufferedReader in       = new BufferedReader(new FileReader(file));
+
+    try {
+      String line;
+
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split("\t");
+
+        if (fields.length != 4) {
+          throw new IOException("Bad manifest line: " + line);
+        }
+
+        try {
+          manifest.put(new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+        } catch (NumberFormatException e) {
+          throw new IOException(e);
+        }
+      }
+    } finally {
+      in.close();
+    }
+
+    return manifest;
+  }
+
+  void write(File file) throws IOException {
+    File   temporaryFile = new File(file.getAbsolutePath() + ".tmp");
+    Writer out           = new OutputStreamWriter(new FileOutputStream(temporaryFile));
+
+    try {
+      for (Entry entry : entries.values()) {
+        out.write(entry.path + "\t" + entry.size + "\t" + entry.modified + "\t" + entry.hash + "\n");
+      }
+    } finally {
+      out.close();
+    }
+
+    if (!temporaryFile.renameTo(file)) {
+      throw new IOException("Rename failed: " + file.getAbsolutePath());
+    }
+  }
+
+  static String hash(File file) throws IOException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA1");
+      InputStream   in     = new FileInputStream(file);
+      byte[]        buffer = new byte[32 * 1024];
+      int           read;
+
+      try {
+        while ((read = in.read(buffer)) != -1) {
+          digest.update(buffer, 0, read);
+        }
+      } finally {
+        in.close();
+      }
+
+      return Hex.toStringCondensed(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Copies a file, hashing the bytes as they're written rather than reading the source a
+   * second time, so the hash describes exactly what ended up in the copy.
+   *
+   * @return The SHA-1 of the copied bytes.
+   */
+  static String copy(File from, File to) throws IOException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA1");
+      InputStream   in     = new FileInputStream(from);
+      OutputStream  out    = new FileOutputStream(to);
+      byte[]        buffer = new byte[32 * 1024];
+      int           read;
+
+      try {
+        while ((read = in.read(buffer)) != -1) {
+          digest.update(buffer, 0, read);
+          out.write(buffer, 0, read);
+        }
+      } finally {
+        in.close();
+        out.close();
+      }
+
+      return Hex.toStringCondensed(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static class Entry {
+    final String path;
+    final long   size;
+    final long   modified;
+    final String hash;
+
+    Entry(String path, long size, long modified, String hash) {
+      this.path     = path;
+      this.size     = size;
+      this.modified = modified;
+      this.hash     = hash;
+    }
+
+    boolean matches(File file) {
+      return file.length() == size && file.lastModified() == modified;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * How far a long running import or migration has got, by name.  Checkpoints are set from
+ * inside the transaction that commits the work they describe, so the two can't disagree
+ * after the process is killed.
+ */
+public class CheckpointDatabase extends Database {
+
+  private static final String TABLE_NAME = "checkpoints";
+  private static final String ID         = "_id";
+  private static final String NAME       = "name";
+  private static final String VALUE      = "value";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+      NAME + " TEXT UNIQUE, " + VALUE + " TEXT);";
+
+  public CheckpointDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public String getCheckpoint(String name) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {VALUE}, NAME + " = ?",
+                              new String[] {name}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getString(0);
+      else                                        return null;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Sets or, with a null value, clears a checkpoint.  Joins the calling thread's
+   * transaction if there is one.
+   */
+  public void setCheckpoint(String name, String value) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+    if (value == null) {
+      database.delete(TABLE_NAME, NAME + " = ?", new String[] {name});
+    } else {
+      ContentValues values = new ContentValues(2);
+      values.put(NAME, name);
+      values.put(VALUE, value);
+
+      database.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+  }
+}
@@ -43,11 +43,11 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(long threadId) {
-    context.getContentResolver().notifyChange(Uri.parse(CONVERSATION_URI + threadId), null);
+    DatabaseNotifier.getInstance(context).notifyChange(Uri.parse(CONVERSATION_URI + threadId));
   }
 
   protected void notifyConversationListListeners() {
-    context.getContentResolver().notifyChange(Uri.parse(CONVERSATION_LIST_URI), null);
+    DatabaseNotifier.getInstance(context).notifyChange(Uri.parse(CONVERSATION_LIST_URI));
   }
 
   protected void setNotifyConverationListeners(Cursor cursor, long threadId) {
@@ -60,7 +60,12 @@ public class DatabaseFactory {
   private static final int INTRODUCED_PART_DATA_SIZE_VERSION  = 14;
   private static final int INTRODUCED_THUMBNAILS_VERSION      = 15;
   private static final int INTRODUCED_IDENTITY_COLUMN_VERSION = 16;
-  private static final int DATABASE_VERSION                   = 16;
+  private static final int INTRODUCED_TIMELINE_VERSION        = 17;
+  private static final int INTRODUCED_THREAD_COUNT_VERSION    = 18;
+  private static final int INTRODUCED_AXOLOTL_RECORDS_VERSION = 20;
+  private static final int INTRODUCED_PUSH_BLOB_VERSION       = 21;
+  private static final int INTRODUCED_CHECKPOINTS_VERSION     = 22;
+  private static final int DATABASE_VERSION                   = 22;
 
   private static final String DATABASE_NAME    = "messages.db";
   private static final Object lock             = new Object();
@@ -81,6 +86,8 @@ public class DatabaseFactory {
   private final DraftDatabase draftDatabase;
   private final PushDatabase pushDatabase;
   private final GroupDatabase groupDatabase;
+  private final AxolotlRecordDatabase axolotlRecordDatabase;
+  private final CheckpointDatabase checkpointDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -139,6 +146,14 @@ public class DatabaseFactory {
     return getInstance(context).groupDatabase;
   }
 
+  public static AxolotlRecordDatabase getAxolotlRecordDatabase(Context context) {
+    return getInstance(context).axolotlRecordDatabase;
+  }
+
+  public static CheckpointDatabase getCheckpointDatabase(Context context) {
+    return getInstance(context).checkpointDatabase;
+  }
+
   private DatabaseFactory(Context context) {
     this.databaseHelper   = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
     this.sms              = new SmsDatabase(context, databaseHelper);
@@ -153,6 +168,8 @@ public class DatabaseFactory {
     this.draftDatabase    = new DraftDatabase(context, databaseHelper);
     this.pushDatabase     = new PushDatabase(context, databaseHelper);
     this.groupDatabase    = new GroupDatabase(context, databaseHelper);
+    this.axolotlRecordDatabase = new AxolotlRecordDatabase(context, databaseHelper);
+    this.checkpointDatabase    = new CheckpointDatabase(context, databaseHelper);
   }
 
   public void reset(Context context) {
@@ -170,6 +187,8 @@ public class DatabaseFactory {
     this.draftDatabase.reset(databaseHelper);
     this.pushDatabase.reset(databaseHelper);
     this.groupDatabase.reset(databaseHelper);
+    this.axolotlRecordDatabase.reset(databaseHelper);
+    this.checkpointDatabase.reset(databaseHelper);
     old.close();
 
     this.address.reset(context);
@@ -479,6 +498,9 @@ public class DatabaseFactory {
       db.execSQL(DraftDatabase.CREATE_TABLE);
       db.execSQL(PushDatabase.CREATE_TABLE);
       db.execSQL(GroupDatabase.CREATE_TABLE);
+      db.execSQL(MmsSmsDatabase.CREATE_TABLE);
+      db.execSQL(AxolotlRecordDatabase.CREATE_TABLE);
+      db.execSQL(CheckpointDatabase.CREATE_TABLE);
 
       executeStatements(db, SmsDatabase.CREATE_INDEXS);
       executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -487,6 +509,11 @@ public class DatabaseFactory {
       executeStatements(db, MmsAddressDatabase.CREATE_INDEXS);
       executeStatements(db, DraftDatabase.CREATE_INDEXS);
       executeStatements(db, GroupDatabase.CREATE_INDEXS);
+      executeStatements(db, MmsSmsDatabase.CREATE_INDEXS);
+      executeStatements(db, AxolotlRecordDatabase.CREATE_INDEXS);
+      executeStatements(db, PushDatabase.CREATE_INDEXS);
+      executeStatements(db, MmsSmsDatabase.CREATE_TRIGGERS);
+      executeStatements(db, ThreadDatabase.CREATE_TRIGGERS);
     }
 
     @Override
@@ -717,6 +744,62 @@ public class DatabaseFactory {
         db.execSQL("ALTER TABLE mms ADD COLUMN network_failures TEXT");
       }
 
+      if (oldVersion < INTRODUCED_TIMELINE_VERSION) {
+        db.execSQL("CREATE TABLE timeline (_id INTEGER PRIMARY KEY, thread_id INTEGER, date_received INTEGER, read INTEGER DEFAULT 0, transport_type TEXT, message_id INTEGER);");
+        executeStatements(db, new String[] {
+            "CREATE INDEX IF NOT EXISTS timeline_thread_date_index ON timeline (thread_id, date_received);",
+            "CREATE INDEX IF NOT EXISTS timeline_read_index ON timeline (read);",
+            "CREATE UNIQUE INDEX IF NOT EXISTS timeline_message_index ON timeline (transport_type, message_id);"
+        });
+
+        db.execSQL("INSERT INTO timeline (thread_id, date_received, read, transport_type, message_id) " +
+                   "SELECT thread_id, date, read, 'sms', _id FROM sms;");
+        db.execSQL("INSERT INTO timeline (thread_id, date_received, read, transport_type, message_id) " +
+                   "SELECT thread_id, date_received * 1000, read, 'mms', _id FROM mms;");
+
+        executeStatements(db, MmsSmsDatabase.CREATE_TRIGGERS);
+      }
+
+      if (oldVersion < INTRODUCED_THREAD_COUNT_VERSION) {
+        db.execSQL("UPDATE thread SET message_count = (SELECT COUNT(*) FROM timeline WHERE timeline.thread_id = thread._id);");
+        executeStatements(db, ThreadDatabase.CREATE_TRIGGERS);
+      }
+
+      if (oldVersion < INTRODUCED_AXOLOTL_RECORDS_VERSION) {
+        db.execSQL("CREATE TABLE axolotl_records (_id INTEGER PRIMARY KEY, type INTEGER, record_id INTEGER, device INTEGER DEFAULT 0, record BLOB);");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS axolotl_records_type_record_index ON axolotl_records (type, record_id, device);");
+      }
+
+      if (oldVersion < INTRODUCED_PUSH_BLOB_VERSION) {
+        Cursor pushCursor = db.query("push", new String[] {"_id", "body"}, null, null, null, null, null);
+
+        try {
+          ContentValues values = new ContentValues(1);
+
+          while (pushCursor != null && pushCursor.moveToNext()) {
+            long   id   = pushCursor.getLong(0);
+            String body = pushCursor.getString(1);
+
+            try {
+              values.put("body", Base64.decode(body));
+              db.update("push", values, "_id = ?", new String[] {String.valueOf(id)});
+            } catch (IOException e) {
+              Log.w("DatabaseFactory", e);
+              db.delete("push", "_id = ?", new String[] {String.valueOf(id)});
+            }
+          }
+        } finally {
+          if (pushCursor != null)
+            pushCursor.close();
+        }
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS push_source_index ON push (source);");
+      }
+
+      if (oldVersion < INTRODUCED_CHECKPOINTS_VERSION) {
+        db.execSQL("CREATE TABLE checkpoints (_id INTEGER PRIMARY KEY, name TEXT UNIQUE, value TEXT);");
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects content change notifications from the databases and delivers each distinct
+ * URI at most once per frame, so that a burst of status updates to a thread results in
+ * a single requery by its loaders.
+ *
+ * A pending frame is pushed back while notifications keep arriving, which lets consecutive
+ * transactions coalesce, but never beyond {@link #MAX_DELAY_MILLIS} from the first one.
+ */
+public class DatabaseNotifier {
+
+  private static final long FRAME_MILLIS     = 50;
+  private static final long MAX_DELAY_MILLIS = 250;
+
+  private static DatabaseNotifier instance;
+
+  private final Context    context;
+  private final Handler    handler;
+  private final Set<Uri>   pending   = new LinkedHashSet<>();
+  private final AtomicLong requested = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+
+  private long firstPendingTime;
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  public static synchronized DatabaseNotifier getInstance(Context context) {
+    if (instance == null)
+      instance = new DatabaseNotifier(context.getApplicationContext());
+
+    return instance;
+  }
+
+  private DatabaseNotifier(Context context) {
+    HandlerThread thread = new HandlerThread("DatabaseNotifier");
+    thread.start();
+
+    this.context = context;
+    this.handler = new Handler(thread.getLooper());
+  }
+
+  public void notifyChange(Uri uri) {
+    synchronized (pending) {
+      long now = SystemClock.uptimeMillis();
+
+      if (pending.isEmpty()) firstPendingTime = now;
+      pending.add(uri);
+      requested.incrementAndGet();
+
+      handler.removeCallbacks(flushTask);
+      handler.postAtTime(flushTask, Math.min(now + FRAME_MILLIS, firstPendingTime + MAX_DELAY_MILLIS));
+    }
+  }
+
+  public long getRequestedCount() {
+    return requested.get();
+  }
+
+  public long getDeliveredCount() {
+    return delivered.get();
+  }
+
+  /**
+   * @return the number of notifications which were absorbed into another, each of
+   *         which would otherwise have caused a requery.
+   */
+  public long getCoalescedCount() {
+    synchronized (pending) {
+      return requested.get() - delivered.get() - pending.size();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "DatabaseNotifier[requested=" + getRequestedCount() + ", delivered=" + getDeliveredCount() +
+           ", coalesced=" + getCoalescedCount() + "]";
+  }
+
+  private void flush() {
+    List<Uri> uris;
+
+    synchronized (pending) {
+      uris = new LinkedList<>(pending);
+      pending.clear();
+      delivered.addAndGet(uris.size());
+    }
+
+    for (Uri uri : uris) {
+      context.getContentResolver().notifyChange(uri, null);
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.crypto.MasterCipher;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.model.DisplayRecord;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A wrapper around a conversation cursor (as returned by {@link MmsSmsDatabase#getConversation(long)})
+ * which decrypts message bodies a window at a time on a worker pool, so that binding a row
+ * doesn't need to touch {@link MasterCipher} on the calling thread.
+ *
+ * Readers created over this cursor pick up the decrypted {@link DisplayRecord.Body} for the
+ * current row through {@link #getDecryptedBody()}, and fall back to decrypting inline for rows
+ * outside of any decrypted window.
+ */
+public class DecryptingCursor extends CursorWrapper {
+
+  private static final String TAG = DecryptingCursor.class.getSimpleName();
+
+  public  static final int WINDOW_SIZE = 100;
+  private static final int BATCH_SIZE  = 25;
+
+  private static final ExecutorService decryptionPool =
+      Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+  private final Context                                  context;
+  private final MasterCipher                             masterCipher;
+  private final AtomicReferenceArray<DisplayRecord.Body> bodies;
+  private final PlaintextCache                           plaintextCache = PlaintextCache.getInstance();
+
+  private volatile int decryptedFrom;
+
+  public DecryptingCursor(Context context, MasterSecret masterSecret, Cursor cursor) {
+    super(cursor);
+    this.context       = context.getApplicationContext();
+    this.masterCipher  = new MasterCipher(masterSecret);
+    this.bodies        = new AtomicReferenceArray<>(cursor.getCount());
+    this.decryptedFrom = cursor.getCount();
+  }
+
+  /**
+   * Decrypts the newest window of rows, blocking until every body in it is available.
+   * Must be called from the thread which owns the cursor, typically a loader thread.
+   */
+  public void decryptNewestWindow() {
+    int count = getCount();
+    int start = Math.max(0, count - WINDOW_SIZE);
+
+    try {
+      for (Future<?> future : submit(readRows(start, count))) {
+        future.get();
+      }
+
+      decryptedFrom = start;
+    } catch (InterruptedException | ExecutionException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  /**
+   * Schedules decryption of the window preceding what has already been decrypted
+   * when the given position approaches it.  Must be called from the thread which
+   * owns the cursor, typically from an adapter's bind.
+   */
+  public void prefetch(int position) {
+    int from = decryptedFrom;
+
+    if (from == 0 || position >= from + (WINDOW_SIZE / 2)) return;
+
+    int start = Math.max(0, from - WINDOW_SIZE);
+
+    decryptedFrom = start;
+    submit(readRows(start, from));
+  }
+
+  public DisplayRecord.Body getDecryptedBody() {
+    int position = getPosition();
+
+    if (position < 0 || position >= bodies.length()) return null;
+    else                                            return bodies.get(position);
+  }
+
+  private List<EncryptedRow> readRows(int start, int end) {
+    List<EncryptedRow> rows     = new LinkedList<>();
+    int                position = getPosition();
+
+    try {
+      for (int i=start;i<end;i++) {
+        if (!moveToPosition(i)) break;
+
+        String transport = getString(getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
+        String body      = getString(getColumnIndexOrThrow(MmsSmsColumns.BODY));
+        long   type;
+
+        if (MmsSmsDatabase.MMS_TRANSPORT.equals(transport)) {
+          type = getLong(getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
+        } else {
+          type = getLong(getColumnIndexOrThrow(SmsDatabase.TYPE));
+        }
+
+        if (!TextUtils.isEmpty(body) && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
+          long   id        = getLong(getColumnIndexOrThrow(MmsSmsColumns.ID));
+          int    table     = MmsSmsDatabase.MMS_TRANSPORT.equals(transport) ? PlaintextCache.MMS : PlaintextCache.SMS;
+          String plaintext = plaintextCache.get(table, id, body);
+
+          if (plaintext != null) bodies.set(i, new DisplayRecord.Body(plaintext, true));
+          else                   rows.add(new EncryptedRow(i, table, id, body));
+        }
+      }
+    } finally {
+      moveToPosition(position);
+    }
+
+    return rows;
+  }
+
+  private List<Future<?>> submit(List<EncryptedRow> rows) {
+    List<Future<?>>    futures = new LinkedList<>();
+    List<EncryptedRow> batch   = new LinkedList<>();
+
+    for (EncryptedRow row : rows) {
+      batch.add(row);
+
+      if (batch.size() >= BATCH_SIZE) {
+        futures.add(decryptionPool.submit(new DecryptTask(batch)));
+        batch = new LinkedList<>();
+      }
+    }
+
+    if (!batch.isEmpty()) {
+      futures.add(decryptionPool.submit(new DecryptTask(batch)));
+    }
+
+    return futures;
+  }
+
+  private class DecryptTask implements Callable<Void> {
+
+    private final List<EncryptedRow> rows;
+
+    public DecryptTask(List<EncryptedRow> rows) {
+      this.rows = rows;
+    }
+
+    @Override
+    public Void call() {
+      for (EncryptedRow row : rows) {
+        bodies.set(row.position, decrypt(row));
+      }
+
+      return null;
+    }
+
+    private DisplayRecord.Body decrypt(EncryptedRow row) {
+      try {
+        String plaintext = masterCipher.decryptBody(row.ciphertext);
+        plaintextCache.put(row.table, row.id, row.ciphertext, plaintext);
+
+        return new DisplayRecord.Body(plaintext, true);
+      } catch (InvalidMessageException e) {
+        Log.w(TAG, e);
+
+        if (row.table == PlaintextCache.MMS) return new DisplayRecord.Body(context.getString(R.string.MmsDatabase_error_decrypting_message), true);
+        else                                 return new DisplayRecord.Body(context.getString(R.string.EncryptingSmsDatabase_error_decrypting_message), true);
+      }
+    }
+  }
+
+  private static class EncryptedRow {
+    private final int    position;
+    private final int    table;
+    private final long   id;
+    private final String ciphertext;
+
+    private EncryptedRow(int position, int table, long id, String ciphertext) {
+      this.position   = position;
+      this.table      = table;
+      this.id         = id;
+      this.ciphertext = ciphertext;
+    }
+  }
+}
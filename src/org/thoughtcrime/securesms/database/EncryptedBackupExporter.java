@@ -20,22 +20,55 @@ import android.content.Context;
 import android.os.Environment;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
 
+/**
+ * Copies the app data directory to and from external storage.
+ *
+ * Exports are incremental.  File contents are stored once each under objects/, named by
+ * their hash, and every export writes a manifest to snapshots/ listing the files it saw.
+ * A file whose size and mtime match the previous snapshot isn't read at all, and contents
+ * that are already stored aren't stored twice.  A snapshot only becomes visible
+ * once every object it names has been written, so an interrupted export leaves the
+ * previous one intact.
+ *
+ * Imports restore the newest snapshot, or fall back to the original layout of a plain
+ * copy of the data directory.
+ */
 public class EncryptedBackupExporter {
 
+  private static final String TAG = EncryptedBackupExporter.class.getSimpleName();
+
+  private static final String OBJECTS_DIRECTORY   = "objects";
+  private static final String SNAPSHOTS_DIRECTORY = "snapshots";
+  private static final String MANIFEST_SUFFIX     = ".manifest";
+  private static final int    MAX_SNAPSHOTS       = 3;
+
   public static void exportToSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForExport();
-    exportDirectory(context, "");
+    exportSnapshot(context);
   }
 
   public static void importFromSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForImport();
-    importDirectory(context, "");
+
+    File[] snapshots = getSnapshots();
+
+    TextSecureSessionStore.reset();
+
+    if (snapshots.length > 0) importSnapshot(context, snapshots[snapshots.length - 1]);
+    else                      importDirectory(context, "");
   }
 
   private static String getExportDirectoryPath() {
@@ -75,27 +108,216 @@ public class EncryptedBackupExporter {
     }
   }
 
-  private static void exportDirectory(Context context, String directoryName) throws IOException {
-    File directory       = new File(context.getFilesDir().getParent() + File.separatorChar + directoryName);
-    File exportDirectory = new File(getExportDirectoryPath() + File.separatorChar + directoryName);
+  private static void exportSnapshot(Context context) throws IOException {
+    File[]         snapshots = getSnapshots();
+    BackupManifest previous  = null;
+    BackupManifest current   = new BackupManifest();
+    long           startTime = System.currentTimeMillis();
 
-    if (directory.exists()) {
-      exportDirectory.mkdirs();
+    if (snapshots.length > 0) {
+      try {
+        previous = BackupManifest.read(snapshots[snapshots.length - 1]);
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+    }
 
-      File[] contents = directory.listFiles();
+    new File(getExportDirectoryPath(), SNAPSHOTS_DIRECTORY).mkdirs();
+
+    int copied = exportDirectory(new File(context.getFilesDir().getParent()), "", previous, current);
+
+    current.write(new File(getExportDirectoryPath() + File.separator + SNAPSHOTS_DIRECTORY,
+                           startTime + MANIFEST_SUFFIX));
+
+    pruneSnapshots();
+
+    Log.w(TAG, "Exported " + current.getEntries().size() + " files, copied " + copied +
+               ", in " + (System.currentTimeMillis() - startTime) + "ms");
+  }
+
+  private static int exportDirectory(File directory, String directoryName,
+                                     BackupManifest previous, BackupManifest current)
+      throws IOException
+  {
+    File[] contents = directory.listFiles();
+    int    copied   = 0;
+
+    if (contents == null) {
+      Log.w(TAG, "Could not find directory: " + directory.getAbsolutePath());
+      return 0;
+    }
+
+    for (File localFile : contents) {
+      String path = directoryName + File.separator + localFile.getName();
 
-      for (int i=0;i<contents.length;i++) {
-        File localFile = contents[i];
+      if (localFile.isFile()) {
+        BackupManifest.Entry entry = previous == null ? null : previous.get(path);
+        String               hash;
 
-        if (localFile.isFile()) {
-          File exportedFile = new File(exportDirectory.getAbsolutePath() + File.separator + localFile.getName());
-          migrateFile(localFile, exportedFile);
+        if (entry != null && entry.matches(localFile) && getObjectFile(entry.hash).exists()) {
+          hash = entry.hash;
         } else {
-          exportDirectory(context, directoryName + File.separator + localFile.getName());
+          hash = exportObject(localFile);
+          copied++;
         }
+
+        current.put(new BackupManifest.Entry(path, localFile.length(), localFile.lastModified(), hash));
+      } else if (localFile.isDirectory()) {
+        copied += exportDirectory(localFile, path, previous, current);
+      }
+    }
+
+    return copied;
+  }
+
+  /**
+   * Copies a file into objects/, naming it by the hash of the bytes that were written, so
+   * a file that changes while it's being read can't be stored under another version's hash.
+   *
+   * @return The hash of the stored object.
+   */
+  private static String exportObject(File localFile) throws IOException {
+    File objectsDirectory = new File(getExportDirectoryPath(), OBJECTS_DIRECTORY);
+    File temporaryFile    = new File(objectsDirectory, "export.tmp");
+
+    objectsDirectory.mkdirs();
+
+    String hash       = BackupManifest.copy(localFile, temporaryFile);
+    File   objectFile = getObjectFile(hash);
+
+    if (objectFile.exists()) {
+      temporaryFile.delete();
+      return hash;
+    }
+
+    objectFile.getParentFile().mkdirs();
+
+    if (!temporaryFile.renameTo(objectFile)) {
+      throw new IOException("Rename failed: " + objectFile.getAbsolutePath());
+    }
+
+    return hash;
+  }
+
+  private static void importSnapshot(Context context, File snapshot) throws IOException {
+    BackupManifest manifest = BackupManifest.read(snapshot);
+    String         dataPath = context.getFilesDir().getParent();
+    int            restored = 0;
+
+    for (BackupManifest.Entry entry : manifest.getEntries()) {
+      File localFile  = new File(dataPath + entry.path);
+      File objectFile = getObjectFile(entry.hash);
+
+      if (!objectFile.exists()) {
+        throw new IOException("Backup is missing " + entry.path);
       }
-    } else {
-      Log.w("EncryptedBackupExporter", "Could not find directory: " + directory.getAbsolutePath());
+
+      if (localFile.exists() && localFile.length() == entry.size &&
+          BackupManifest.hash(localFile).equals(entry.hash))
+      {
+        continue;
+      }
+
+      localFile.getParentFile().mkdirs();
+      importObject(objectFile, localFile, entry);
+      restored++;
+    }
+
+    Log.w(TAG, "Restored " + restored + " of " + manifest.getEntries().size() + " files from " + snapshot.getName());
+  }
+
+  /**
+   * Keeps the newest {@link #MAX_SNAPSHOTS} snapshots, and deletes any object which none of
+   * them refer to.
+   */
+  private static void pruneSnapshots() throws IOException {
+    File[]      snapshots  = getSnapshots();
+    Set<String> referenced = new HashSet<>();
+
+    for (int i=0;i<snapshots.length - MAX_SNAPSHOTS;i++) {
+      snapshots[i].delete();
+    }
+
+    for (int i=Math.max(0, snapshots.length - MAX_SNAPSHOTS);i<snapshots.length;i++) {
+      for (BackupManifest.Entry entry : BackupManifest.read(snapshots[i]).getEntries()) {
+        referenced.add(entry.hash);
+      }
+    }
+
+    File[] buckets = new File(getExportDirectoryPath(), OBJECTS_DIRECTORY).listFiles();
+
+    if (buckets == null) return;
+
+    for (File bucket : buckets) {
+      File[] objects = bucket.listFiles();
+
+      if (objects == null) continue;
+
+      for (File object : objects) {
+        if (!referenced.contains(bucket.getName() + object.getName())) {
+          object.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return The snapshot manifests, oldest first.
+   */
+  private static File[] getSnapshots() {
+    File   directory = new File(getExportDirectoryPath(), SNAPSHOTS_DIRECTORY);
+    File[] results   = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String filename) {
+        return filename.endsWith(MANIFEST_SUFFIX);
+      }
+    });
+
+    if (results == null) return new File[0];
+
+    Arrays.sort(results, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        return Long.valueOf(getSnapshotTime(lhs)).compareTo(getSnapshotTime(rhs));
+      }
+    });
+
+    return results;
+  }
+
+  private static long getSnapshotTime(File snapshot) {
+    String name = snapshot.getName();
+
+    try {
+      return Long.parseLong(name.substring(0, name.length() - MANIFEST_SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      Log.w(TAG, e);
+      return 0;
+    }
+  }
+
+  private static File getObjectFile(String hash) {
+    return new File(getExportDirectoryPath() + File.separator + OBJECTS_DIRECTORY + File.separator +
+                    hash.substring(0, 2) + File.separator + hash.substring(2));
+  }
+
+  /**
+   * Restores an object, checking the hash of the restored bytes against the one the
+   * manifest recorded before replacing the local file.
+   */
+  private static void importObject(File objectFile, File localFile, BackupManifest.Entry entry)
+      throws IOException
+  {
+    File temporaryFile = new File(localFile.getAbsolutePath() + ".tmp");
+
+    if (!BackupManifest.copy(objectFile, temporaryFile).equals(entry.hash)) {
+      temporaryFile.delete();
+      throw new IOException("Backup object is corrupt: " + entry.path);
+    }
+
+    if (!temporaryFile.renameTo(localFile)) {
+      temporaryFile.delete();
+      throw new IOException("Rename failed: " + localFile.getAbsolutePath());
     }
   }
 
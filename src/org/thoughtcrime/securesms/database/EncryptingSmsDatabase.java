@@ -29,19 +29,15 @@ import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
 import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
-import org.thoughtcrime.securesms.util.LRUCache;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 public class EncryptingSmsDatabase extends SmsDatabase {
 
-  private final PlaintextCache plaintextCache = new PlaintextCache();
+  private final PlaintextCache plaintextCache = PlaintextCache.getInstance();
 
   public EncryptingSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -54,20 +50,23 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
   private String getEncryptedBody(MasterSecret masterSecret, String body) {
     MasterCipher bodyCipher = new MasterCipher(masterSecret);
-    String ciphertext       = bodyCipher.encryptBody(body);
-    plaintextCache.put(ciphertext, body);
-
-    return ciphertext;
+    return bodyCipher.encryptBody(body);
   }
 
   public long insertMessageOutbox(MasterSecret masterSecret, long threadId,
                                   OutgoingTextMessage message, boolean forceSms)
   {
-    long type = Types.BASE_OUTBOX_TYPE;
-    message   = message.withBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+    long   type       = Types.BASE_OUTBOX_TYPE;
+    String plaintext  = message.getMessageBody();
+    String ciphertext = getEncryptedBody(masterSecret, plaintext);
+
+    message   = message.withBody(ciphertext);
     type     |= Types.ENCRYPTION_SYMMETRIC_BIT;
 
-    return insertMessageOutbox(threadId, message, type, forceSms);
+    long messageId = insertMessageOutbox(threadId, message, type, forceSms);
+    plaintextCache.put(PlaintextCache.SMS, messageId, ciphertext, plaintext);
+
+    return messageId;
   }
 
   public Pair<Long, Long> insertMessageInbox(MasterSecret masterSecret,
@@ -77,12 +76,22 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
     if (masterSecret == null && message.isSecureMessage()) {
       type |= Types.ENCRYPTION_REMOTE_BIT;
-    } else {
-      type |= Types.ENCRYPTION_SYMMETRIC_BIT;
-      message = message.withMessageBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+      return insertMessageInbox(message, type);
     }
 
-    return insertMessageInbox(message, type);
+    String plaintext  = message.getMessageBody();
+    String ciphertext = getEncryptedBody(masterSecret, plaintext);
+
+    type    |= Types.ENCRYPTION_SYMMETRIC_BIT;
+    message  = message.withMessageBody(ciphertext);
+
+    Pair<Long, Long> messageAndThreadId = insertMessageInbox(message, type);
+
+    if (messageAndThreadId.first != -1) {
+      plaintextCache.put(PlaintextCache.SMS, messageAndThreadId.first, ciphertext, plaintext);
+    }
+
+    return messageAndThreadId;
   }
 
   public Pair<Long, Long> insertMessageInbox(AsymmetricMasterSecret masterSecret,
@@ -102,19 +111,18 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
   public void updateBundleMessageBody(MasterSecret masterSecret, long messageId, String body) {
     String encryptedBody = getEncryptedBody(masterSecret, body);
+    plaintextCache.remove(PlaintextCache.SMS, messageId);
     updateMessageBodyAndType(messageId, encryptedBody, Types.TOTAL_MASK,
                              Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT | Types.SECURE_MESSAGE_BIT);
+    plaintextCache.put(PlaintextCache.SMS, messageId, encryptedBody, body);
   }
 
   public void updateMessageBody(MasterSecret masterSecret, long messageId, String body) {
     String encryptedBody = getEncryptedBody(masterSecret, body);
+    plaintextCache.remove(PlaintextCache.SMS, messageId);
     updateMessageBodyAndType(messageId, encryptedBody, Types.ENCRYPTION_MASK,
                              Types.ENCRYPTION_SYMMETRIC_BIT);
-  }
-
-  public Reader getMessages(MasterSecret masterSecret, int skip, int limit) {
-    Cursor cursor = super.getMessages(skip, limit);
-    return new DecryptingReader(masterSecret, cursor);
+    plaintextCache.put(PlaintextCache.SMS, messageId, encryptedBody, body);
   }
 
   public Reader getOutgoingMessages(MasterSecret masterSecret) {
@@ -153,6 +161,11 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
     @Override
     protected DisplayRecord.Body getBody(Cursor cursor) {
+      if (cursor instanceof DecryptingCursor) {
+        DisplayRecord.Body body = ((DecryptingCursor)cursor).getDecryptedBody();
+        if (body != null) return body;
+      }
+
       long type         = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
       String ciphertext = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.BODY));
 
@@ -162,14 +175,15 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
       try {
         if (SmsDatabase.Types.isSymmetricEncryption(type)) {
-          String plaintext = plaintextCache.get(ciphertext);
+          long   messageId = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
+          String plaintext = plaintextCache.get(PlaintextCache.SMS, messageId, ciphertext);
 
           if (plaintext != null)
             return new DisplayRecord.Body(plaintext, true);
 
           plaintext = masterCipher.decryptBody(ciphertext);
 
-          plaintextCache.put(ciphertext, plaintext);
+          plaintextCache.put(PlaintextCache.SMS, messageId, ciphertext, plaintext);
           return new DisplayRecord.Body(plaintext, true);
         } else {
           return new DisplayRecord.Body(ciphertext, true);
@@ -180,28 +194,4 @@ public class EncryptingSmsDatabase extends SmsDatabase {
       }
     }
   }
-
-  private static class PlaintextCache {
-    private static final int MAX_CACHE_SIZE = 2000;
-    private static final Map<String, SoftReference<String>> decryptedBodyCache =
-        Collections.synchronizedMap(new LRUCache<String, SoftReference<String>>(MAX_CACHE_SIZE));
-
-    public void put(String ciphertext, String plaintext) {
-      decryptedBodyCache.put(ciphertext, new SoftReference<String>(plaintext));
-    }
-
-    public String get(String ciphertext) {
-      SoftReference<String> plaintextReference = decryptedBodyCache.get(ciphertext);
-
-      if (plaintextReference != null) {
-        String plaintext = plaintextReference.get();
-
-        if (plaintext != null) {
-          return plaintext;
-        }
-      }
-
-      return null;
-    }
-  }
 }
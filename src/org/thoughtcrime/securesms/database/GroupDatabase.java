@@ -138,7 +138,7 @@ public class GroupDatabase extends Database {
                                                 GROUP_ID + " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
-    RecipientFactory.clearCache();
+    RecipientFactory.clearCache(context, GroupUtil.getEncodedId(groupId));
     notifyDatabaseListeners();
   }
 
@@ -148,7 +148,7 @@ public class GroupDatabase extends Database {
     databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, GROUP_ID +  " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
-    RecipientFactory.clearCache();
+    RecipientFactory.clearCache(context, GroupUtil.getEncodedId(groupId));
     notifyDatabaseListeners();
   }
 
@@ -163,7 +163,7 @@ public class GroupDatabase extends Database {
     databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, GROUP_ID +  " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
-    RecipientFactory.clearCache();
+    RecipientFactory.clearCache(context, GroupUtil.getEncodedId(groupId));
     notifyDatabaseListeners();
   }
 
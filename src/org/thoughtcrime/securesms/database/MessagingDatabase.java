@@ -109,8 +109,8 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
     database.update(getTableName(), contentValues, ID_WHERE, new String[] {String.valueOf(messageId)});
   }
 
-  private <D extends Document> D getDocument(SQLiteDatabase database, long messageId,
-                                             String column, Class<D> clazz)
+  protected <D extends Document> D getDocument(SQLiteDatabase database, long messageId,
+                                               String column, Class<D> clazz)
   {
     Cursor cursor = null;
 
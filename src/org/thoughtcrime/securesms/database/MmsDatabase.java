@@ -62,8 +62,8 @@ import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.whispersystems.libaxolotl.util.guava.Optional;
-import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.SoftReference;
@@ -87,9 +87,6 @@ import ws.com.google.android.mms.pdu.PduHeaders;
 import ws.com.google.android.mms.pdu.PduPart;
 import ws.com.google.android.mms.pdu.SendReq;
 
-import static org.thoughtcrime.securesms.util.Util.canonicalizeNumber;
-import static org.thoughtcrime.securesms.util.Util.canonicalizeNumberOrGroup;
-
 // XXXX Clean up MMS efficiency:
 // 1) We need to be careful about how much memory we're using for parts. SoftRefereences.
 // 2) How many queries do we make?  calling getMediaMessageForId() from within an existing query
@@ -164,6 +161,9 @@ public class MmsDatabase extends MessagingDatabase {
       RECEIPT_COUNT, MISMATCHED_IDENTITIES, NETWORK_FAILURE
   };
 
+  private static final String TEXT_MESSAGE_WHERE = BODY + " IS NOT NULL AND " + BODY + " != '' AND (" +
+      MESSAGE_BOX + " & " + (Types.GROUP_UPDATE_BIT | Types.GROUP_QUIT_BIT) + ") = 0";
+
   public static final ExecutorService slideResolver = org.thoughtcrime.securesms.util.Util.newSingleThreadedLifoExecutor();
   private static final Map<Long, SoftReference<SlideDeck>> slideCache =
       Collections.synchronizedMap(new LRUCache<Long, SoftReference<SlideDeck>>(20));
@@ -172,7 +172,7 @@ public class MmsDatabase extends MessagingDatabase {
 
   public MmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
-    this.jobManager = ApplicationContext.getInstance(context).getJobManager();
+    this.jobManager = ApplicationContext.getInstance(context).getBackgroundJobManager();
   }
 
   @Override
@@ -197,6 +197,30 @@ public class MmsDatabase extends MessagingDatabase {
     return 0;
   }
 
+  int getTextMessageCount() {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {"COUNT(*)"}, TEXT_MESSAGE_WHERE, null, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getInt(0);
+      else                                        return 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Messages with a text body other than group updates, in id order, for export.
+   */
+  Cursor getTextMessagesAfter(long messageId, int limit) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.query(TABLE_NAME, MMS_PROJECTION, ID + " > ? AND " + TEXT_MESSAGE_WHERE,
+                    new String[] {String.valueOf(messageId)}, null, null, ID, String.valueOf(limit));
+  }
+
   public void addFailures(long messageId, List<NetworkFailure> failure) {
     try {
       addToDocument(messageId, NETWORK_FAILURE, failure, NetworkFailureList.class);
@@ -205,6 +229,16 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
+  public List<NetworkFailure> getFailures(long messageId) {
+    return getDocument(databaseHelper.getReadableDatabase(), messageId,
+                       NETWORK_FAILURE, NetworkFailureList.class).getList();
+  }
+
+  public List<IdentityKeyMismatch> getMismatchedIdentities(long messageId) {
+    return getDocument(databaseHelper.getReadableDatabase(), messageId,
+                       MISMATCHED_IDENTITIES, IdentityKeyMismatchList.class).getList();
+  }
+
   public void removeFailure(long messageId, NetworkFailure failure) {
     try {
       removeFromDocument(messageId, NETWORK_FAILURE, failure, NetworkFailureList.class);
@@ -213,7 +247,10 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  public void incrementDeliveryReceiptCount(String address, long timestamp) {
+  /*package*/ void incrementDeliveryReceiptCount(String address, long timestamp,
+                                                Map<String, String> canonicalNumbers,
+                                                Set<Long> threadIds)
+  {
     MmsAddressDatabase addressDatabase = DatabaseFactory.getMmsAddressDatabase(context);
     SQLiteDatabase     database        = databaseHelper.getWritableDatabase();
     Cursor             cursor          = null;
@@ -226,22 +263,18 @@ public class MmsDatabase extends MessagingDatabase {
           List<String> addresses = addressDatabase.getAddressesForId(cursor.getLong(cursor.getColumnIndexOrThrow(ID)));
 
           for (String storedAddress : addresses) {
-            try {
-              String ourAddress   = canonicalizeNumber(context, address);
-              String theirAddress = canonicalizeNumberOrGroup(context, storedAddress);
-
-              if (ourAddress.equals(theirAddress) || GroupUtil.isEncodedGroup(theirAddress)) {
-                long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-                long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-
-                database.execSQL("UPDATE " + TABLE_NAME + " SET " +
-                                 RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " + ID + " = ?",
-                                 new String[] {String.valueOf(id)});
-
-                notifyConversationListeners(threadId);
-              }
-            } catch (InvalidNumberException e) {
-              Log.w("MmsDatabase", e);
+            String theirAddress = address.equals(storedAddress) ? storedAddress
+                                                                : MmsSmsDatabase.canonicalizeNumber(context, canonicalNumbers, storedAddress);
+
+            if (address.equals(theirAddress) || (theirAddress != null && GroupUtil.isEncodedGroup(theirAddress))) {
+              long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+              long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+
+              database.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                               RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " + ID + " = ?",
+                               new String[] {String.valueOf(id)});
+
+              threadIds.add(threadId);
             }
           }
         }
@@ -607,7 +640,6 @@ public class MmsDatabase extends MessagingDatabase {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -671,7 +703,7 @@ public class MmsDatabase extends MessagingDatabase {
 
   public void markIncomingNotificationReceived(long threadId) {
     notifyConversationListeners(threadId);
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    DatabaseFactory.getThreadDatabase(context).refresh(threadId);
 
     if (org.thoughtcrime.securesms.util.Util.isDefaultSmsProvider(context)) {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
@@ -738,9 +770,11 @@ public class MmsDatabase extends MessagingDatabase {
     PartDatabase       partsDatabase   = DatabaseFactory.getPartDatabase(context);
     MmsAddressDatabase addressDatabase = DatabaseFactory.getMmsAddressDatabase(context);
 
+    String messageText = null;
+
     if (Types.isSymmetricEncryption(contentValues.getAsLong(MESSAGE_BOX))) {
-      String messageText = PartParser.getMessageText(body);
-      body               = PartParser.getSupportedMediaParts(body);
+      messageText = PartParser.getMessageText(body);
+      body        = PartParser.getSupportedMediaParts(body);
 
       if (!TextUtils.isEmpty(messageText)) {
         contentValues.put(BODY, new MasterCipher(masterSecret).encryptBody(messageText));
@@ -751,11 +785,15 @@ public class MmsDatabase extends MessagingDatabase {
 
     long messageId = db.insert(TABLE_NAME, null, contentValues);
 
+    if (!TextUtils.isEmpty(messageText) && messageId != -1) {
+      PlaintextCache.getInstance().put(PlaintextCache.MMS, messageId, contentValues.getAsString(BODY), messageText);
+    }
+
     addressDatabase.insertAddressesForId(messageId, headers);
     partsDatabase.insertParts(masterSecret, messageId, body);
 
     notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-    DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID));
+    DatabaseFactory.getThreadDatabase(context).refresh(contentValues.getAsLong(THREAD_ID));
 
     return messageId;
   }
@@ -769,7 +807,8 @@ public class MmsDatabase extends MessagingDatabase {
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    PlaintextCache.getInstance().remove(PlaintextCache.MMS, messageId);
+    DatabaseFactory.getThreadDatabase(context).refresh(threadId);
     notifyConversationListeners(threadId);
   }
 
@@ -803,35 +842,26 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
-    date          = date / 1000;
-    Cursor cursor = null;
+  /**
+   * Deletes a thread's messages received before a date, along with their parts and addresses.
+   * Threads aren't refreshed and listeners aren't notified, so that this can be batched inside
+   * a larger transaction.
+   *
+   * @return the part files which are no longer referenced, to be deleted once the transaction commits.
+   */
+  /*package*/ List<File> deleteMessagesInThreadBeforeDate(long threadId, long date) {
+    SQLiteDatabase db       = databaseHelper.getWritableDatabase();
+    String         messages = MmsSmsDatabase.getMessagesBeforeDateQuery(MmsSmsDatabase.MMS_TRANSPORT);
+    String[]       args     = new String[] {threadId + "", date + ""};
 
-    try {
-      SQLiteDatabase db = databaseHelper.getReadableDatabase();
-      String where      = THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ";
+    List<File> files = DatabaseFactory.getPartDatabase(context).deletePartsForMessages(messages, args);
+    DatabaseFactory.getMmsAddressDatabase(context).deleteAddressesForMessages(messages, args);
 
-      for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-        where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
-      }
-
-      where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
-
-      Log.w("MmsDatabase", "Executing trim query: " + where);
-      cursor = db.query(TABLE_NAME, new String[] {ID}, where, new String[] {threadId+""}, null, null, null);
-
-      while (cursor != null && cursor.moveToNext()) {
-        Log.w("MmsDatabase", "Trimming: " + cursor.getLong(0));
-        delete(cursor.getLong(0));
-      }
+    db.delete(TABLE_NAME, ID + " IN (" + messages + ")", args);
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
+    return files;
   }
 
-
   public void deleteAllThreads() {
     DatabaseFactory.getPartDatabase(context).deleteAllParts();
     DatabaseFactory.getMmsAddressDatabase(context).deleteAllAddresses();
@@ -958,9 +988,10 @@ public class MmsDatabase extends MessagingDatabase {
 
   public class Reader {
 
-    private final Cursor       cursor;
-    private final MasterSecret masterSecret;
-    private final MasterCipher masterCipher;
+    private final Cursor         cursor;
+    private final MasterSecret   masterSecret;
+    private final MasterCipher   masterCipher;
+    private final PlaintextCache plaintextCache = PlaintextCache.getInstance();
 
     public Reader(MasterSecret masterSecret, Cursor cursor) {
       this.cursor       = cursor;
@@ -1084,12 +1115,25 @@ public class MmsDatabase extends MessagingDatabase {
     }
 
     private DisplayRecord.Body getBody(Cursor cursor) {
+      if (masterCipher != null && cursor instanceof DecryptingCursor) {
+        DisplayRecord.Body body = ((DecryptingCursor)cursor).getDecryptedBody();
+        if (body != null) return body;
+      }
+
       try {
         String body = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.BODY));
         long box    = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
 
         if (!TextUtils.isEmpty(body) && masterCipher != null && Types.isSymmetricEncryption(box)) {
-          return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
+          long   id        = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.ID));
+          String plaintext = plaintextCache.get(PlaintextCache.MMS, id, body);
+
+          if (plaintext == null) {
+            plaintext = masterCipher.decryptBody(body);
+            plaintextCache.put(PlaintextCache.MMS, id, body, plaintext);
+          }
+
+          return new DisplayRecord.Body(plaintext, true);
         } else if (!TextUtils.isEmpty(body) && masterCipher == null && Types.isSymmetricEncryption(box)) {
           return new DisplayRecord.Body(body, false);
         } else {
@@ -22,11 +22,18 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.util.Log;
+import android.util.Pair;
 
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.util.Util;
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
@@ -35,34 +42,176 @@ public class MmsSmsDatabase extends Database {
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  public  static final String TIMELINE_TABLE_NAME = "timeline";
+  private static final String MESSAGE_ID          = "message_id";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TIMELINE_TABLE_NAME + " (" + MmsSmsColumns.ID + " INTEGER PRIMARY KEY, " +
+    MmsSmsColumns.THREAD_ID + " INTEGER, " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " INTEGER, " +
+    MmsSmsColumns.READ + " INTEGER DEFAULT 0, " + TRANSPORT + " TEXT, " + MESSAGE_ID + " INTEGER);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE INDEX IF NOT EXISTS timeline_thread_date_index ON " + TIMELINE_TABLE_NAME + " (" + MmsSmsColumns.THREAD_ID + ", " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS timeline_read_index ON " + TIMELINE_TABLE_NAME + " (" + MmsSmsColumns.READ + ");",
+    "CREATE UNIQUE INDEX IF NOT EXISTS timeline_message_index ON " + TIMELINE_TABLE_NAME + " (" + TRANSPORT + ", " + MESSAGE_ID + ");"
+  };
+
+  /**
+   * The timeline is a narrow, indexed copy of the (thread, normalized date, transport, id)
+   * of every SMS and MMS row.  It's maintained by these triggers rather than by the
+   * individual insert/delete paths so that bulk imports and deletes stay in sync too.
+   */
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS sms_timeline_insert AFTER INSERT ON " + SmsDatabase.TABLE_NAME + " BEGIN " +
+      "INSERT INTO " + TIMELINE_TABLE_NAME + " (" + MmsSmsColumns.THREAD_ID + ", " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " + MmsSmsColumns.READ + ", " + TRANSPORT + ", " + MESSAGE_ID + ") " +
+      "VALUES (new." + MmsSmsColumns.THREAD_ID + ", new." + SmsDatabase.DATE_RECEIVED + ", new." + MmsSmsColumns.READ + ", '" + SMS_TRANSPORT + "', new." + MmsSmsColumns.ID + "); END;",
+
+    "CREATE TRIGGER IF NOT EXISTS sms_timeline_update AFTER UPDATE OF " + MmsSmsColumns.THREAD_ID + ", " + SmsDatabase.DATE_RECEIVED + ", " + MmsSmsColumns.READ + " ON " + SmsDatabase.TABLE_NAME + " BEGIN " +
+      "UPDATE " + TIMELINE_TABLE_NAME + " SET " + MmsSmsColumns.THREAD_ID + " = new." + MmsSmsColumns.THREAD_ID + ", " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " = new." + SmsDatabase.DATE_RECEIVED + ", " + MmsSmsColumns.READ + " = new." + MmsSmsColumns.READ + " " +
+      "WHERE " + TRANSPORT + " = '" + SMS_TRANSPORT + "' AND " + MESSAGE_ID + " = new." + MmsSmsColumns.ID + "; END;",
+
+    "CREATE TRIGGER IF NOT EXISTS sms_timeline_delete AFTER DELETE ON " + SmsDatabase.TABLE_NAME + " BEGIN " +
+      "DELETE FROM " + TIMELINE_TABLE_NAME + " WHERE " + TRANSPORT + " = '" + SMS_TRANSPORT + "' AND " + MESSAGE_ID + " = old." + MmsSmsColumns.ID + "; END;",
+
+    "CREATE TRIGGER IF NOT EXISTS mms_timeline_insert AFTER INSERT ON " + MmsDatabase.TABLE_NAME + " BEGIN " +
+      "INSERT INTO " + TIMELINE_TABLE_NAME + " (" + MmsSmsColumns.THREAD_ID + ", " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " + MmsSmsColumns.READ + ", " + TRANSPORT + ", " + MESSAGE_ID + ") " +
+      "VALUES (new." + MmsSmsColumns.THREAD_ID + ", new." + MmsDatabase.DATE_RECEIVED + " * 1000, new." + MmsSmsColumns.READ + ", '" + MMS_TRANSPORT + "', new." + MmsSmsColumns.ID + "); END;",
+
+    "CREATE TRIGGER IF NOT EXISTS mms_timeline_update AFTER UPDATE OF " + MmsSmsColumns.THREAD_ID + ", " + MmsDatabase.DATE_RECEIVED + ", " + MmsSmsColumns.READ + " ON " + MmsDatabase.TABLE_NAME + " BEGIN " +
+      "UPDATE " + TIMELINE_TABLE_NAME + " SET " + MmsSmsColumns.THREAD_ID + " = new." + MmsSmsColumns.THREAD_ID + ", " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " = new." + MmsDatabase.DATE_RECEIVED + " * 1000, " + MmsSmsColumns.READ + " = new." + MmsSmsColumns.READ + " " +
+      "WHERE " + TRANSPORT + " = '" + MMS_TRANSPORT + "' AND " + MESSAGE_ID + " = new." + MmsSmsColumns.ID + "; END;",
+
+    "CREATE TRIGGER IF NOT EXISTS mms_timeline_delete AFTER DELETE ON " + MmsDatabase.TABLE_NAME + " BEGIN " +
+      "DELETE FROM " + TIMELINE_TABLE_NAME + " WHERE " + TRANSPORT + " = '" + MMS_TRANSPORT + "' AND " + MESSAGE_ID + " = old." + MmsSmsColumns.ID + "; END;"
+  };
+
+  private static final String[] TIMELINE_COLUMNS = {
+    TIMELINE_TABLE_NAME + "." + MESSAGE_ID + " AS " + MmsSmsColumns.ID,
+    TIMELINE_TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " AS " + MmsSmsColumns.THREAD_ID,
+    TIMELINE_TABLE_NAME + "." + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+    TIMELINE_TABLE_NAME + "." + MmsSmsColumns.READ + " AS " + MmsSmsColumns.READ,
+    TIMELINE_TABLE_NAME + "." + TRANSPORT + " AS " + TRANSPORT,
+    "COALESCE(" + SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_SENT + ", " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_SENT + " * 1000) AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
+    coalesce(MmsSmsColumns.BODY),
+    coalesce(MmsSmsColumns.ADDRESS),
+    coalesce(MmsSmsColumns.ADDRESS_DEVICE_ID),
+    coalesce(MmsSmsColumns.RECEIPT_COUNT),
+    coalesce(MmsSmsColumns.MISMATCHED_IDENTITIES),
+    SmsDatabase.TABLE_NAME + "." + SmsDatabase.TYPE + " AS " + SmsDatabase.TYPE,
+    SmsDatabase.TABLE_NAME + "." + SmsDatabase.SUBJECT + " AS " + SmsDatabase.SUBJECT,
+    SmsDatabase.TABLE_NAME + "." + SmsDatabase.STATUS + " AS " + SmsDatabase.STATUS,
+    MmsDatabase.TABLE_NAME + "." + MmsDatabase.MESSAGE_TYPE + " AS " + MmsDatabase.MESSAGE_TYPE,
+    MmsDatabase.TABLE_NAME + "." + MmsDatabase.MESSAGE_BOX + " AS " + MmsDatabase.MESSAGE_BOX,
+    MmsDatabase.TABLE_NAME + "." + MmsDatabase.PART_COUNT + " AS " + MmsDatabase.PART_COUNT,
+    MmsDatabase.TABLE_NAME + "." + MmsDatabase.CONTENT_LOCATION + " AS " + MmsDatabase.CONTENT_LOCATION,
+    MmsDatabase.TABLE_NAME + "." + MmsDatabase.TRANSACTION_ID + " AS " + MmsDatabase.TRANSACTION_ID,
+    MmsDatabase.TABLE_NAME + "." + MmsDatabase.MESSAGE_SIZE + " AS " + MmsDatabase.MESSAGE_SIZE,
+    MmsDatabase.TABLE_NAME + "." + MmsDatabase.EXPIRY + " AS " + MmsDatabase.EXPIRY,
+    MmsDatabase.TABLE_NAME + "." + MmsDatabase.STATUS + " AS " + MmsDatabase.STATUS,
+    MmsDatabase.TABLE_NAME + "." + MmsDatabase.NETWORK_FAILURE + " AS " + MmsDatabase.NETWORK_FAILURE
+  };
+
+  private static final String[] CONVERSATION_PROJECTION = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
+                                                           MmsSmsColumns.THREAD_ID,
+                                                           SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
+                                                           MmsSmsColumns.NORMALIZED_DATE_SENT,
+                                                           MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+                                                           MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
+                                                           SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
+                                                           MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
+                                                           MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
+                                                           MmsDatabase.STATUS, MmsSmsColumns.RECEIPT_COUNT,
+                                                           MmsSmsColumns.MISMATCHED_IDENTITIES,
+                                                           MmsDatabase.NETWORK_FAILURE, TRANSPORT};
+
   public MmsSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
   public Cursor getConversation(long threadId) {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
-                              MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, MmsSmsColumns.RECEIPT_COUNT,
-                              MmsSmsColumns.MISMATCHED_IDENTITIES,
-                              MmsDatabase.NETWORK_FAILURE, TRANSPORT};
+    return getConversation(threadId, 0);
+  }
 
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+  /**
+   * @return Every message in the thread received at or after sinceDate, oldest first.
+   */
+  public Cursor getConversation(long threadId, long sinceDate) {
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
 
-    String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    if (sinceDate > 0) {
+      selection += " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " >= " + sinceDate;
+    }
 
-    Cursor cursor = queryTables(projection, selection, selection, order, null, null);
+    Cursor cursor = queryTimeline(CONVERSATION_PROJECTION, selection, order, null);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
+  /**
+   * Finds the keyset boundary of the page of messages immediately older than beforeDate.
+   *
+   * @return The normalized received date of the oldest message in that page, or -1 if
+   *         there are no messages older than beforeDate.
+   */
+  public long getPageBoundary(long threadId, long beforeDate, int pageSize) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.rawQuery("SELECT MIN(" + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ") FROM " +
+                           "(SELECT " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " FROM " + TIMELINE_TABLE_NAME +
+                           " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " < ?" +
+                           " ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC LIMIT " + pageSize + ")",
+                           new String[] {String.valueOf(threadId), String.valueOf(beforeDate)});
+
+      if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+        return cursor.getLong(0);
+      }
+
+      return -1;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * @return the received date of the oldest message that survives trimming the thread
+   *         down to its newest <code>length</code> messages, or -1 if it's already short enough.
+   */
+  public long getTrimBoundary(long threadId, int length) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.rawQuery("SELECT " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " FROM " + TIMELINE_TABLE_NAME +
+                           " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                           " ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC" +
+                           " LIMIT 2 OFFSET " + (length - 1),
+                           new String[] {String.valueOf(threadId)});
+
+      if (cursor != null && cursor.getCount() == 2 && cursor.moveToFirst()) {
+        return cursor.getLong(0);
+      }
+
+      return -1;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * @return a subquery selecting the ids of messages in the given transport's table which
+   *         belong to a thread (first argument) and were received before a date (second argument).
+   */
+  /*package*/ static String getMessagesBeforeDateQuery(String transport) {
+    return "SELECT " + MESSAGE_ID + " FROM " + TIMELINE_TABLE_NAME +
+           " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + TRANSPORT + " = '" + transport + "'" +
+           " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " < ?";
+  }
+
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
     String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
                               MmsSmsColumns.THREAD_ID,
@@ -104,7 +253,7 @@ public class MmsSmsDatabase extends Database {
     String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
     String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId;
 
-    return  queryTables(projection, selection, selection, order, null, "1");
+    return queryTimeline(projection, selection, order, "1");
   }
 
   public Cursor getUnread() {
@@ -124,7 +273,7 @@ public class MmsSmsDatabase extends Database {
     String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
     String selection       = MmsSmsColumns.READ + " = 0";
 
-    return queryTables(projection, selection, selection, order, null, null);
+    return queryTimeline(projection, selection, order, null);
   }
 
   public int getConversationCount(long threadId) {
@@ -135,8 +284,58 @@ public class MmsSmsDatabase extends Database {
   }
 
   public void incrementDeliveryReceiptCount(String address, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementDeliveryReceiptCount(address, timestamp);
-    DatabaseFactory.getMmsDatabase(context).incrementDeliveryReceiptCount(address, timestamp);
+    incrementDeliveryReceiptCounts(Collections.singletonList(new Pair<>(address, timestamp)));
+  }
+
+  /**
+   * Applies a batch of delivery receipts, each an (address, sent timestamp) pair, in a single
+   * transaction.  Every number is canonicalized at most once per batch, and each affected
+   * thread is notified once after the batch commits.
+   */
+  public void incrementDeliveryReceiptCounts(List<Pair<String, Long>> receipts) {
+    SmsDatabase         smsDatabase      = DatabaseFactory.getSmsDatabase(context);
+    MmsDatabase         mmsDatabase      = DatabaseFactory.getMmsDatabase(context);
+    SQLiteDatabase      db               = databaseHelper.getWritableDatabase();
+    Map<String, String> canonicalNumbers = new HashMap<>();
+    Set<Long>           threadIds        = new HashSet<>();
+
+    db.beginTransaction();
+
+    try {
+      for (Pair<String, Long> receipt : receipts) {
+        String address = canonicalizeNumber(context, canonicalNumbers, receipt.first);
+
+        if (address == null) continue;
+
+        smsDatabase.incrementDeliveryReceiptCount(address, receipt.second, canonicalNumbers, threadIds);
+        mmsDatabase.incrementDeliveryReceiptCount(address, receipt.second, canonicalNumbers, threadIds);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    notifyConversationListeners(threadIds);
+  }
+
+  /**
+   * @return the canonical form of a number or encoded group, memoized in <code>canonicalNumbers</code>,
+   *         or null if it isn't a valid number.
+   */
+  /*package*/ static String canonicalizeNumber(Context context, Map<String, String> canonicalNumbers, String number) {
+    if (number == null) return null;
+
+    if (!canonicalNumbers.containsKey(number)) {
+      try {
+        canonicalNumbers.put(number, Util.canonicalizeNumberOrGroup(context, number));
+      } catch (InvalidNumberException e) {
+        Log.w("MmsSmsDatabase", e);
+        canonicalNumbers.put(number, null);
+      }
+    }
+
+    return canonicalNumbers.get(number);
   }
 
   private Cursor queryTables(String[] projection, String smsSelection, String mmsSelection, String order, String groupBy, String limit) {
@@ -222,6 +421,43 @@ public class MmsSmsDatabase extends Database {
     return db.rawQuery(query, null);
   }
 
+  /**
+   * Selects and orders rows using only the indexed timeline table, then joins the
+   * resulting page against the sms and mms tables to produce the same columns as
+   * {@link #queryTables}.  The selection and order may only reference timeline columns.
+   */
+  private Cursor queryTimeline(String[] projection, String selection, String order, String limit) {
+    SQLiteQueryBuilder timelineQueryBuilder = new SQLiteQueryBuilder();
+    timelineQueryBuilder.setTables(TIMELINE_TABLE_NAME);
+
+    String timelineQuery = timelineQueryBuilder.buildQuery(null, selection, null, null, null, order, limit);
+
+    SQLiteQueryBuilder joinQueryBuilder = new SQLiteQueryBuilder();
+    joinQueryBuilder.setTables("(" + timelineQuery + ") AS " + TIMELINE_TABLE_NAME +
+                               " LEFT JOIN " + SmsDatabase.TABLE_NAME + " ON " +
+                               TIMELINE_TABLE_NAME + "." + TRANSPORT + " = '" + SMS_TRANSPORT + "' AND " +
+                               SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.ID + " = " + TIMELINE_TABLE_NAME + "." + MESSAGE_ID +
+                               " LEFT JOIN " + MmsDatabase.TABLE_NAME + " ON " +
+                               TIMELINE_TABLE_NAME + "." + TRANSPORT + " = '" + MMS_TRANSPORT + "' AND " +
+                               MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.ID + " = " + TIMELINE_TABLE_NAME + "." + MESSAGE_ID);
+
+    String joinQuery = joinQueryBuilder.buildQuery(TIMELINE_COLUMNS, null, null, null, null, null, null);
+
+    SQLiteQueryBuilder outerQueryBuilder = new SQLiteQueryBuilder();
+    outerQueryBuilder.setTables("(" + joinQuery + ")");
+
+    String query = outerQueryBuilder.buildQuery(projection, null, null, null, null, order, null);
+
+    Log.w("MmsSmsDatabase", "Executing query: " + query);
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.rawQuery(query, null);
+  }
+
+  private static String coalesce(String column) {
+    return "COALESCE(" + SmsDatabase.TABLE_NAME + "." + column + ", " +
+                         MmsDatabase.TABLE_NAME + "." + column + ") AS " + column;
+  }
+
   public Reader readerFor(Cursor cursor, MasterSecret masterSecret) {
     return new Reader(cursor, masterSecret);
   }
@@ -28,8 +28,10 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
+import org.thoughtcrime.securesms.crypto.DecryptingChunkedPartChannel;
+import org.thoughtcrime.securesms.crypto.DecryptingChunkedPartInputStream;
 import org.thoughtcrime.securesms.crypto.DecryptingPartInputStream;
-import org.thoughtcrime.securesms.crypto.EncryptingPartOutputStream;
+import org.thoughtcrime.securesms.crypto.EncryptingChunkedPartOutputStream;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.mms.PartAuthority;
@@ -40,6 +42,7 @@ import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.VisibleForTesting;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -107,6 +110,14 @@ public class PartDatabase extends Database {
                                            + "ORDER BY " + TABLE_NAME + "." + ID + " DESC";
 
 
+  private static final Object[] MIGRATION_LOCKS = new Object[16];
+
+  static {
+    for (int i=0;i<MIGRATION_LOCKS.length;i++) {
+      MIGRATION_LOCKS[i] = new Object();
+    }
+  }
+
   private final ExecutorService thumbnailExecutor = Util.newSingleThreadedLifoExecutor();
 
   public PartDatabase(Context context, SQLiteOpenHelper databaseHelper) {
@@ -209,6 +220,36 @@ public class PartDatabase extends Database {
     database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId+""});
   }
 
+  /**
+   * Deletes the part rows of every message selected by a subquery, leaving their files behind.
+   *
+   * @return the data and thumbnail files of the deleted parts.
+   */
+  /*package*/ List<File> deletePartsForMessages(String messageQuery, String[] args) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    String         where    = MMS_ID + " IN (" + messageQuery + ")";
+    List<File>     files    = new LinkedList<>();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL}, where, args, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        String data      = cursor.getString(0);
+        String thumbnail = cursor.getString(1);
+
+        if (!TextUtils.isEmpty(data))      files.add(new File(data));
+        if (!TextUtils.isEmpty(thumbnail)) files.add(new File(thumbnail));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    database.delete(TABLE_NAME, where, args);
+    return files;
+  }
+
   @SuppressWarnings("ResultOfMethodCallIgnored")
   public void deleteAllParts() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
@@ -328,11 +369,27 @@ public class PartDatabase extends Database {
     return contentValues;
   }
 
-  private InputStream getPartInputStream(MasterSecret masterSecret, File path)
+  private InputStream getPartInputStream(MasterSecret masterSecret, long partId, String dataType, File path)
       throws FileNotFoundException
   {
     Log.w(TAG, "Getting part at: " + path.getAbsolutePath());
-    return new DecryptingPartInputStream(path, masterSecret);
+
+    if (!DecryptingChunkedPartChannel.isChunked(path, masterSecret)) {
+      File migrated = migratePartFile(masterSecret, partId, dataType, path);
+
+      if (migrated.equals(path)) {
+        return new DecryptingPartInputStream(path, masterSecret);
+      }
+
+      path = migrated;
+    }
+
+    try {
+      return new DecryptingChunkedPartInputStream(path, masterSecret);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      throw new FileNotFoundException(e.getMessage());
+    }
   }
 
   protected OutputStream getPartOutputStream(MasterSecret masterSecret, File path, PduPart part)
@@ -340,12 +397,19 @@ public class PartDatabase extends Database {
   {
     Log.w(TAG, "Writing part to: " + path.getAbsolutePath());
     part.setEncrypted(true);
-    return new EncryptingPartOutputStream(path, masterSecret);
+    return new EncryptingChunkedPartOutputStream(path, masterSecret);
   }
 
   @VisibleForTesting InputStream getDataStream(MasterSecret masterSecret, long partId, String dataType)
       throws FileNotFoundException
   {
+    File path = getDataFile(partId, dataType);
+
+    if (path == null) return null;
+    else              return getPartInputStream(masterSecret, partId, dataType, path);
+  }
+
+  private File getDataFile(long partId, String dataType) throws FileNotFoundException {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     Cursor         cursor   = null;
 
@@ -358,7 +422,7 @@ public class PartDatabase extends Database {
           return null;
         }
 
-        return getPartInputStream(masterSecret, new File(cursor.getString(0)));
+        return new File(cursor.getString(0));
       } else {
         throw new FileNotFoundException("No part for id: " + partId);
       }
@@ -368,17 +432,104 @@ public class PartDatabase extends Database {
     }
   }
 
+  /**
+   * Rewrites a part stored in the original single-stream layout as a chunked part,
+   * the first time it's read.  If anything goes wrong the original file is left in
+   * place and returned, so it can still be read sequentially.
+   *
+   * Only readers of parts sharing the same lock stripe wait on a migration.
+   */
+  private File migratePartFile(MasterSecret masterSecret, long partId, String dataType, File legacyFile)
+      throws FileNotFoundException
+  {
+    synchronized (getMigrationLock(partId)) {
+      return migratePartFileLocked(masterSecret, partId, dataType, legacyFile);
+    }
+  }
+
+  private File migratePartFileLocked(MasterSecret masterSecret, long partId, String dataType, File legacyFile)
+      throws FileNotFoundException
+  {
+    File current = getDataFile(partId, dataType);
+
+    if (current == null || !current.equals(legacyFile)) {
+      Log.w(TAG, "Part " + partId + " moved while waiting to migrate it.");
+      return current == null ? legacyFile : current;
+    }
+
+    File         migratedFile = null;
+    InputStream  in           = null;
+    OutputStream out          = null;
+
+    try {
+      long startTime = System.currentTimeMillis();
+
+      migratedFile = File.createTempFile("part", ".mms", context.getDir("parts", Context.MODE_PRIVATE));
+      in           = new DecryptingPartInputStream(legacyFile, masterSecret);
+      out          = new EncryptingChunkedPartOutputStream(migratedFile, masterSecret);
+
+      long length = Util.copy(in, out);
+
+      ContentValues values = new ContentValues(1);
+      values.put(dataType, migratedFile.getAbsolutePath());
+
+      databaseHelper.getWritableDatabase().update(TABLE_NAME, values, ID_WHERE, new String[] {partId+""});
+
+      if (!legacyFile.delete()) {
+        Log.w(TAG, "Failed to delete migrated part: " + legacyFile.getAbsolutePath());
+      }
+
+      Log.w(TAG, "Migrated part " + partId + " (" + length + " bytes) in " +
+                 (System.currentTimeMillis() - startTime) + "ms");
+
+      return migratedFile;
+    } catch (IOException e) {
+      Log.w(TAG, e);
+
+      close(in);
+      close(out);
+
+      if (migratedFile != null && !migratedFile.delete()) {
+        Log.w(TAG, "Failed to delete partially migrated part: " + migratedFile.getAbsolutePath());
+      }
+
+      return legacyFile;
+    } finally {
+      close(in);
+      close(out);
+    }
+  }
+
+  private static Object getMigrationLock(long partId) {
+    return MIGRATION_LOCKS[(int)((partId & 0x7fffffffffffffffL) % MIGRATION_LOCKS.length)];
+  }
+
+  private void close(Closeable closeable) {
+    try {
+      if (closeable != null) closeable.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
   private Pair<File, Long> writePartData(MasterSecret masterSecret, PduPart part, InputStream in)
       throws MmsException
   {
+    File dataFile = null;
+
     try {
-      File         partsDirectory  = context.getDir("parts", Context.MODE_PRIVATE);
-      File         dataFile        = File.createTempFile("part", ".mms", partsDirectory);
+      File partsDirectory = context.getDir("parts", Context.MODE_PRIVATE);
+      dataFile = File.createTempFile("part", ".mms", partsDirectory);
+
       OutputStream out             = getPartOutputStream(masterSecret, dataFile, part);
       long         plaintextLength = Util.copy(in, out);
 
       return new Pair<>(dataFile, plaintextLength);
     } catch (IOException e) {
+      if (dataFile != null && !dataFile.delete()) {
+        Log.w(TAG, "Couldn't delete partial part file");
+      }
+
       throw new MmsException(e);
     }
   }
@@ -2,16 +2,39 @@ package org.thoughtcrime.securesms.database;
 
 
 import android.content.Context;
+import android.database.Cursor;
 import android.os.Environment;
+import android.text.TextUtils;
+import android.util.Log;
 
+import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch;
+import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientFactory;
+import org.thoughtcrime.securesms.recipients.Recipients;
+import org.whispersystems.libaxolotl.InvalidMessageException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class PlaintextBackupExporter {
 
+  private static final String TAG = PlaintextBackupExporter.class.getSimpleName();
+
+  private static final int BATCH_SIZE = 500;
+
   public static void exportPlaintextToSd(Context context, MasterSecret masterSecret)
       throws NoExternalStorageException, IOException
   {
@@ -29,38 +52,274 @@ public class PlaintextBackupExporter {
     return sdDirectory.getAbsolutePath() + File.separator + "TextSecurePlaintextBackup.xml";
   }
 
+  /**
+   * Pages through the SMS table and then the MMS text messages by id, on this thread.
+   * Each page is decrypted and converted on a worker pool, and the results are written
+   * back out here in order, so only a few pages are ever held in memory.
+   */
   private static void exportPlaintext(Context context, MasterSecret masterSecret)
       throws IOException
   {
-    int count               = DatabaseFactory.getSmsDatabase(context).getMessageCount();
-    XmlBackup.Writer writer = new XmlBackup.Writer(getPlaintextExportDirectoryPath(), count);
+    SmsDatabase      smsDatabase = DatabaseFactory.getSmsDatabase(context);
+    MmsDatabase      mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+    int              count       = smsDatabase.getMessageCount() + mmsDatabase.getTextMessageCount();
+    XmlBackup.Writer writer      = new XmlBackup.Writer(getPlaintextExportDirectoryPath(), count);
+    ExportPipeline   pipeline    = new ExportPipeline(context, masterSecret, writer);
+    long             startTime   = System.currentTimeMillis();
+
+    try {
+      long lastId = 0;
+      List<ExportRow> rows;
+
+      while (!(rows = readSmsRows(smsDatabase, lastId)).isEmpty()) {
+        lastId = rows.get(rows.size() - 1).id;
+        pipeline.submit(rows);
+      }
+
+      lastId = 0;
+
+      while (!(rows = readMmsRows(mmsDatabase, lastId)).isEmpty()) {
+        lastId = rows.get(rows.size() - 1).id;
+        pipeline.submit(rows);
+      }
+
+      pipeline.finish();
+    } finally {
+      pipeline.shutdown();
+      writer.close();
+    }
+
+    Log.w(TAG, "Exported " + count + " messages in " + (System.currentTimeMillis() - startTime) + "ms");
+  }
+
+  private static List<ExportRow> readSmsRows(SmsDatabase database, long lastId) {
+    List<ExportRow> rows   = new LinkedList<>();
+    Cursor          cursor = null;
+
+    try {
+      cursor = database.getMessagesAfter(lastId, BATCH_SIZE);
+
+      while (cursor != null && cursor.moveToNext()) {
+        ExportRow row = new ExportRow(false);
+        row.id           = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
+        row.threadId     = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.THREAD_ID));
+        row.address      = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.ADDRESS));
+        row.deviceId     = cursor.getInt(cursor.getColumnIndexOrThrow(SmsDatabase.ADDRESS_DEVICE_ID));
+        row.type         = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
+        row.dateReceived = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.NORMALIZED_DATE_RECEIVED));
+        row.dateSent     = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.NORMALIZED_DATE_SENT));
+        row.status       = cursor.getInt(cursor.getColumnIndexOrThrow(SmsDatabase.STATUS));
+        row.receiptCount = cursor.getInt(cursor.getColumnIndexOrThrow(SmsDatabase.RECEIPT_COUNT));
+        row.body         = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.BODY));
+        rows.add(row);
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
 
+    return rows;
+  }
+
+  private static List<ExportRow> readMmsRows(MmsDatabase database, long lastId) {
+    List<ExportRow> rows   = new LinkedList<>();
+    Cursor          cursor = null;
+
+    try {
+      cursor = database.getTextMessagesAfter(lastId, BATCH_SIZE);
+
+      while (cursor != null && cursor.moveToNext()) {
+        ExportRow row = new ExportRow(true);
+        row.id           = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.ID));
+        row.threadId     = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.THREAD_ID));
+        row.address      = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.ADDRESS));
+        row.type         = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
+        row.dateReceived = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.NORMALIZED_DATE_RECEIVED));
+        row.status       = SmsDatabase.Status.STATUS_NONE;
+        row.body         = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.BODY));
+        rows.add(row);
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return rows;
+  }
 
-    SmsMessageRecord record;
-    EncryptingSmsDatabase.Reader reader = null;
-    int skip                            = 0;
-    int ROW_LIMIT                       = 500;
+  private static class ExportRow {
+    private final boolean mms;
 
-    do {
-      if (reader != null)
-        reader.close();
+    private long   id;
+    private long   threadId;
+    private String address;
+    private int    deviceId;
+    private long   type;
+    private long   dateReceived;
+    private long   dateSent;
+    private int    status;
+    private int    receiptCount;
+    private String body;
 
-      reader = DatabaseFactory.getEncryptingSmsDatabase(context).getMessages(masterSecret, skip, ROW_LIMIT);
+    ExportRow(boolean mms) {
+      this.mms = mms;
+    }
+  }
 
-      while ((record = reader.getNext()) != null) {
-        XmlBackup.XmlBackupItem item =
-            new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
-                                        record.getDateReceived(),
-                                        MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
-                                        null, record.getDisplayBody().toString(), null,
-                                        1, record.getDeliveryStatus());
+  private static class ExportPipeline {
 
-        writer.writeItem(item);
+    private final Context                                           context;
+    private final MasterCipher                                      masterCipher;
+    private final XmlBackup.Writer                                  writer;
+    private final ExecutorService                                   executor;
+    private final int                                               maxPending;
+    private final LinkedList<Future<List<XmlBackup.XmlBackupItem>>> pending           = new LinkedList<>();
+    private final ConcurrentHashMap<String, Recipients>             addressRecipients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Recipients>               threadRecipients  = new ConcurrentHashMap<>();
+
+    ExportPipeline(Context context, MasterSecret masterSecret, XmlBackup.Writer writer) {
+      int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+      this.context      = context;
+      this.masterCipher = new MasterCipher(masterSecret);
+      this.writer       = writer;
+      this.executor     = Executors.newFixedThreadPool(threads);
+      this.maxPending   = threads * 2;
+    }
+
+    void submit(final List<ExportRow> rows) throws IOException {
+      pending.add(executor.submit(new Callable<List<XmlBackup.XmlBackupItem>>() {
+        @Override
+        public List<XmlBackup.XmlBackupItem> call() {
+          List<XmlBackup.XmlBackupItem> items = new LinkedList<>();
+
+          for (ExportRow row : rows) {
+            items.add(row.mms ? getMmsItem(row) : getSmsItem(row));
+          }
+
+          return items;
+        }
+      }));
+
+      while (pending.size() > maxPending) {
+        writeNext();
       }
+    }
 
-      skip += ROW_LIMIT;
-    } while (reader.getCount() > 0);
+    void finish() throws IOException {
+      while (!pending.isEmpty()) {
+        writeNext();
+      }
+    }
+
+    void shutdown() {
+      executor.shutdownNow();
+    }
+
+    private void writeNext() throws IOException {
+      try {
+        for (XmlBackup.XmlBackupItem item : pending.removeFirst().get()) {
+          writer.writeItem(item);
+        }
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted during export");
+      } catch (ExecutionException e) {
+        Log.w(TAG, e);
+        throw new IOException("Export failed: " + e.getCause());
+      }
+    }
+
+    private XmlBackup.XmlBackupItem getSmsItem(ExportRow row) {
+      Recipients       recipients = getRecipientsForAddress(row.address);
+      SmsMessageRecord record     = new SmsMessageRecord(context, row.id, getSmsBody(row), recipients,
+                                                         recipients.getPrimaryRecipient(), row.deviceId,
+                                                         row.dateSent, row.dateReceived, row.receiptCount,
+                                                         row.type, row.threadId, row.status,
+                                                         new LinkedList<IdentityKeyMismatch>());
+
+      return new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
+                                         record.getDateReceived(),
+                                         MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
+                                         null, record.getDisplayBody().toString(), null,
+                                         1, record.getDeliveryStatus());
+    }
+
+    private XmlBackup.XmlBackupItem getMmsItem(ExportRow row) {
+      Recipients recipients;
+
+      if (TextUtils.isEmpty(row.address) || row.address.equals("insert-address-token")) {
+        recipients = getRecipientsForThread(row.threadId);
+      } else {
+        recipients = getRecipientsForAddress(row.address);
+      }
+
+      String body = row.body;
+
+      if (MmsSmsColumns.Types.isSymmetricEncryption(row.type)) {
+        try {
+          body = masterCipher.decryptBody(row.body);
+        } catch (InvalidMessageException e) {
+          Log.w(TAG, e);
+          body = context.getString(R.string.MmsDatabase_error_decrypting_message);
+        }
+      }
+
+      return new XmlBackup.XmlBackupItem(0, recipients.getPrimaryRecipient().getNumber(), row.dateReceived,
+                                         MmsSmsColumns.Types.translateToSystemBaseType(row.type),
+                                         null, body, null, 1, row.status);
+    }
+
+    private DisplayRecord.Body getSmsBody(ExportRow row) {
+      if (row.body == null) {
+        return new DisplayRecord.Body("", true);
+      }
+
+      try {
+        if (SmsDatabase.Types.isSymmetricEncryption(row.type)) {
+          return new DisplayRecord.Body(masterCipher.decryptBody(row.body), true);
+        } else {
+          return new DisplayRecord.Body(row.body, true);
+        }
+      } catch (InvalidMessageException e) {
+        Log.w(TAG, e);
+        return new DisplayRecord.Body(context.getString(R.string.EncryptingSmsDatabase_error_decrypting_message), true);
+      }
+    }
+
+    private Recipients getRecipientsForAddress(String address) {
+      if (address == null) {
+        return new Recipients(Recipient.getUnknownRecipient(context));
+      }
+
+      Recipients recipients = addressRecipients.get(address);
+
+      if (recipients == null) {
+        recipients = RecipientFactory.getRecipientsFromString(context, address, false);
+
+        if (recipients == null || recipients.isEmpty()) {
+          recipients = new Recipients(Recipient.getUnknownRecipient(context));
+        }
+
+        addressRecipients.put(address, recipients);
+      }
+
+      return recipients;
+    }
+
+    private Recipients getRecipientsForThread(long threadId) {
+      Recipients recipients = threadRecipients.get(threadId);
+
+      if (recipients == null) {
+        recipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
+
+        if (recipients == null || recipients.isEmpty()) {
+          recipients = new Recipients(Recipient.getUnknownRecipient(context));
+        }
+
+        threadRecipients.put(threadId, recipients);
+      }
 
-    writer.close();
+      return recipients;
+    }
   }
 }
@@ -9,22 +9,38 @@ import android.util.Log;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
-import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class PlaintextBackupImporter {
 
+  private static final String TAG = PlaintextBackupImporter.class.getSimpleName();
+
+  private static final String CHECKPOINT_NAME = "plaintext_import";
+
+  private static final int BATCH_SIZE      = 500;
+  private static final int COMMIT_INTERVAL = 5000;
+
   public static void importPlaintextFromSd(Context context, MasterSecret masterSecret)
       throws NoExternalStorageException, IOException
   {
-    Log.w("PlaintextBackupImporter", "Importing plaintext...");
+    Log.w(TAG, "Importing plaintext...");
     verifyExternalStorageForPlaintextImport();
     importPlaintext(context, masterSecret);
   }
@@ -40,24 +56,30 @@ public class PlaintextBackupImporter {
     return sdDirectory.getAbsolutePath() + File.separator + "TextSecurePlaintextBackup.xml";
   }
 
+  /**
+   * Parses the backup on this thread, encrypts bodies a batch at a time on a worker pool,
+   * and inserts the encrypted batches back on this thread in order, through one statement.
+   *
+   * The import is committed every {@link #COMMIT_INTERVAL} rows, and each commit records how
+   * far into the backup it got in the same transaction.  If the import is interrupted, running it again against the
+   * same file picks up from the last commit instead of importing everything twice.
+   */
   private static void importPlaintext(Context context, MasterSecret masterSecret)
       throws IOException
   {
-    Log.w("PlaintextBackupImporter", "importPlaintext()");
-    SmsDatabase    db          = DatabaseFactory.getSmsDatabase(context);
-    SQLiteDatabase transaction = db.beginTransaction();
+    Log.w(TAG, "importPlaintext()");
+    File           file     = new File(getPlaintextExportDirectoryPath());
+    ImportPipeline pipeline = new ImportPipeline(context, masterSecret, file);
 
     try {
-      ThreadDatabase threads         = DatabaseFactory.getThreadDatabase(context);
-      XmlBackup      backup          = new XmlBackup(getPlaintextExportDirectoryPath());
-      MasterCipher   masterCipher    = new MasterCipher(masterSecret);
-      Set<Long>      modifiedThreads = new HashSet<Long>();
+      XmlBackup               backup   = new XmlBackup(file.getAbsolutePath());
+      List<ImportRow>         rows     = new ArrayList<>(BATCH_SIZE);
+      int                     position = 0;
       XmlBackup.XmlBackupItem item;
 
       while ((item = backup.getNext()) != null) {
-        Recipients      recipients = RecipientFactory.getRecipientsFromString(context, item.getAddress(), false);
-        long            threadId   = threads.getThreadIdFor(recipients);
-        SQLiteStatement statement  = db.createInsertStatement(transaction);
+        if (++position <= pipeline.getResumePosition())
+          continue;
 
         if (item.getAddress() == null || item.getAddress().equals("null"))
           continue;
@@ -65,42 +87,29 @@ public class PlaintextBackupImporter {
         if (!isAppropriateTypeForImport(item.getType()))
           continue;
 
-        addStringToStatement(statement, 1, item.getAddress());
-        addNullToStatement(statement, 2);
-        addLongToStatement(statement, 3, item.getDate());
-        addLongToStatement(statement, 4, item.getDate());
-        addLongToStatement(statement, 5, item.getProtocol());
-        addLongToStatement(statement, 6, item.getRead());
-        addLongToStatement(statement, 7, item.getStatus());
-        addTranslatedTypeToStatement(statement, 8, item.getType());
-        addNullToStatement(statement, 9);
-        addStringToStatement(statement, 10, item.getSubject());
-        addEncryptedStingToStatement(masterCipher, statement, 11, item.getBody());
-        addStringToStatement(statement, 12, item.getServiceCenter());
-        addLongToStatement(statement, 13, threadId);
-        modifiedThreads.add(threadId);
-        statement.execute();
-      }
+        rows.add(new ImportRow(item));
 
-      for (long threadId : modifiedThreads) {
-        threads.update(threadId);
+        if (rows.size() >= BATCH_SIZE) {
+          pipeline.submit(rows, position);
+          rows = new ArrayList<>(BATCH_SIZE);
+        }
       }
 
-      Log.w("PlaintextBackupImporter", "Exited loop");
+      pipeline.submit(rows, position);
+      pipeline.finish();
+
+      Log.w(TAG, "Exited loop");
     } catch (XmlPullParserException e) {
-      Log.w("PlaintextBackupImporter", e);
+      Log.w(TAG, e);
       throw new IOException("XML Parsing error!");
     } finally {
-      db.endTransaction(transaction);
+      pipeline.shutdown();
     }
   }
 
-  private static void addEncryptedStingToStatement(MasterCipher masterCipher, SQLiteStatement statement, int index, String value) {
-    if (value == null || value.equals("null")) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, masterCipher.encryptBody(value));
-    }
+  private static void addEncryptedStringToStatement(SQLiteStatement statement, int index, String value) {
+    if (value == null) statement.bindNull(index);
+    else               statement.bindString(index, value);
   }
 
   private static void addTranslatedTypeToStatement(SQLiteStatement statement, int index, int type) {
@@ -128,5 +137,202 @@ public class PlaintextBackupImporter {
            ourType == MmsSmsColumns.Types.BASE_SENT_FAILED_TYPE;
   }
 
+  private static class ImportRow {
+    private final XmlBackup.XmlBackupItem item;
+    private       String                  encryptedBody;
+
+    ImportRow(XmlBackup.XmlBackupItem item) {
+      this.item = item;
+    }
+  }
+
+  private static class ImportBatch {
+    private final List<ImportRow> rows;
+    private final int             position;
+
+    ImportBatch(List<ImportRow> rows, int position) {
+      this.rows     = rows;
+      this.position = position;
+    }
+  }
+
+  private static class ImportPipeline {
+
+    private final Context                         context;
+    private final MasterCipher                    masterCipher;
+    private final SmsDatabase                     smsDatabase;
+    private final ThreadDatabase                  threadDatabase;
+    private final CheckpointDatabase              checkpointDatabase;
+    private final String                          checkpointKey;
+    private final int                             resumePosition;
+    private final ExecutorService                 executor;
+    private final int                             maxPending;
+    private final LinkedList<Future<ImportBatch>> pending         = new LinkedList<>();
+    private final Map<String, Long>               threadIds       = new HashMap<>();
+    private final Set<Long>                       modifiedThreads = new HashSet<>();
+
+    private SQLiteDatabase  transaction;
+    private SQLiteStatement statement;
+    private int             uncommitted;
+    private int             inserted;
+
+    ImportPipeline(Context context, MasterSecret masterSecret, File file) {
+      int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+      this.context            = context;
+      this.masterCipher       = new MasterCipher(masterSecret);
+      this.smsDatabase        = DatabaseFactory.getSmsDatabase(context);
+      this.threadDatabase     = DatabaseFactory.getThreadDatabase(context);
+      this.checkpointDatabase = DatabaseFactory.getCheckpointDatabase(context);
+      this.checkpointKey      = file.length() + ":" + file.lastModified() + ":";
+      this.resumePosition     = getCheckpoint(checkpointDatabase, checkpointKey);
+      this.executor           = Executors.newFixedThreadPool(threads);
+      this.maxPending         = threads * 2;
+
+      if (resumePosition > 0) {
+        Log.w(TAG, "Resuming import after item " + resumePosition);
+      }
+    }
+
+    int getResumePosition() {
+      return resumePosition;
+    }
+
+    void submit(final List<ImportRow> rows, final int position) throws IOException {
+      pending.add(executor.submit(new Callable<ImportBatch>() {
+        @Override
+        public ImportBatch call() {
+          for (ImportRow row : rows) {
+            String body = row.item.getBody();
+
+            if (body != null && !body.equals("null")) {
+              row.encryptedBody = masterCipher.encryptBody(body);
+            }
+          }
+
+          return new ImportBatch(rows, position);
+        }
+      }));
+
+      while (pending.size() > maxPending) {
+        insertNext();
+      }
+    }
+
+    void finish() throws IOException {
+      while (!pending.isEmpty()) {
+        insertNext();
+      }
+
+      if (transaction == null) {
+        transaction = smsDatabase.beginTransaction();
+      }
+
+      commit(null);
+      Log.w(TAG, "Imported " + inserted + " messages");
+    }
+
+    void shutdown() {
+      executor.shutdownNow();
+
+      if (statement != null) {
+        statement.close();
+      }
+
+      if (transaction != null) {
+        Log.w(TAG, "Rolling back to last checkpoint");
+        transaction.endTransaction();
+        transaction = null;
+      }
+    }
+
+    private void insertNext() throws IOException {
+      ImportBatch batch;
+
+      try {
+        batch = pending.removeFirst().get();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted during import");
+      } catch (ExecutionException e) {
+        Log.w(TAG, e);
+        throw new IOException("Import failed: " + e.getCause());
+      }
+
+      if (transaction == null) {
+        transaction = smsDatabase.beginTransaction();
+      }
+
+      if (statement == null) {
+        statement = smsDatabase.createInsertStatement(transaction);
+      }
+
+      for (ImportRow row : batch.rows) {
+        XmlBackup.XmlBackupItem item     = row.item;
+        long                    threadId = getThreadId(item.getAddress());
 
+        addStringToStatement(statement, 1, item.getAddress());
+        addNullToStatement(statement, 2);
+        addLongToStatement(statement, 3, item.getDate());
+        addLongToStatement(statement, 4, item.getDate());
+        addLongToStatement(statement, 5, item.getProtocol());
+        addLongToStatement(statement, 6, item.getRead());
+        addLongToStatement(statement, 7, item.getStatus());
+        addTranslatedTypeToStatement(statement, 8, item.getType());
+        addNullToStatement(statement, 9);
+        addStringToStatement(statement, 10, item.getSubject());
+        addEncryptedStringToStatement(statement, 11, row.encryptedBody);
+        addStringToStatement(statement, 12, item.getServiceCenter());
+        addLongToStatement(statement, 13, threadId);
+        modifiedThreads.add(threadId);
+        statement.execute();
+      }
+
+      inserted    += batch.rows.size();
+      uncommitted += batch.rows.size();
+
+      if (uncommitted >= COMMIT_INTERVAL) {
+        commit(checkpointKey + batch.position);
+      }
+    }
+
+    private void commit(String checkpoint) {
+      for (long threadId : modifiedThreads) {
+        threadDatabase.update(threadId);
+      }
+
+      checkpointDatabase.setCheckpoint(CHECKPOINT_NAME, checkpoint);
+      smsDatabase.endTransaction(transaction);
+
+      transaction = null;
+      uncommitted = 0;
+      modifiedThreads.clear();
+    }
+
+    private long getThreadId(String address) {
+      Long threadId = threadIds.get(address);
+
+      if (threadId == null) {
+        Recipients recipients = RecipientFactory.getRecipientsFromString(context, address, false);
+        threadId = threadDatabase.getThreadIdFor(recipients);
+        threadIds.put(address, threadId);
+      }
+
+      return threadId;
+    }
+
+    private static int getCheckpoint(CheckpointDatabase checkpointDatabase, String checkpointKey) {
+      String checkpoint = checkpointDatabase.getCheckpoint(CHECKPOINT_NAME);
+
+      if (checkpoint == null || !checkpoint.startsWith(checkpointKey)) {
+        return 0;
+      }
+
+      try {
+        return Integer.parseInt(checkpoint.substring(checkpointKey.length()));
+      } catch (NumberFormatException e) {
+        Log.w(TAG, e);
+        return 0;
+      }
+    }
+  }
 }
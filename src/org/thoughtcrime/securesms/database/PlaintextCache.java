@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide cache of decrypted message bodies, keyed by (table, message id).
+ *
+ * The cache is split into independently locked stripes, each of which is an LRU
+ * bounded by an approximate byte size rather than an entry count.  Every entry
+ * remembers a cheap fingerprint of the ciphertext it was decrypted from, so a
+ * rewritten or reused row is never served a stale plaintext.
+ */
+public class PlaintextCache {
+
+  public static final int SMS = 0;
+  public static final int MMS = 1;
+
+  private static final int STRIPES          = 16;
+  private static final int MAX_BYTES        = 1024 * 1024;
+  private static final int ENTRY_OVERHEAD   = 64;
+  private static final int FINGERPRINT_TAIL = 16;
+
+  private static final PlaintextCache instance = new PlaintextCache(MAX_BYTES);
+
+  private final Stripe[]   stripes;
+  private final AtomicLong hits      = new AtomicLong();
+  private final AtomicLong misses    = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public static PlaintextCache getInstance() {
+    return instance;
+  }
+
+  /*package*/ PlaintextCache(int maxBytes) {
+    this.stripes = new Stripe[STRIPES];
+
+    for (int i=0;i<stripes.length;i++) {
+      stripes[i] = new Stripe(maxBytes / STRIPES);
+    }
+  }
+
+  public String get(int table, long messageId, String ciphertext) {
+    long   key    = getKey(table, messageId);
+    Stripe stripe = getStripe(key);
+    Entry  entry;
+
+    synchronized (stripe) {
+      entry = stripe.entries.get(key);
+    }
+
+    if (entry != null && entry.fingerprint == getFingerprint(ciphertext)) {
+      hits.incrementAndGet();
+      return entry.plaintext;
+    }
+
+    misses.incrementAndGet();
+    return null;
+  }
+
+  public void put(int table, long messageId, String ciphertext, String plaintext) {
+    long   key    = getKey(table, messageId);
+    Stripe stripe = getStripe(key);
+    Entry  entry  = new Entry(plaintext, getFingerprint(ciphertext));
+
+    synchronized (stripe) {
+      Entry previous = stripe.entries.put(key, entry);
+
+      if (previous != null) stripe.size -= previous.size;
+      stripe.size += entry.size;
+
+      Iterator<Map.Entry<Long, Entry>> iterator = stripe.entries.entrySet().iterator();
+
+      while (stripe.size > stripe.maxSize && iterator.hasNext()) {
+        Entry evicted = iterator.next().getValue();
+
+        iterator.remove();
+        stripe.size -= evicted.size;
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  public void remove(int table, long messageId) {
+    long   key    = getKey(table, messageId);
+    Stripe stripe = getStripe(key);
+
+    synchronized (stripe) {
+      Entry removed = stripe.entries.remove(key);
+      if (removed != null) stripe.size -= removed.size;
+    }
+  }
+
+  /**
+   * Drops every decrypted body.  Called when the master secret is cleared.
+   */
+  public void clear() {
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.entries.clear();
+        stripe.size = 0;
+      }
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "PlaintextCache[hits=" + hits.get() + ", misses=" + misses.get() +
+           ", evictions=" + evictions.get() + "]";
+  }
+
+  private Stripe getStripe(long key) {
+    int hash = (int)(key ^ (key >>> 32));
+    hash ^= (hash >>> 16);
+
+    return stripes[(hash & 0x7fffffff) % stripes.length];
+  }
+
+  private static long getKey(int table, long messageId) {
+    return (messageId << 1) | table;
+  }
+
+  /**
+   * The trailing characters of an encoded body are its MAC, so the length and
+   * those characters are enough to distinguish ciphertexts without hashing the
+   * whole string.
+   */
+  private static long getFingerprint(String ciphertext) {
+    int  length      = ciphertext.length();
+    long fingerprint = length;
+
+    for (int i=Math.max(0, length - FINGERPRINT_TAIL);i<length;i++) {
+      fingerprint = 31 * fingerprint + ciphertext.charAt(i);
+    }
+
+    return fingerprint;
+  }
+
+  private static class Stripe {
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final int                        maxSize;
+
+    private int size;
+
+    private Stripe(int maxSize) {
+      this.maxSize = maxSize;
+    }
+  }
+
+  private static class Entry {
+    private final String plaintext;
+    private final long   fingerprint;
+    private final int    size;
+
+    private Entry(String plaintext, long fingerprint) {
+      this.plaintext   = plaintext;
+      this.fingerprint = fingerprint;
+      this.size        = ENTRY_OVERHEAD + plaintext.length() * 2;
+    }
+  }
+}
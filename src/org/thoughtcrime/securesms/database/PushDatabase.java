@@ -4,12 +4,13 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.util.Log;
 
-import org.thoughtcrime.securesms.util.Base64;
 import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
 
-import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 
 public class PushDatabase extends Database {
 
@@ -24,7 +25,11 @@ public class PushDatabase extends Database {
   public  static final String TIMESTAMP    = "timestamp";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
-      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + BODY + " TEXT, " + TIMESTAMP + " INTEGER);";
+      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + BODY + " BLOB, " + TIMESTAMP + " INTEGER);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE INDEX IF NOT EXISTS push_source_index ON " + TABLE_NAME + " (" + SOURCE + ");",
+  };
 
   public PushDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -35,7 +40,7 @@ public class PushDatabase extends Database {
     values.put(TYPE, envelope.getType());
     values.put(SOURCE, envelope.getSource());
     values.put(DEVICE_ID, envelope.getSourceDevice());
-    values.put(BODY, Base64.encodeBytes(envelope.getMessage()));
+    values.put(BODY, envelope.getMessage());
     values.put(TIMESTAMP, envelope.getTimestamp());
 
     return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
@@ -55,11 +60,8 @@ public class PushDatabase extends Database {
                                       cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID)),
                                       "",
                                       cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP)),
-                                      Base64.decode(cursor.getString(cursor.getColumnIndexOrThrow(BODY))));
+                                      cursor.getBlob(cursor.getColumnIndexOrThrow(BODY)));
       }
-    } catch (IOException e) {
-      Log.w(TAG, e);
-      throw new NoSuchMessageException(e);
     } finally {
       if (cursor != null)
         cursor.close();
@@ -72,6 +74,48 @@ public class PushDatabase extends Database {
     return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, null);
   }
 
+  /**
+   * @return The ids of every message still waiting to be decrypted from this source,
+   *         in the order they were received.
+   */
+  public List<Long> getPendingIds(String source) {
+    List<Long> results = new LinkedList<>();
+    Cursor     cursor  = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {ID}, SOURCE + " = ?",
+                                                          new String[] {source}, null, null, ID + " ASC");
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getLong(0));
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  public Set<String> getPendingSources() {
+    Set<String> results = new HashSet<>();
+    Cursor      cursor  = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(true, TABLE_NAME, new String[] {SOURCE},
+                                                          null, null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getString(0));
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public void delete(long id) {
     databaseHelper.getWritableDatabase().delete(TABLE_NAME, ID_WHERE, new String[] {id+""});
   }
@@ -88,20 +132,16 @@ public class PushDatabase extends Database {
     }
 
     public TextSecureEnvelope getNext() {
-      try {
-        if (cursor == null || !cursor.moveToNext())
-          return null;
-
-        int          type         = cursor.getInt(cursor.getColumnIndexOrThrow(TYPE));
-        String       source       = cursor.getString(cursor.getColumnIndexOrThrow(SOURCE));
-        int          deviceId     = cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID));
-        byte[]       body         = Base64.decode(cursor.getString(cursor.getColumnIndexOrThrow(BODY)));
-        long         timestamp    = cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP));
-
-        return new TextSecureEnvelope(type, source, deviceId, "", timestamp, body);
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
+      if (cursor == null || !cursor.moveToNext())
+        return null;
+
+      int          type         = cursor.getInt(cursor.getColumnIndexOrThrow(TYPE));
+      String       source       = cursor.getString(cursor.getColumnIndexOrThrow(SOURCE));
+      int          deviceId     = cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID));
+      byte[]       body         = cursor.getBlob(cursor.getColumnIndexOrThrow(BODY));
+      long         timestamp    = cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP));
+
+      return new TextSecureEnvelope(type, source, deviceId, "", timestamp, body);
     }
 
     public void close() {
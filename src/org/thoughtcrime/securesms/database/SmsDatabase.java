@@ -41,15 +41,13 @@ import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
 import org.thoughtcrime.securesms.util.JsonUtils;
 import org.whispersystems.jobqueue.JobManager;
-import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import static org.thoughtcrime.securesms.util.Util.canonicalizeNumber;
-
 /**
  * Database for storage of SMS messages.
  *
@@ -99,7 +97,7 @@ public class SmsDatabase extends MessagingDatabase {
 
   public SmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
-    this.jobManager = ApplicationContext.getInstance(context).getJobManager();
+    this.jobManager = ApplicationContext.getInstance(context).getBackgroundJobManager();
   }
 
   protected String getTableName() {
@@ -116,7 +114,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    DatabaseFactory.getThreadDatabase(context).refresh(threadId);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
   }
@@ -251,7 +249,10 @@ public class SmsDatabase extends MessagingDatabase {
     updateTypeBitmask(id, Types.BASE_TYPE_MASK, Types.BASE_SENT_FAILED_TYPE);
   }
 
-  public void incrementDeliveryReceiptCount(String address, long timestamp) {
+  /*package*/ void incrementDeliveryReceiptCount(String address, long timestamp,
+                                                Map<String, String> canonicalNumbers,
+                                                Set<Long> threadIds)
+  {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     Cursor         cursor   = null;
 
@@ -262,20 +263,17 @@ public class SmsDatabase extends MessagingDatabase {
 
       while (cursor.moveToNext()) {
         if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
-          try {
-            String theirAddress = canonicalizeNumber(context, address);
-            String ourAddress   = canonicalizeNumber(context, cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
-
-            if (ourAddress.equals(theirAddress)) {
-              database.execSQL("UPDATE " + TABLE_NAME +
-                               " SET " + RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " +
-                               ID + " = ?",
-                               new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
-
-              notifyConversationListeners(cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID)));
-            }
-          } catch (InvalidNumberException e) {
-            Log.w("SmsDatabase", e);
+          String ourAddress = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS));
+
+          if (address.equals(ourAddress) ||
+              address.equals(MmsSmsDatabase.canonicalizeNumber(context, canonicalNumbers, ourAddress)))
+          {
+            database.execSQL("UPDATE " + TABLE_NAME +
+                             " SET " + RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " +
+                             ID + " = ?",
+                             new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
+
+            threadIds.add(cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID)));
           }
         }
       }
@@ -312,7 +310,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    DatabaseFactory.getThreadDatabase(context).refresh(threadId);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
   }
@@ -335,7 +333,7 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db           = databaseHelper.getWritableDatabase();
     long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
 
-    DatabaseFactory.getThreadDatabase(context).update(record.getThreadId());
+    DatabaseFactory.getThreadDatabase(context).refresh(record.getThreadId());
     notifyConversationListeners(record.getThreadId());
 
     jobManager.add(new TrimThreadJob(context, record.getThreadId()));
@@ -409,7 +407,7 @@ public class SmsDatabase extends MessagingDatabase {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    DatabaseFactory.getThreadDatabase(context).refresh(threadId);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -442,16 +440,17 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db        = databaseHelper.getWritableDatabase();
     long           messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    DatabaseFactory.getThreadDatabase(context).refresh(threadId);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
     return messageId;
   }
 
-  Cursor getMessages(int skip, int limit) {
+  Cursor getMessagesAfter(long messageId, int limit) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, null, null, null, null, ID, skip + "," + limit);
+    return db.query(TABLE_NAME, MESSAGE_PROJECTION, ID + " > ?", new String[] {String.valueOf(messageId)},
+                    null, null, ID, String.valueOf(limit));
   }
 
   Cursor getOutgoingMessages() {
@@ -487,7 +486,8 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long threadId     = getThreadIdForMessage(messageId);
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    PlaintextCache.getInstance().remove(PlaintextCache.SMS, messageId);
+    DatabaseFactory.getThreadDatabase(context).refresh(threadId);
     notifyConversationListeners(threadId);
   }
 
@@ -498,15 +498,9 @@ public class SmsDatabase extends MessagingDatabase {
 
   /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    String where      = THREAD_ID + " = ? AND (CASE " + TYPE;
-
-    for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-      where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
-    }
-
-    where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
+    String where      = ID + " IN (" + MmsSmsDatabase.getMessagesBeforeDateQuery(MmsSmsDatabase.SMS_TRANSPORT) + ")";
 
-    db.delete(TABLE_NAME, where, new String[] {threadId + ""});
+    db.delete(TABLE_NAME, where, new String[] {threadId + "", date + ""});
   }
 
   /*package*/ void deleteThreads(Set<Long> threadIds) {
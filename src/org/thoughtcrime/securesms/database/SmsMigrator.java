@@ -21,64 +21,66 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.text.TextUtils;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
-import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
 import org.thoughtcrime.securesms.recipients.Recipients;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Copies the system SMS database into ours.
+ *
+ * Conversations are read one at a time, in batches of rows, on the calling thread.
+ * Bodies are encrypted on a worker pool, and the encrypted batches are inserted back on
+ * the calling thread in order, through one statement.  The migration commits every
+ * {@link #COMMIT_INTERVAL} rows and checkpoints how far it got in the same transaction, so
+ * a migration that's killed part way through picks up from its last commit when it's run
+ * again.
+ */
 public class SmsMigrator {
 
-  private static void addEncryptedStringToStatement(Context context, SQLiteStatement statement,
-                                                    Cursor cursor, MasterSecret masterSecret,
-                                                    int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
+  private static final String TAG = SmsMigrator.class.getSimpleName();
 
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, encrypt(masterSecret, cursor.getString(columnIndex)));
-    }
-  }
+  private static final String PREFERENCES_NAME             = "SecureSMS";
+  private static final String MIGRATED_PREF                = "migrated";
+  private static final String COMPLETED_THREADS_CHECKPOINT = "sms_migration_completed_threads";
+  private static final String PARTIAL_THREAD_CHECKPOINT    = "sms_migration_partial_thread";
+  private static final String PARTIAL_MESSAGE_CHECKPOINT   = "sms_migration_partial_message";
 
-  private static void addStringToStatement(SQLiteStatement statement, Cursor cursor,
-                                           int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
+  private static final int BATCH_SIZE      = 250;
+  private static final int COMMIT_INTERVAL = 2000;
 
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, cursor.getString(columnIndex));
-    }
+  private static void addStringToStatement(SQLiteStatement statement, int index, String value) {
+    if (value == null) statement.bindNull(index);
+    else               statement.bindString(index, value);
   }
 
-  private static void addIntToStatement(SQLiteStatement statement, Cursor cursor,
-                                        int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
-
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindLong(index, cursor.getLong(columnIndex));
-    }
+  private static void addLongToStatement(SQLiteStatement statement, int index, Long value) {
+    if (value == null) statement.bindNull(index);
+    else               statement.bindLong(index, value);
   }
 
-  private static void addTranslatedTypeToStatement(SQLiteStatement statement, Cursor cursor,
-                                                   int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
-
-    if (cursor.isNull(columnIndex)) {
+  private static void addTranslatedTypeToStatement(SQLiteStatement statement, int index, Long theirType) {
+    if (theirType == null) {
       statement.bindLong(index, SmsDatabase.Types.BASE_INBOX_TYPE | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
     } else {
-      long theirType = cursor.getLong(columnIndex);
       statement.bindLong(index, SmsDatabase.Types.translateFromSystemBaseType(theirType) | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
     }
   }
@@ -92,26 +94,63 @@ public class SmsMigrator {
            ourType == MmsSmsColumns.Types.BASE_SENT_FAILED_TYPE;
   }
 
-  private static void getContentValuesForRow(Context context, MasterSecret masterSecret,
-                                             Cursor cursor, long threadId,
-                                             SQLiteStatement statement)
-  {
-    addStringToStatement(statement, cursor, 1, SmsDatabase.ADDRESS);
-    addIntToStatement(statement, cursor, 2, SmsDatabase.PERSON);
-    addIntToStatement(statement, cursor, 3, SmsDatabase.DATE_RECEIVED);
-    addIntToStatement(statement, cursor, 4, SmsDatabase.DATE_RECEIVED);
-    addIntToStatement(statement, cursor, 5, SmsDatabase.PROTOCOL);
-    addIntToStatement(statement, cursor, 6, SmsDatabase.READ);
-    addIntToStatement(statement, cursor, 7, SmsDatabase.STATUS);
-    addTranslatedTypeToStatement(statement, cursor, 8, SmsDatabase.TYPE);
-    addIntToStatement(statement, cursor, 9, SmsDatabase.REPLY_PATH_PRESENT);
-    addStringToStatement(statement, cursor, 10, SmsDatabase.SUBJECT);
-    addEncryptedStringToStatement(context, statement, cursor, masterSecret, 11, SmsDatabase.BODY);
-    addStringToStatement(statement, cursor, 12, SmsDatabase.SERVICE_CENTER);
+  private static String getString(Cursor cursor, String key) {
+    int columnIndex = cursor.getColumnIndexOrThrow(key);
+
+    if (cursor.isNull(columnIndex)) return null;
+    else                            return cursor.getString(columnIndex);
+  }
+
+  private static Long getLong(Cursor cursor, String key) {
+    int columnIndex = cursor.getColumnIndexOrThrow(key);
+
+    if (cursor.isNull(columnIndex)) return null;
+    else                            return cursor.getLong(columnIndex);
+  }
+
+  private static void bindRow(MigrationRow row, long threadId, SQLiteStatement statement) {
+    addStringToStatement(statement, 1, row.address);
+    addLongToStatement(statement, 2, row.person);
+    addLongToStatement(statement, 3, row.dateReceived);
+    addLongToStatement(statement, 4, row.dateReceived);
+    addLongToStatement(statement, 5, row.protocol);
+    addLongToStatement(statement, 6, row.read);
+    addLongToStatement(statement, 7, row.status);
+    addTranslatedTypeToStatement(statement, 8, row.type);
+    addLongToStatement(statement, 9, row.replyPathPresent);
+    addStringToStatement(statement, 10, row.subject);
+    addStringToStatement(statement, 11, row.encryptedBody);
+    addStringToStatement(statement, 12, row.serviceCenter);
 
     statement.bindLong(13, threadId);
   }
 
+  /**
+   * @return Every system recipient id mapped to its address, from one query, or an empty
+   *         map if the system won't list them all at once.
+   */
+  private static Map<String, String> getTheirCanonicalAddresses(Context context) {
+    Map<String, String> addresses = new HashMap<>();
+    Uri                 uri       = Uri.parse("content://mms-sms/canonical-addresses");
+    Cursor              cursor    = null;
+
+    try {
+      cursor = context.getContentResolver().query(uri, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        addresses.put(cursor.getString(cursor.getColumnIndexOrThrow("_id")),
+                      cursor.getString(cursor.getColumnIndexOrThrow("address")));
+      }
+    } catch (IllegalStateException | IllegalArgumentException | SecurityException e) {
+      Log.w(TAG, e);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return addresses;
+  }
+
   private static String getTheirCanonicalAddress(Context context, String theirRecipientId) {
     Uri uri       = Uri.parse("content://mms-sms/canonical-address/" + theirRecipientId);
     Cursor cursor = null;
@@ -125,7 +164,7 @@ public class SmsMigrator {
         return null;
       }
     } catch (IllegalStateException iae) {
-      Log.w("SmsMigrator", iae);
+      Log.w(TAG, iae);
       return null;
     } finally {
       if (cursor != null)
@@ -133,13 +172,18 @@ public class SmsMigrator {
     }
   }
 
-  private static Recipients getOurRecipients(Context context, String theirRecipients) {
+  private static Recipients getOurRecipients(Context context, Map<String, String> canonicalAddresses,
+                                             String theirRecipients)
+  {
     StringTokenizer tokenizer = new StringTokenizer(theirRecipients.trim(), " ");
     StringBuilder sb          = new StringBuilder();
 
     while (tokenizer.hasMoreTokens()) {
       String theirRecipientId = tokenizer.nextToken();
-      String address          = getTheirCanonicalAddress(context, theirRecipientId);
+      String address          = canonicalAddresses.get(theirRecipientId);
+
+      if (address == null)
+        address = getTheirCanonicalAddress(context, theirRecipientId);
 
       if (address == null)
         continue;
@@ -154,41 +198,42 @@ public class SmsMigrator {
     else                  return RecipientFactory.getRecipientsFromString(context, sb.toString(), true);
   }
 
-  private static String encrypt(MasterSecret masterSecret, String body)
-  {
-    MasterCipher masterCipher = new MasterCipher(masterSecret);
-    return masterCipher.encryptBody(body);
-  }
-
-  private static void migrateConversation(Context context, MasterSecret masterSecret,
+  private static void migrateConversation(Context context, MigrationPipeline pipeline,
                                           SmsMigrationProgressListener listener,
                                           ProgressDescription progress,
                                           long theirThreadId, long ourThreadId)
+      throws IOException
   {
-    SmsDatabase ourSmsDatabase = DatabaseFactory.getSmsDatabase(context);
-    Cursor cursor              = null;
+    Cursor cursor = null;
 
     try {
-      Uri uri                    = Uri.parse("content://sms/conversations/" + theirThreadId);
-      cursor                     = context.getContentResolver().query(uri, null, null, null, null);
-      SQLiteDatabase transaction = ourSmsDatabase.beginTransaction();
-      SQLiteStatement statement  = ourSmsDatabase.createInsertStatement(transaction);
+      Uri    uri       = Uri.parse("content://sms/conversations/" + theirThreadId);
+      long   resumeId  = pipeline.getResumeMessageId(theirThreadId);
+      String selection = resumeId > 0 ? "_id > " + resumeId : null;
+
+      cursor = context.getContentResolver().query(uri, null, selection, null, "_id ASC");
+
+      List<MigrationRow> rows          = new ArrayList<>(BATCH_SIZE);
+      long               lastMessageId = resumeId;
 
       while (cursor != null && cursor.moveToNext()) {
         int typeColumn = cursor.getColumnIndex(SmsDatabase.TYPE);
 
+        lastMessageId = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
+
         if (cursor.isNull(typeColumn) || isAppropriateTypeForMigration(cursor, typeColumn)) {
-          getContentValuesForRow(context, masterSecret, cursor, ourThreadId, statement);
-          statement.execute();
+          rows.add(new MigrationRow(cursor));
         }
 
-        listener.progressUpdate(new ProgressDescription(progress, cursor.getCount(), cursor.getPosition()));
+        if (rows.size() >= BATCH_SIZE) {
+          pipeline.submit(new MigrationBatch(theirThreadId, ourThreadId, lastMessageId, false, rows));
+          listener.progressUpdate(new ProgressDescription(progress, cursor.getCount(), cursor.getPosition(),
+                                                          pipeline.getMessagesPerSecond()));
+          rows = new ArrayList<>(BATCH_SIZE);
+        }
       }
 
-      ourSmsDatabase.endTransaction(transaction);
-      DatabaseFactory.getThreadDatabase(context).update(ourThreadId);
-      DatabaseFactory.getThreadDatabase(context).notifyConversationListeners(ourThreadId);
-
+      pipeline.submit(new MigrationBatch(theirThreadId, ourThreadId, lastMessageId, true, rows));
     } finally {
       if (cursor != null)
         cursor.close();
@@ -202,8 +247,10 @@ public class SmsMigrator {
 //    if (context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).getBoolean("migrated", false))
 //      return;
 
-    ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
-    Cursor cursor                 = null;
+    ThreadDatabase      threadDatabase     = DatabaseFactory.getThreadDatabase(context);
+    Map<String, String> canonicalAddresses = getTheirCanonicalAddresses(context);
+    MigrationPipeline   pipeline           = new MigrationPipeline(context, masterSecret);
+    Cursor              cursor             = null;
 
     try {
       Uri threadListUri = Uri.parse("content://mms-sms/conversations?simple=true");
@@ -212,26 +259,275 @@ public class SmsMigrator {
       while (cursor != null && cursor.moveToNext()) {
         long   theirThreadId         = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
         String theirRecipients       = cursor.getString(cursor.getColumnIndexOrThrow("recipient_ids"));
-        Recipients ourRecipients     = getOurRecipients(context, theirRecipients);
         ProgressDescription progress = new ProgressDescription(cursor.getCount(), cursor.getPosition(), 100, 0);
 
-        if (ourRecipients != null) {
-          long ourThreadId = threadDatabase.getThreadIdFor(ourRecipients);
-          migrateConversation(context, masterSecret,
-                              listener, progress,
-                              theirThreadId, ourThreadId);
+        if (!pipeline.isCompleted(theirThreadId)) {
+          Recipients ourRecipients = getOurRecipients(context, canonicalAddresses, theirRecipients);
+
+          if (ourRecipients != null) {
+            long ourThreadId = threadDatabase.getThreadIdFor(ourRecipients);
+            migrateConversation(context, pipeline,
+                                listener, progress,
+                                theirThreadId, ourThreadId);
+          }
         }
 
         progress.incrementPrimaryComplete();
-        listener.progressUpdate(progress);
+        listener.progressUpdate(new ProgressDescription(progress, 100, 0, pipeline.getMessagesPerSecond()));
       }
+
+      pipeline.finish();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
     } finally {
+      pipeline.shutdown();
+
       if (cursor != null)
         cursor.close();
     }
 
-    context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).edit()
-      .putBoolean("migrated", true).apply();
+    context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+      .putBoolean(MIGRATED_PREF, true).apply();
+  }
+
+  private static class MigrationRow {
+    private final String address;
+    private final Long   person;
+    private final Long   dateReceived;
+    private final Long   protocol;
+    private final Long   read;
+    private final Long   status;
+    private final Long   type;
+    private final Long   replyPathPresent;
+    private final String subject;
+    private final String body;
+    private final String serviceCenter;
+
+    private String encryptedBody;
+
+    MigrationRow(Cursor cursor) {
+      this.address          = getString(cursor, SmsDatabase.ADDRESS);
+      this.person           = getLong(cursor, SmsDatabase.PERSON);
+      this.dateReceived     = getLong(cursor, SmsDatabase.DATE_RECEIVED);
+      this.protocol         = getLong(cursor, SmsDatabase.PROTOCOL);
+      this.read             = getLong(cursor, SmsDatabase.READ);
+      this.status           = getLong(cursor, SmsDatabase.STATUS);
+      this.type             = getLong(cursor, SmsDatabase.TYPE);
+      this.replyPathPresent = getLong(cursor, SmsDatabase.REPLY_PATH_PRESENT);
+      this.subject          = getString(cursor, SmsDatabase.SUBJECT);
+      this.body             = getString(cursor, SmsDatabase.BODY);
+      this.serviceCenter    = getString(cursor, SmsDatabase.SERVICE_CENTER);
+    }
+  }
+
+  private static class MigrationBatch {
+    private final long               theirThreadId;
+    private final long               ourThreadId;
+    private final long               lastMessageId;
+    private final boolean            lastInConversation;
+    private final List<MigrationRow> rows;
+
+    MigrationBatch(long theirThreadId, long ourThreadId, long lastMessageId,
+                   boolean lastInConversation, List<MigrationRow> rows)
+    {
+      this.theirThreadId      = theirThreadId;
+      this.ourThreadId        = ourThreadId;
+      this.lastMessageId      = lastMessageId;
+      this.lastInConversation = lastInConversation;
+      this.rows               = rows;
+    }
+  }
+
+  private static class MigrationPipeline {
+
+    private final Context                            context;
+    private final MasterCipher                       masterCipher;
+    private final SmsDatabase                        smsDatabase;
+    private final ThreadDatabase                     threadDatabase;
+    private final CheckpointDatabase                 checkpointDatabase;
+    private final ExecutorService                    executor;
+    private final int                                maxPending;
+    private final LinkedList<Future<MigrationBatch>> pending         = new LinkedList<>();
+    private final Set<Long>                          completed       = new HashSet<>();
+    private final Set<Long>                          modifiedThreads = new HashSet<>();
+    private final long                               resumeThreadId;
+    private final long                               resumeMessageId;
+    private final long                               startTime;
+
+    private SQLiteDatabase  transaction;
+    private SQLiteStatement statement;
+    private int             uncommitted;
+    private int             migrated;
+    private long            partialThreadId  = -1;
+    private long            partialMessageId = -1;
+
+    MigrationPipeline(Context context, MasterSecret masterSecret) {
+      int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+      this.context            = context;
+      this.masterCipher       = new MasterCipher(masterSecret);
+      this.smsDatabase        = DatabaseFactory.getSmsDatabase(context);
+      this.threadDatabase     = DatabaseFactory.getThreadDatabase(context);
+      this.checkpointDatabase = DatabaseFactory.getCheckpointDatabase(context);
+      this.executor           = Executors.newFixedThreadPool(threads);
+      this.maxPending         = threads * 2;
+      this.resumeThreadId     = getLongCheckpoint(PARTIAL_THREAD_CHECKPOINT);
+      this.resumeMessageId    = getLongCheckpoint(PARTIAL_MESSAGE_CHECKPOINT);
+      this.startTime          = System.currentTimeMillis();
+
+      String completedThreads = checkpointDatabase.getCheckpoint(COMPLETED_THREADS_CHECKPOINT);
+
+      if (completedThreads != null) {
+        for (String threadId : completedThreads.split(",")) {
+          if (!TextUtils.isEmpty(threadId)) completed.add(Long.parseLong(threadId));
+        }
+      }
+
+      if (!completed.isEmpty() || resumeThreadId != -1) {
+        Log.w(TAG, "Resuming migration after " + completed.size() + " conversations");
+      }
+    }
+
+    boolean isCompleted(long theirThreadId) {
+      return completed.contains(theirThreadId);
+    }
+
+    long getResumeMessageId(long theirThreadId) {
+      return theirThreadId == resumeThreadId ? resumeMessageId : -1;
+    }
+
+    int getMessagesPerSecond() {
+      long elapsed = System.currentTimeMillis() - startTime;
+      return elapsed > 0 ? (int)(migrated * 1000L / elapsed) : 0;
+    }
+
+    void submit(final MigrationBatch batch) throws IOException {
+      pending.add(executor.submit(new Callable<MigrationBatch>() {
+        @Override
+        public MigrationBatch call() {
+          for (MigrationRow row : batch.rows) {
+            if (row.body != null) {
+              row.encryptedBody = masterCipher.encryptBody(row.body);
+            }
+          }
+
+          return batch;
+        }
+      }));
+
+      while (pending.size() > maxPending) {
+        insertNext();
+      }
+    }
+
+    void finish() throws IOException {
+      while (!pending.isEmpty()) {
+        insertNext();
+      }
+
+      if (transaction == null) {
+        transaction = smsDatabase.beginTransaction();
+      }
+
+      commit(true);
+
+      Log.w(TAG, "Migrated " + migrated + " messages at " + getMessagesPerSecond() + "/s");
+    }
+
+    void shutdown() {
+      executor.shutdownNow();
+
+      if (statement != null) {
+        statement.close();
+      }
+
+      if (transaction != null) {
+        Log.w(TAG, "Rolling back to last checkpoint");
+        transaction.endTransaction();
+        transaction = null;
+      }
+    }
+
+    private void insertNext() throws IOException {
+      MigrationBatch batch;
+
+      try {
+        batch = pending.removeFirst().get();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted during migration");
+      } catch (ExecutionException e) {
+        Log.w(TAG, e);
+        throw new IOException("Migration failed: " + e.getCause());
+      }
+
+      if (transaction == null) {
+        transaction = smsDatabase.beginTransaction();
+      }
+
+      if (statement == null) {
+        statement = smsDatabase.createInsertStatement(transaction);
+      }
+
+      for (MigrationRow row : batch.rows) {
+        bindRow(row, batch.ourThreadId, statement);
+        statement.execute();
+      }
+
+      migrated    += batch.rows.size();
+      uncommitted += batch.rows.size();
+      modifiedThreads.add(batch.ourThreadId);
+
+      if (batch.lastInConversation) {
+        completed.add(batch.theirThreadId);
+        partialThreadId  = -1;
+        partialMessageId = -1;
+      } else {
+        partialThreadId  = batch.theirThreadId;
+        partialMessageId = batch.lastMessageId;
+      }
+
+      if (uncommitted >= COMMIT_INTERVAL) {
+        commit(false);
+      }
+    }
+
+    private void commit(boolean finished) {
+      for (long threadId : modifiedThreads) {
+        threadDatabase.update(threadId);
+      }
+
+      if (finished) {
+        checkpointDatabase.setCheckpoint(COMPLETED_THREADS_CHECKPOINT, null);
+        checkpointDatabase.setCheckpoint(PARTIAL_THREAD_CHECKPOINT, null);
+        checkpointDatabase.setCheckpoint(PARTIAL_MESSAGE_CHECKPOINT, null);
+      } else {
+        checkpointDatabase.setCheckpoint(COMPLETED_THREADS_CHECKPOINT, TextUtils.join(",", completed));
+        checkpointDatabase.setCheckpoint(PARTIAL_THREAD_CHECKPOINT, String.valueOf(partialThreadId));
+        checkpointDatabase.setCheckpoint(PARTIAL_MESSAGE_CHECKPOINT, String.valueOf(partialMessageId));
+      }
+
+      smsDatabase.endTransaction(transaction);
+
+      transaction = null;
+      uncommitted = 0;
+
+      for (long threadId : modifiedThreads) {
+        threadDatabase.notifyConversationListeners(threadId);
+      }
+
+      modifiedThreads.clear();
+    }
+
+    private long getLongCheckpoint(String name) {
+      String checkpoint = checkpointDatabase.getCheckpoint(name);
+
+      try {
+        return checkpoint == null ? -1 : Long.parseLong(checkpoint);
+      } catch (NumberFormatException e) {
+        Log.w(TAG, e);
+        return -1;
+      }
+    }
   }
 
   public interface SmsMigrationProgressListener {
@@ -243,6 +539,7 @@ public class SmsMigrator {
     public       int primaryComplete;
     public final int secondaryTotal;
     public final int secondaryComplete;
+    public final int messagesPerSecond;
 
     public ProgressDescription(int primaryTotal, int primaryComplete,
                                int secondaryTotal, int secondaryComplete)
@@ -251,13 +548,17 @@ public class SmsMigrator {
       this.primaryComplete   = primaryComplete;
       this.secondaryTotal    = secondaryTotal;
       this.secondaryComplete = secondaryComplete;
+      this.messagesPerSecond = 0;
     }
 
-    public ProgressDescription(ProgressDescription that, int secondaryTotal, int secondaryComplete) {
+    public ProgressDescription(ProgressDescription that, int secondaryTotal, int secondaryComplete,
+                               int messagesPerSecond)
+    {
       this.primaryComplete   = that.primaryComplete;
       this.primaryTotal      = that.primaryTotal;
       this.secondaryComplete = secondaryComplete;
       this.secondaryTotal    = secondaryTotal;
+      this.messagesPerSecond = messagesPerSecond;
     }
 
     public void incrementPrimaryComplete() {
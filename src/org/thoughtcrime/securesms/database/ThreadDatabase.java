@@ -28,7 +28,6 @@ import android.util.Log;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.database.model.DisplayRecord;
-import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
@@ -36,7 +35,9 @@ import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 
+import java.io.File;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -44,6 +45,8 @@ import java.util.Set;
 
 public class ThreadDatabase extends Database {
 
+  private static final int TRIM_BATCH_SIZE = 50;
+
           static final String TABLE_NAME      = "thread";
   public  static final String ID              = "_id";
   public  static final String DATE            = "date";
@@ -67,6 +70,23 @@ public class ThreadDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + RECIPIENT_IDS + ");",
   };
 
+  /**
+   * Keeps each thread's message count in step with the message timeline, so that
+   * inserts and deletes don't need to recount the whole thread.
+   */
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS timeline_thread_count_insert AFTER INSERT ON " + MmsSmsDatabase.TIMELINE_TABLE_NAME + " BEGIN " +
+      "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1 WHERE " + ID + " = new." + MmsSmsColumns.THREAD_ID + "; END;",
+
+    "CREATE TRIGGER IF NOT EXISTS timeline_thread_count_delete AFTER DELETE ON " + MmsSmsDatabase.TIMELINE_TABLE_NAME + " BEGIN " +
+      "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1 WHERE " + ID + " = old." + MmsSmsColumns.THREAD_ID + "; END;",
+
+    "CREATE TRIGGER IF NOT EXISTS timeline_thread_count_update AFTER UPDATE OF " + MmsSmsColumns.THREAD_ID + " ON " + MmsSmsDatabase.TIMELINE_TABLE_NAME + " " +
+      "WHEN old." + MmsSmsColumns.THREAD_ID + " != new." + MmsSmsColumns.THREAD_ID + " BEGIN " +
+      "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1 WHERE " + ID + " = old." + MmsSmsColumns.THREAD_ID + "; " +
+      "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1 WHERE " + ID + " = new." + MmsSmsColumns.THREAD_ID + "; END;"
+  };
+
   public ThreadDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -117,11 +137,10 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
-  private void updateThread(long threadId, long count, String body, long date, long type)
+  private void updateThread(long threadId, String body, long date, long type)
   {
-    ContentValues contentValues = new ContentValues(4);
+    ContentValues contentValues = new ContentValues(3);
     contentValues.put(DATE, date - date % 1000);
-    contentValues.put(MESSAGE_COUNT, count);
     contentValues.put(SNIPPET, body);
     contentValues.put(SNIPPET_TYPE, type);
 
@@ -166,52 +185,85 @@ public class ThreadDatabase extends Database {
   }
 
   public void trimAllThreads(int length, ProgressListener listener) {
-    Cursor cursor   = null;
-    int threadCount = 0;
-    int complete    = 0;
+    List<Long> threadIds = new LinkedList<>();
+    Cursor     cursor    = null;
 
     try {
-      cursor = this.getConversationList();
-
-      if (cursor != null)
-        threadCount = cursor.getCount();
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {ID}, null, null, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
-        long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-        trimThread(threadId, length);
-
-        listener.onProgress(++complete, threadCount);
+        threadIds.add(cursor.getLong(0));
       }
     } finally {
       if (cursor != null)
         cursor.close();
     }
+
+    int  complete  = 0;
+    long startTime = System.currentTimeMillis();
+
+    for (int i=0;i<threadIds.size();i+=TRIM_BATCH_SIZE) {
+      List<Long> batch = threadIds.subList(i, Math.min(threadIds.size(), i + TRIM_BATCH_SIZE));
+
+      trimThreads(batch, length);
+      complete += batch.size();
+
+      long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+      Log.w("ThreadDatabase", "Trimmed " + complete + "/" + threadIds.size() + " threads, " +
+                              (complete * 1000 / elapsed) + " threads/s");
+
+      listener.onProgress(complete, threadIds.size());
+    }
   }
 
   public void trimThread(long threadId, int length) {
-    Log.w("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length);
-    Cursor cursor = null;
+    trimThreads(Collections.singletonList(threadId), length);
+  }
+
+  /**
+   * Trims a batch of threads down to their newest <code>length</code> messages in a single
+   * transaction.  Part files and listener notifications are deferred until it commits.
+   */
+  private void trimThreads(List<Long> threadIds, int length) {
+    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
+    SmsDatabase    smsDatabase    = DatabaseFactory.getSmsDatabase(context);
+    MmsDatabase    mmsDatabase    = DatabaseFactory.getMmsDatabase(context);
+    SQLiteDatabase db             = databaseHelper.getWritableDatabase();
+    List<Long>     trimmed        = new LinkedList<>();
+    List<File>     files          = new LinkedList<>();
+
+    db.beginTransaction();
 
     try {
-      cursor = DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+      for (long threadId : threadIds) {
+        long boundary = mmsSmsDatabase.getTrimBoundary(threadId, length);
 
-      if (cursor != null && cursor.getCount() > length) {
-        Log.w("ThreadDatabase", "Cursor count is greater than length!");
-        cursor.moveToPosition(cursor.getCount() - length);
+        if (boundary == -1) continue;
 
-        long lastTweetDate = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+        Log.w("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length + " before: " + boundary);
 
-        Log.w("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
+        smsDatabase.deleteMessagesInThreadBeforeDate(threadId, boundary);
+        files.addAll(mmsDatabase.deleteMessagesInThreadBeforeDate(threadId, boundary));
 
-        DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
-        DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+        refreshSummary(threadId, getMessageCount(threadId));
+        trimmed.add(threadId);
+      }
 
-        update(threadId);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    for (File file : files) {
+      file.delete();
+    }
+
+    if (!trimmed.isEmpty()) {
+      notifyConversationListListeners();
+
+      for (long threadId : trimmed) {
         notifyConversationListeners(threadId);
       }
-    } finally {
-      if (cursor != null)
-        cursor.close();
     }
   }
 
@@ -388,38 +440,86 @@ public class ThreadDatabase extends Database {
     return null;
   }
 
+  /**
+   * Recomputes a thread's message count and snippet from scratch.  Counts are otherwise
+   * maintained by triggers, so this is only needed to repair a thread after bulk changes.
+   */
   public void update(long threadId) {
-    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
-    long count                    = mmsSmsDatabase.getConversationCount(threadId);
+    long count = DatabaseFactory.getMmsSmsDatabase(context).getConversationCount(threadId);
+
+    ContentValues contentValues = new ContentValues(1);
+    contentValues.put(MESSAGE_COUNT, count);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId + ""});
 
-    if (count == 0) {
+    refresh(threadId, count);
+  }
+
+  /**
+   * Brings a thread's snippet and date up to date after a message in it has been
+   * inserted, deleted, or changed.  The cost doesn't depend on the size of the thread.
+   */
+  public void refresh(long threadId) {
+    refresh(threadId, getMessageCount(threadId));
+  }
+
+  private void refresh(long threadId, long count) {
+    refreshSummary(threadId, count);
+    notifyConversationListListeners();
+  }
+
+  private void refreshSummary(long threadId, long count) {
+    if (count <= 0) {
       deleteThread(threadId);
-      notifyConversationListListeners();
       return;
     }
 
-    MmsSmsDatabase.Reader reader = null;
+    Cursor cursor = null;
 
     try {
-      reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId));
-      MessageRecord record;
+      cursor = DatabaseFactory.getMmsSmsDatabase(context).getConversationSnippet(threadId);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        String  transport = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
+        boolean mms       = MmsSmsDatabase.MMS_TRANSPORT.equals(transport);
+        String  body      = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsColumns.BODY));
+        long    dateSent  = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_SENT));
+        long    received  = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+        long    type      = mms ? cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX))
+                                : cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
+
+        if (mms && body == null) body = "";
 
-      if (reader != null && (record = reader.getNext()) != null) {
         final long timestamp;
 
-        if (record.isPush()) timestamp = record.getDateSent();
-        else                 timestamp = record.getDateReceived();
+        if (MmsSmsColumns.Types.isPushType(type)) timestamp = dateSent;
+        else                                      timestamp = received;
 
-        updateThread(threadId, count, record.getBody().getBody(), timestamp, record.getType());
+        updateThread(threadId, body, timestamp, type);
       } else {
         deleteThread(threadId);
       }
     } finally {
-      if (reader != null)
-        reader.close();
+      if (cursor != null)
+        cursor.close();
     }
+  }
 
-    notifyConversationListListeners();
+  private long getMessageCount(long threadId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT}, ID_WHERE,
+                        new String[] {threadId + ""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getLong(0);
+      else                                        return 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
   }
 
   public static interface ProgressListener {
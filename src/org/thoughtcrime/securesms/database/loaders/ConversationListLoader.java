@@ -2,15 +2,23 @@ package org.thoughtcrime.securesms.database.loaders;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.text.TextUtils;
+import android.util.Log;
 
 import org.thoughtcrime.securesms.contacts.ContactAccessor;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.ThreadDatabase;
+import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class ConversationListLoader extends AbstractCursorLoader {
 
+  private static final int PREFETCH_COUNT = 50;
+
   private final String filter;
 
   public ConversationListLoader(Context context, String filter) {
@@ -20,12 +28,39 @@ public class ConversationListLoader extends AbstractCursorLoader {
 
   @Override
   public Cursor getCursor() {
+    Cursor cursor;
+
     if (filter != null && filter.trim().length() != 0) {
       List<String> numbers = ContactAccessor.getInstance().getNumbersForThreadSearchFilter(context, filter);
 
-      return DatabaseFactory.getThreadDatabase(context).getFilteredConversationList(numbers);
+      cursor = DatabaseFactory.getThreadDatabase(context).getFilteredConversationList(numbers);
     } else {
-      return DatabaseFactory.getThreadDatabase(context).getConversationList();
+      cursor = DatabaseFactory.getThreadDatabase(context).getConversationList();
     }
+
+    if (cursor != null) prefetchRecipients(cursor);
+
+    return cursor;
+  }
+
+  private void prefetchRecipients(Cursor cursor) {
+    Set<Long> recipientIds = new HashSet<>();
+
+    while (cursor.getPosition() < PREFETCH_COUNT - 1 && cursor.moveToNext()) {
+      String ids = cursor.getString(cursor.getColumnIndexOrThrow(ThreadDatabase.RECIPIENT_IDS));
+
+      if (TextUtils.isEmpty(ids)) continue;
+
+      for (String id : ids.trim().split(" ")) {
+        try {
+          recipientIds.add(Long.parseLong(id));
+        } catch (NumberFormatException e) {
+          Log.w("ConversationListLoader", e);
+        }
+      }
+    }
+
+    cursor.moveToPosition(-1);
+    RecipientFactory.prefetchRecipients(context, recipientIds);
   }
 }
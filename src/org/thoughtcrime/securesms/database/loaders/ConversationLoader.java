@@ -3,19 +3,70 @@ package org.thoughtcrime.securesms.database.loaders;
 import android.content.Context;
 import android.database.Cursor;
 
+import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.DecryptingCursor;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
 
+/**
+ * Loads a conversation a page at a time.  The first load covers the newest
+ * {@link #PAGE_SIZE} messages, and every call to {@link #loadOlder()} extends the
+ * window by another page using a keyset on the normalized received date.  Reloads
+ * triggered by content changes keep the same lower bound, so new messages are
+ * appended without re-reading the whole thread.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
+
+  public static final int PAGE_SIZE = 100;
+
+  private final MasterSecret             masterSecret;
   private final long                     threadId;
 
-  public ConversationLoader(Context context, long threadId) {
+  private volatile long    sinceDate      = -1;
+  private volatile boolean olderRequested = false;
+  private volatile boolean hasOlder       = false;
+
+  public ConversationLoader(Context context, MasterSecret masterSecret, long threadId) {
     super(context);
-    this.threadId = threadId;
+    this.masterSecret = masterSecret;
+    this.threadId     = threadId;
+  }
+
+  public void loadOlder() {
+    olderRequested = true;
+    onContentChanged();
+  }
+
+  public boolean hasOlder() {
+    return hasOlder;
   }
 
   @Override
   public Cursor getCursor() {
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+
+    if (sinceDate == -1) {
+      sinceDate = database.getPageBoundary(threadId, Long.MAX_VALUE, PAGE_SIZE);
+    }
+
+    if (olderRequested && sinceDate > 0) {
+      long boundary = database.getPageBoundary(threadId, sinceDate, PAGE_SIZE);
+      if (boundary != -1) sinceDate = boundary;
+    }
+
+    olderRequested = false;
+    hasOlder       = sinceDate > 0 && database.getPageBoundary(threadId, sinceDate, 1) != -1;
+
+    Cursor cursor = database.getConversation(threadId, Math.max(sinceDate, 0));
+
+    if (masterSecret == null) {
+      return cursor;
+    }
+
+    DecryptingCursor decryptingCursor = new DecryptingCursor(context, masterSecret, cursor);
+    decryptingCursor.decryptNewestWindow();
+
+    return decryptingCursor;
   }
 }
@@ -3,7 +3,7 @@ package org.thoughtcrime.securesms.dependencies;
 import android.content.Context;
 
 import org.thoughtcrime.securesms.crypto.MasterSecret;
-import org.thoughtcrime.securesms.crypto.storage.TextSecureAxolotlStore;
+import org.thoughtcrime.securesms.crypto.storage.AxolotlStoreFactory;
 import org.thoughtcrime.securesms.jobs.CleanPreKeysJob;
 import org.whispersystems.libaxolotl.state.SignedPreKeyStore;
 
@@ -23,7 +23,7 @@ public class AxolotlStorageModule {
     return new SignedPreKeyStoreFactory() {
       @Override
       public SignedPreKeyStore create(MasterSecret masterSecret) {
-        return new TextSecureAxolotlStore(context, masterSecret);
+        return AxolotlStoreFactory.createSignedPreKeyStore(context, masterSecret);
       }
     };
   }
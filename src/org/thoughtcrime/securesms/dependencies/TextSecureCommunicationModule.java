@@ -4,7 +4,7 @@ import android.content.Context;
 
 import org.thoughtcrime.securesms.Release;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
-import org.thoughtcrime.securesms.crypto.storage.TextSecureAxolotlStore;
+import org.thoughtcrime.securesms.crypto.storage.AxolotlStoreFactory;
 import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob;
 import org.thoughtcrime.securesms.jobs.CleanPreKeysJob;
 import org.thoughtcrime.securesms.jobs.CreateSignedPreKeyJob;
@@ -61,7 +61,7 @@ public class TextSecureCommunicationModule {
                                            new TextSecurePushTrustStore(context),
                                            TextSecurePreferences.getLocalNumber(context),
                                            TextSecurePreferences.getPushServerPassword(context),
-                                           new TextSecureAxolotlStore(context, masterSecret),
+                                           AxolotlStoreFactory.createAxolotlStore(context, masterSecret),
                                            Optional.of((TextSecureMessageSender.EventListener)
                                                            new SecurityEventListener(context)));
       }
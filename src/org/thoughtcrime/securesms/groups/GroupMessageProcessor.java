@@ -162,7 +162,7 @@ public class GroupMessageProcessor {
                                    GroupContext storage)
   {
     if (group.getAvatar().isPresent()) {
-      ApplicationContext.getInstance(context).getJobManager()
+      ApplicationContext.getInstance(context).getBackgroundJobManager()
                         .add(new AvatarDownloadJob(context, group.getGroupId()));
     }
 
@@ -23,7 +23,13 @@ import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 
@@ -34,6 +40,9 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
 
   private static final String TAG = AttachmentDownloadJob.class.getSimpleName();
 
+  private static final int             MAX_CONCURRENT_DOWNLOADS = 3;
+  private static final ExecutorService DOWNLOAD_EXECUTOR        = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS);
+
   @Inject transient TextSecureMessageReceiver messageReceiver;
 
   private final long messageId;
@@ -51,26 +60,59 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
   @Override
   public void onAdded() {}
 
+  /**
+   * Downloads the parts which are still pending, a few at a time.  The download pool is
+   * shared by every message, so this also bounds the downloads running for different
+   * messages at once.  Parts which finished on an earlier attempt are skipped, so a retry
+   * after a network failure only fetches what's left.
+   */
   @Override
-  public void onRun(MasterSecret masterSecret) throws IOException {
-    PartDatabase database = DatabaseFactory.getPartDatabase(context);
+  public void onRun(final MasterSecret masterSecret) throws IOException {
+    PartDatabase       database  = DatabaseFactory.getPartDatabase(context);
+    List<Future<Void>> futures   = new LinkedList<>();
+    long               startTime = System.currentTimeMillis();
 
     Log.w(TAG, "Downloading push parts for: " + messageId);
 
-    List<Pair<Long, PduPart>> parts = database.getParts(messageId);
+    for (final Pair<Long, PduPart> partPair : getPendingParts(database)) {
+      futures.add(DOWNLOAD_EXECUTOR.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          retrievePart(masterSecret, partPair.second, messageId, partPair.first);
+          Log.w(TAG, "Got part: " + partPair.first);
+          return null;
+        }
+      }));
+    }
 
-    for (Pair<Long, PduPart> partPair : parts) {
-      retrievePart(masterSecret, partPair.second, messageId, partPair.first);
-      Log.w(TAG, "Got part: " + partPair.first);
+    IOException failure = null;
+
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted during attachment download");
+      } catch (ExecutionException e) {
+        Log.w(TAG, e);
+        if (!(e.getCause() instanceof IOException)) throw new IOException(e.getCause());
+
+        // A network failure on any part should get the whole job retried.
+        if (!(failure instanceof PushNetworkException)) {
+          failure = (IOException)e.getCause();
+        }
+      }
     }
+
+    if (failure != null) throw failure;
+
+    Log.w(TAG, "Downloaded " + futures.size() + " parts in " + (System.currentTimeMillis() - startTime) + "ms");
   }
 
   @Override
   public void onCanceled() {
-    PartDatabase              database = DatabaseFactory.getPartDatabase(context);
-    List<Pair<Long, PduPart>> parts    = database.getParts(messageId);
+    PartDatabase database = DatabaseFactory.getPartDatabase(context);
 
-    for (Pair<Long, PduPart> partPair : parts) {
+    for (Pair<Long, PduPart> partPair : getPendingParts(database)) {
       markFailed(messageId, partPair.second, partPair.first);
     }
   }
@@ -80,6 +122,18 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     return (exception instanceof PushNetworkException);
   }
 
+  private List<Pair<Long, PduPart>> getPendingParts(PartDatabase database) {
+    List<Pair<Long, PduPart>> pending = new LinkedList<>();
+
+    for (Pair<Long, PduPart> partPair : database.getParts(messageId)) {
+      if (partPair.second.isPendingPush()) {
+        pending.add(partPair);
+      }
+    }
+
+    return pending;
+  }
+
   private void retrievePart(MasterSecret masterSecret, PduPart part, long messageId, long partId)
       throws IOException
   {
@@ -0,0 +1,43 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.crypto.storage.AxolotlStoreFactory;
+import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
+import org.whispersystems.jobqueue.JobParameters;
+
+/**
+ * Moves the file backed key records into the database store, off of whichever thread
+ * first noticed the database store had been enabled.
+ */
+public class KeyStoreMigrationJob extends MasterSecretJob {
+
+  private static final String TAG = KeyStoreMigrationJob.class.getSimpleName();
+
+  public KeyStoreMigrationJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(KeyStoreMigrationJob.class.getSimpleName())
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  public void onRun(MasterSecret masterSecret) {
+    AxolotlStoreFactory.migrateToDatabase(context, masterSecret);
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Key store migration failed, it'll be retried the next time a store is created.");
+  }
+}
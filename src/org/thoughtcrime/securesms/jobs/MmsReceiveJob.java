@@ -56,7 +56,7 @@ public class MmsReceiveJob extends ContextJob {
       Log.w(TAG, "Inserted received MMS notification...");
 
       ApplicationContext.getInstance(context)
-                        .getJobManager()
+                        .getBackgroundJobManager()
                         .add(new MmsDownloadJob(context,
                                                 messageAndThreadId.first,
                                                 messageAndThreadId.second,
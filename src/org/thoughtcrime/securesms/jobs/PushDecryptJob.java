@@ -7,8 +7,7 @@ import android.util.Pair;
 import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.crypto.SecurityEvent;
-import org.thoughtcrime.securesms.crypto.storage.TextSecureAxolotlStore;
-import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
+import org.thoughtcrime.securesms.crypto.storage.AxolotlStoreFactory;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.EncryptingSmsDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
@@ -46,6 +45,8 @@ import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
 import org.whispersystems.textsecure.api.messages.TextSecureGroup;
 import org.whispersystems.textsecure.api.messages.TextSecureMessage;
 
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import ws.com.google.android.mms.MmsException;
@@ -54,8 +55,22 @@ public class PushDecryptJob extends MasterSecretJob {
 
   public static final String TAG = PushDecryptJob.class.getSimpleName();
 
-  private final long messageId;
-  private final long smsMessageId;
+  // The computed value before the sender field was added, so jobs persisted by earlier
+  // versions still deserialize.
+  private static final long serialVersionUID = 7494414496677426173L;
+
+  private static final long ALL_PENDING = -1;
+
+  private final long   messageId;
+  private final long   smsMessageId;
+  private final String sender;
+
+  /**
+   * Decrypts every message still pending from this sender, in the order they arrived.
+   */
+  public PushDecryptJob(Context context, String sender) {
+    this(context, ALL_PENDING, -1, sender);
+  }
 
   public PushDecryptJob(Context context, long pushMessageId, String sender) {
     this(context, pushMessageId, -1, sender);
@@ -70,6 +85,7 @@ public class PushDecryptJob extends MasterSecretJob {
                                 .create());
     this.messageId    = pushMessageId;
     this.smsMessageId = smsMessageId;
+    this.sender       = sender;
   }
 
   @Override
@@ -81,11 +97,31 @@ public class PushDecryptJob extends MasterSecretJob {
 
   @Override
   public void onRun(MasterSecret masterSecret) throws NoSuchMessageException {
-    PushDatabase       database = DatabaseFactory.getPushDatabase(context);
-    TextSecureEnvelope envelope = database.get(messageId);
+    PushDatabase     database       = DatabaseFactory.getPushDatabase(context);
+    AxolotlStore     axolotlStore   = AxolotlStoreFactory.createAxolotlStore(context, masterSecret);
+    TextSecureCipher cipher         = new TextSecureCipher(axolotlStore);
+    Set<Long>        threadIds      = new HashSet<>();
+    boolean          refreshPreKeys = false;
+
+    if (messageId == ALL_PENDING) {
+      for (long pendingId : database.getPendingIds(sender)) {
+        try {
+          refreshPreKeys |= handleMessage(masterSecret, cipher, database.get(pendingId), -1, threadIds);
+          database.delete(pendingId);
+        } catch (NoSuchMessageException e) {
+          Log.w(TAG, e);
+        }
+      }
+    } else {
+      refreshPreKeys = handleMessage(masterSecret, cipher, database.get(messageId), smsMessageId, threadIds);
+      database.delete(messageId);
+    }
 
-    handleMessage(masterSecret, envelope, smsMessageId);
-    database.delete(messageId);
+    if (refreshPreKeys) {
+      ApplicationContext.getInstance(context).getBackgroundJobManager().add(new RefreshPreKeysJob(context));
+    }
+
+    MessageNotifier.updateNotification(context, masterSecret, threadIds);
   }
 
   @Override
@@ -98,44 +134,47 @@ public class PushDecryptJob extends MasterSecretJob {
 
   }
 
-  private void handleMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  /**
+   * @return true if the message was a PreKeyWhisperMessage, and our pre-keys should be refreshed.
+   */
+  private boolean handleMessage(MasterSecret masterSecret, TextSecureCipher cipher,
+                                TextSecureEnvelope envelope, long smsMessageId, Set<Long> threadIds)
+  {
     try {
-      AxolotlStore     axolotlStore = new TextSecureAxolotlStore(context, masterSecret);
-      TextSecureCipher cipher       = new TextSecureCipher(axolotlStore);
-
       TextSecureMessage message = cipher.decrypt(envelope);
 
-      if      (message.isEndSession())               handleEndSessionMessage(masterSecret, envelope, message, smsMessageId);
+      if      (message.isEndSession())               handleEndSessionMessage(masterSecret, envelope, message, smsMessageId, threadIds);
       else if (message.isGroupUpdate())              handleGroupMessage(masterSecret, envelope, message, smsMessageId);
-      else if (message.getAttachments().isPresent()) handleMediaMessage(masterSecret, envelope, message, smsMessageId);
-      else                                           handleTextMessage(masterSecret, envelope, message, smsMessageId);
+      else if (message.getAttachments().isPresent()) handleMediaMessage(masterSecret, envelope, message, smsMessageId, threadIds);
+      else                                           handleTextMessage(masterSecret, envelope, message, smsMessageId, threadIds);
 
-      if (envelope.isPreKeyWhisperMessage()) {
-        ApplicationContext.getInstance(context).getJobManager().add(new RefreshPreKeysJob(context));
-      }
+      return envelope.isPreKeyWhisperMessage();
     } catch (InvalidVersionException e) {
       Log.w(TAG, e);
-      handleInvalidVersionMessage(masterSecret, envelope, smsMessageId);
+      handleInvalidVersionMessage(masterSecret, envelope, smsMessageId, threadIds);
     } catch (InvalidMessageException | InvalidKeyIdException | InvalidKeyException | MmsException e) {
       Log.w(TAG, e);
-      handleCorruptMessage(masterSecret, envelope, smsMessageId);
+      handleCorruptMessage(masterSecret, envelope, smsMessageId, threadIds);
     } catch (NoSessionException e) {
       Log.w(TAG, e);
-      handleNoSessionMessage(masterSecret, envelope, smsMessageId);
+      handleNoSessionMessage(masterSecret, envelope, smsMessageId, threadIds);
     } catch (LegacyMessageException e) {
       Log.w(TAG, e);
-      handleLegacyMessage(masterSecret, envelope, smsMessageId);
+      handleLegacyMessage(masterSecret, envelope, smsMessageId, threadIds);
     } catch (DuplicateMessageException e) {
       Log.w(TAG, e);
-      handleDuplicateMessage(masterSecret, envelope, smsMessageId);
+      handleDuplicateMessage(masterSecret, envelope, smsMessageId, threadIds);
     } catch (UntrustedIdentityException e) {
       Log.w(TAG, e);
-      handleUntrustedIdentityMessage(masterSecret, envelope, smsMessageId);
+      handleUntrustedIdentityMessage(masterSecret, envelope, smsMessageId, threadIds);
     }
+
+    return false;
   }
 
   private void handleEndSessionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
-                                       TextSecureMessage message, long smsMessageId)
+                                       TextSecureMessage message, long smsMessageId,
+                                       Set<Long> threadIds)
   {
     EncryptingSmsDatabase smsDatabase         = DatabaseFactory.getEncryptingSmsDatabase(context);
     IncomingTextMessage   incomingTextMessage = new IncomingTextMessage(envelope.getSource(),
@@ -154,11 +193,11 @@ public class PushDecryptJob extends MasterSecretJob {
       threadId = smsDatabase.getThreadIdForMessage(smsMessageId);
     }
 
-    SessionStore sessionStore = new TextSecureSessionStore(context, masterSecret);
+    SessionStore sessionStore = AxolotlStoreFactory.createSessionStore(context, masterSecret);
     sessionStore.deleteAllSessions(envelope.getSource());
 
     SecurityEvent.broadcastSecurityUpdateEvent(context, threadId);
-    MessageNotifier.updateNotification(context, masterSecret, threadId);
+    threadIds.add(threadId);
   }
 
   private void handleGroupMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, TextSecureMessage message, long smsMessageId) {
@@ -169,7 +208,8 @@ public class PushDecryptJob extends MasterSecretJob {
     }
   }
 
-  private void handleMediaMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, TextSecureMessage message, long smsMessageId)
+  private void handleMediaMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
+                                  TextSecureMessage message, long smsMessageId, Set<Long> threadIds)
       throws MmsException
   {
     String               localNumber  = TextSecurePreferences.getLocalNumber(context);
@@ -190,18 +230,18 @@ public class PushDecryptJob extends MasterSecretJob {
     }
 
     ApplicationContext.getInstance(context)
-                      .getJobManager()
+                      .getBackgroundJobManager()
                       .add(new AttachmentDownloadJob(context, messageAndThreadId.first));
 
     if (smsMessageId >= 0) {
       DatabaseFactory.getSmsDatabase(context).deleteMessage(smsMessageId);
     }
 
-    MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+    threadIds.add(messageAndThreadId.second);
   }
 
   private void handleTextMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
-                                 TextSecureMessage message, long smsMessageId)
+                                 TextSecureMessage message, long smsMessageId, Set<Long> threadIds)
   {
     EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
     String                body     = message.getBody().isPresent() ? message.getBody().get() : "";
@@ -219,59 +259,69 @@ public class PushDecryptJob extends MasterSecretJob {
       }
 
       Pair<Long, Long> messageAndThreadId = database.insertMessageInbox(masterSecret, textMessage);
-      MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+      threadIds.add(messageAndThreadId.second);
     }
   }
 
-  private void handleInvalidVersionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  private void handleInvalidVersionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
+                                           long smsMessageId, Set<Long> threadIds)
+  {
     EncryptingSmsDatabase smsDatabase = DatabaseFactory.getEncryptingSmsDatabase(context);
 
     if (smsMessageId <= 0) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(masterSecret, envelope);
       smsDatabase.markAsInvalidVersionKeyExchange(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+      threadIds.add(messageAndThreadId.second);
     } else {
       smsDatabase.markAsInvalidVersionKeyExchange(smsMessageId);
     }
   }
 
-  private void handleCorruptMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  private void handleCorruptMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
+                                    long smsMessageId, Set<Long> threadIds)
+  {
     EncryptingSmsDatabase smsDatabase = DatabaseFactory.getEncryptingSmsDatabase(context);
 
     if (smsMessageId <= 0) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(masterSecret, envelope);
       smsDatabase.markAsDecryptFailed(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+      threadIds.add(messageAndThreadId.second);
     } else {
       smsDatabase.markAsDecryptFailed(smsMessageId);
     }
   }
 
-  private void handleNoSessionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  private void handleNoSessionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
+                                      long smsMessageId, Set<Long> threadIds)
+  {
     EncryptingSmsDatabase smsDatabase = DatabaseFactory.getEncryptingSmsDatabase(context);
 
     if (smsMessageId <= 0) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(masterSecret, envelope);
       smsDatabase.markAsNoSession(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+      threadIds.add(messageAndThreadId.second);
     } else {
       smsDatabase.markAsNoSession(smsMessageId);
     }
   }
 
-  private void handleLegacyMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  private void handleLegacyMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
+                                   long smsMessageId, Set<Long> threadIds)
+  {
     EncryptingSmsDatabase smsDatabase = DatabaseFactory.getEncryptingSmsDatabase(context);
 
     if (smsMessageId <= 0) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(masterSecret, envelope);
       smsDatabase.markAsLegacyVersion(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+      threadIds.add(messageAndThreadId.second);
     } else {
       smsDatabase.markAsLegacyVersion(smsMessageId);
     }
   }
 
-  private void handleDuplicateMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  private void handleDuplicateMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
+                                      long smsMessageId, Set<Long> threadIds)
+  {
     // Let's start ignoring these now
 //    SmsDatabase smsDatabase = DatabaseFactory.getEncryptingSmsDatabase(context);
 //
@@ -284,7 +334,9 @@ public class PushDecryptJob extends MasterSecretJob {
 //    }
   }
 
-  private void handleUntrustedIdentityMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  private void handleUntrustedIdentityMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
+                                              long smsMessageId, Set<Long> threadIds)
+  {
     try {
       EncryptingSmsDatabase database       = DatabaseFactory.getEncryptingSmsDatabase(context);
       Recipients            recipients     = RecipientFactory.getRecipientsFromString(context, envelope.getSource(), false);
@@ -301,7 +353,7 @@ public class PushDecryptJob extends MasterSecretJob {
         Pair<Long, Long>            messageAndThreadId = database.insertMessageInbox(masterSecret, bundleMessage);
 
         database.addMismatchedIdentity(messageAndThreadId.first, recipientId, identityKey);
-        MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+        threadIds.add(messageAndThreadId.second);
       } else {
         database.updateMessageBody(masterSecret, smsMessageId, encoded);
         database.markAsPreKeyBundle(smsMessageId);
@@ -20,7 +20,6 @@ import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.GroupUtil;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
-import org.whispersystems.textsecure.api.TextSecureMessageSender;
 import org.whispersystems.textsecure.api.crypto.UntrustedIdentityException;
 import org.whispersystems.textsecure.api.messages.TextSecureAttachment;
 import org.whispersystems.textsecure.api.messages.TextSecureGroup;
@@ -32,8 +31,16 @@ import org.whispersystems.textsecure.api.util.InvalidNumberException;
 import org.whispersystems.textsecure.internal.push.PushMessageProtos;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 
@@ -48,6 +55,9 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
 
   @Inject transient TextSecureMessageSenderFactory messageSenderFactory;
 
+  private static final int             MAX_CONCURRENT_SENDS = 4;
+  private static final ExecutorService FAN_OUT_EXECUTOR     = Executors.newFixedThreadPool(MAX_CONCURRENT_SENDS);
+
   private final long messageId;
   private final long filterRecipientId;
 
@@ -74,42 +84,49 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
   public void onSend(MasterSecret masterSecret)
       throws MmsException, IOException, NoSuchMessageException
   {
-    MmsDatabase database = DatabaseFactory.getMmsDatabase(context);
-    SendReq     message  = database.getOutgoingMessage(masterSecret, messageId);
+    MmsDatabase          database = DatabaseFactory.getMmsDatabase(context);
+    SendReq              message  = database.getOutgoingMessage(masterSecret, messageId);
+    List<NetworkFailure> retrying = filterRecipientId >= 0 ? new LinkedList<NetworkFailure>()
+                                                           : database.getFailures(messageId);
 
     try {
-      deliver(masterSecret, message, filterRecipientId);
-
-      database.markAsPush(messageId);
-      database.markAsSecure(messageId);
-      database.markAsSent(messageId, "push".getBytes(), 0);
-    } catch (InvalidNumberException | RecipientFormattingException e) {
-      Log.w(TAG, e);
-      database.markAsSentFailed(messageId);
-      notifyMediaMessageDeliveryFailed(context, messageId);
-    } catch (EncapsulatedExceptions e) {
-      Log.w(TAG, e);
-      List<NetworkFailure> failures = new LinkedList<>();
+      SendResults results = deliver(masterSecret, message, filterRecipientId, retrying);
 
-      for (NetworkFailureException nfe : e.getNetworkExceptions()) {
-        Recipient recipient = RecipientFactory.getRecipientsFromString(context, nfe.getE164number(), false).getPrimaryRecipient();
-        failures.add(new NetworkFailure(recipient.getRecipientId()));
+      for (NetworkFailure failure : retrying) {
+        if (!results.networkFailures.contains(failure)) {
+          database.removeFailure(messageId, failure);
+        }
       }
 
-//      for (UnregisteredUserException uue : e.getUnregisteredUserExceptions()) {
-//        Recipient recipient = RecipientFactory.getRecipientsFromString(context, uue.getE164Number(), false).getPrimaryRecipient();
-//        failures.add(new NetworkFailure(recipient.getRecipientId(), NetworkFailure.UNREGISTERED_FAILURE));
-//      }
-
-      for (UntrustedIdentityException uie : e.getUntrustedIdentityExceptions()) {
+      for (UntrustedIdentityException uie : results.untrustedIdentities) {
         Recipient recipient = RecipientFactory.getRecipientsFromString(context, uie.getE164Number(), false).getPrimaryRecipient();
         database.addMismatchedIdentity(messageId, recipient.getRecipientId(), uie.getIdentityKey());
       }
 
-      database.addFailures(messageId, failures);
-      database.markAsSentFailed(messageId);
-      database.markAsPush(messageId);
+      if (!results.networkFailures.isEmpty()) {
+        List<NetworkFailure> newFailures = new LinkedList<>(results.networkFailures);
+        newFailures.removeAll(retrying);
+
+        database.addFailures(messageId, newFailures);
+        throw new IOException("Network failures for " + results.networkFailures.size() + " recipients");
+      }
+
+      // Mismatches recorded on an earlier attempt still count: a retry only goes to the
+      // recipients whose sends failed, not to the ones we didn't trust.
+      if (!results.untrustedIdentities.isEmpty() || !database.getMismatchedIdentities(messageId).isEmpty()) {
+        database.markAsSentFailed(messageId);
+        database.markAsPush(messageId);
 
+        notifyMediaMessageDeliveryFailed(context, messageId);
+        return;
+      }
+
+      database.markAsPush(messageId);
+      database.markAsSecure(messageId);
+      database.markAsSent(messageId, "push".getBytes(), 0);
+    } catch (InvalidNumberException | RecipientFormattingException e) {
+      Log.w(TAG, e);
+      database.markAsSentFailed(messageId);
       notifyMediaMessageDeliveryFailed(context, messageId);
     }
   }
@@ -122,44 +139,139 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
 
   @Override
   public void onCanceled() {
-    DatabaseFactory.getMmsDatabase(context).markAsSentFailed(messageId);
+    MmsDatabase database = DatabaseFactory.getMmsDatabase(context);
+
+    database.markAsSentFailed(messageId);
+
+    if (!database.getFailures(messageId).isEmpty()) {
+      database.markAsPush(messageId);
+      notifyMediaMessageDeliveryFailed(context, messageId);
+    }
   }
 
-  private void deliver(MasterSecret masterSecret, SendReq message, long filterRecipientId)
-      throws IOException, RecipientFormattingException, InvalidNumberException, EncapsulatedExceptions
+  /**
+   * Sends to every member of the group, or only to the filtered recipient, or only to the
+   * recipients which failed on an earlier attempt if there were any.
+   *
+   * A message without attachments to upload is sent to each recipient separately, a few at
+   * a time, so that one slow or failing recipient doesn't hold up the rest.  A message with
+   * attachments is sent in a single call, so that they're only uploaded once.  Either way
+   * the attachment streams are closed before returning, so a retry reopens them.
+   */
+  private SendResults deliver(MasterSecret masterSecret, SendReq message, long filterRecipientId,
+                              List<NetworkFailure> retrying)
+      throws IOException, RecipientFormattingException, InvalidNumberException
   {
-    TextSecureMessageSender    messageSender = messageSenderFactory.create(masterSecret);
-    byte[]                     groupId       = GroupUtil.getDecodedId(message.getTo()[0].getString());
-    Recipients                 recipients    = DatabaseFactory.getGroupDatabase(context).getGroupMembers(groupId, false);
-    List<TextSecureAttachment> attachments   = getAttachments(masterSecret, message);
-    List<TextSecureAddress>    addresses;
+    byte[]                     groupId     = GroupUtil.getDecodedId(message.getTo()[0].getString());
+    List<TextSecureAttachment> attachments = getAttachments(masterSecret, message);
 
-    if (filterRecipientId >= 0) addresses = getPushAddresses(filterRecipientId);
-    else                        addresses = getPushAddresses(recipients);
+    try {
+      List<TextSecureAddress> addresses;
+      TextSecureMessage       groupMessage;
+
+      if      (filterRecipientId >= 0) addresses = getPushAddresses(filterRecipientId);
+      else if (!retrying.isEmpty())    addresses = getPushAddresses(retrying);
+      else                             addresses = getPushAddresses(DatabaseFactory.getGroupDatabase(context).getGroupMembers(groupId, false));
 
-    if (MmsSmsColumns.Types.isGroupUpdate(message.getDatabaseMessageBox()) ||
-        MmsSmsColumns.Types.isGroupQuit(message.getDatabaseMessageBox()))
-    {
-      String content = PartParser.getMessageText(message.getBody());
+      if (MmsSmsColumns.Types.isGroupUpdate(message.getDatabaseMessageBox()) ||
+          MmsSmsColumns.Types.isGroupQuit(message.getDatabaseMessageBox()))
+      {
+        String content = PartParser.getMessageText(message.getBody());
+
+        if (content == null || content.trim().isEmpty()) {
+          return new SendResults();
+        }
 
-      if (content != null && !content.trim().isEmpty()) {
         PushMessageProtos.PushMessageContent.GroupContext groupContext = PushMessageProtos.PushMessageContent.GroupContext.parseFrom(Base64.decode(content));
         TextSecureAttachment avatar       = attachments.isEmpty() ? null : attachments.get(0);
         TextSecureGroup.Type type         = MmsSmsColumns.Types.isGroupQuit(message.getDatabaseMessageBox()) ? TextSecureGroup.Type.QUIT : TextSecureGroup.Type.UPDATE;
         TextSecureGroup      group        = new TextSecureGroup(type, groupId, groupContext.getName(), groupContext.getMembersList(), avatar);
-        TextSecureMessage groupMessage = new TextSecureMessage(message.getSentTimestamp(), group, null, null);
 
-        messageSender.sendMessage(addresses, groupMessage);
+        groupMessage = new TextSecureMessage(message.getSentTimestamp(), group, null, null);
+      } else {
+        String          body  = PartParser.getMessageText(message.getBody());
+        TextSecureGroup group = new TextSecureGroup(groupId);
+
+        groupMessage = new TextSecureMessage(message.getSentTimestamp(), group, attachments, body);
       }
-    } else {
-      String            body         = PartParser.getMessageText(message.getBody());
-      TextSecureGroup   group        = new TextSecureGroup(groupId);
-      TextSecureMessage groupMessage = new TextSecureMessage(message.getSentTimestamp(), group, attachments, body);
 
-      messageSender.sendMessage(addresses, groupMessage);
+      if (attachments.isEmpty()) return fanOut(masterSecret, addresses, groupMessage);
+      else                       return sendTogether(masterSecret, addresses, groupMessage);
+    } finally {
+      closeAttachments(attachments);
     }
   }
 
+  private SendResults sendTogether(MasterSecret masterSecret, List<TextSecureAddress> addresses,
+                                   TextSecureMessage groupMessage)
+      throws IOException
+  {
+    SendResults results = new SendResults();
+
+    try {
+      messageSenderFactory.create(masterSecret).sendMessage(addresses, groupMessage);
+    } catch (EncapsulatedExceptions e) {
+      Log.w(TAG, e);
+      results.add(e);
+    }
+
+    return results;
+  }
+
+  private SendResults fanOut(final MasterSecret masterSecret, List<TextSecureAddress> addresses,
+                             final TextSecureMessage groupMessage)
+      throws IOException
+  {
+    SendResults               results   = new SendResults();
+    List<Future<SendResults>> futures   = new LinkedList<>();
+    long                      startTime = System.currentTimeMillis();
+
+    for (final TextSecureAddress address : addresses) {
+      futures.add(FAN_OUT_EXECUTOR.submit(new Callable<SendResults>() {
+        @Override
+        public SendResults call() throws IOException {
+          SendResults recipientResults = new SendResults();
+
+          try {
+            messageSenderFactory.create(masterSecret).sendMessage(Collections.singletonList(address), groupMessage);
+          } catch (EncapsulatedExceptions e) {
+            Log.w(TAG, e);
+            recipientResults.add(e);
+          } catch (IOException e) {
+            Log.w(TAG, e);
+            recipientResults.addNetworkFailure(address.getNumber());
+          }
+
+          return recipientResults;
+        }
+      }));
+    }
+
+    try {
+      for (Future<SendResults> future : futures) {
+        results.addAll(future.get());
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted during group send");
+    } catch (ExecutionException e) {
+      Log.w(TAG, e);
+      throw new IOException("Group send failed: " + e.getCause());
+    }
+
+    Log.w(TAG, "Sent to " + addresses.size() + " recipients in " + (System.currentTimeMillis() - startTime) + "ms");
+    return results;
+  }
+
+  private List<TextSecureAddress> getPushAddresses(List<NetworkFailure> failures) throws InvalidNumberException {
+    List<TextSecureAddress> addresses = new LinkedList<>();
+
+    for (NetworkFailure failure : failures) {
+      addresses.add(getPushAddress(RecipientFactory.getRecipientForId(context, failure.getRecipientId(), false).getNumber()));
+    }
+
+    return addresses;
+  }
+
   private List<TextSecureAddress> getPushAddresses(Recipients recipients) throws InvalidNumberException {
     List<TextSecureAddress> addresses = new LinkedList<>();
 
@@ -176,4 +288,26 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
     return addresses;
   }
 
+  private class SendResults {
+    private final Set<NetworkFailure>              networkFailures     = new HashSet<>();
+    private final List<UntrustedIdentityException> untrustedIdentities = new LinkedList<>();
+
+    void add(EncapsulatedExceptions exceptions) {
+      for (NetworkFailureException nfe : exceptions.getNetworkExceptions()) {
+        addNetworkFailure(nfe.getE164number());
+      }
+
+      untrustedIdentities.addAll(exceptions.getUntrustedIdentityExceptions());
+    }
+
+    void addNetworkFailure(String e164number) {
+      Recipient recipient = RecipientFactory.getRecipientsFromString(context, e164number, false).getPrimaryRecipient();
+      networkFailures.add(new NetworkFailure(recipient.getRecipientId()));
+    }
+
+    void addAll(SendResults that) {
+      networkFailures.addAll(that.networkFailures);
+      untrustedIdentities.addAll(that.untrustedIdentities);
+    }
+  }
 }
@@ -71,7 +71,7 @@ public class PushMediaSendJob extends PushSendJob implements InjectableType {
       Log.w(TAG, ifae);
       database.markAsPendingInsecureSmsFallback(messageId);
       notifyMediaMessageDeliveryFailed(context, messageId);
-      ApplicationContext.getInstance(context).getJobManager().add(new DirectoryRefreshJob(context));
+      ApplicationContext.getInstance(context).getBackgroundJobManager().add(new DirectoryRefreshJob(context));
     } catch (UntrustedIdentityException uie) {
       Log.w(TAG, uie);
       Recipients recipients  = RecipientFactory.getRecipientsFromString(context, uie.getE164Number(), false);
@@ -100,20 +100,21 @@ public class PushMediaSendJob extends PushSendJob implements InjectableType {
       throws RetryLaterException, InsecureFallbackApprovalException, UntrustedIdentityException,
              UndeliverableMessageException
   {
-    TextSecureMessageSender messageSender = messageSenderFactory.create(masterSecret);
-    String                  destination   = message.getTo()[0].getString();
+    TextSecureMessageSender    messageSender = messageSenderFactory.create(masterSecret);
+    String                     destination   = message.getTo()[0].getString();
+    List<TextSecureAttachment> attachments   = null;
 
     try {
       message = getResolvedMessage(masterSecret, message, MediaConstraints.PUSH_CONSTRAINTS, false);
+      attachments = getAttachments(masterSecret, message);
 
-      TextSecureAddress          address      = getPushAddress(destination);
-      List<TextSecureAttachment> attachments  = getAttachments(masterSecret, message);
-      String                     body         = PartParser.getMessageText(message.getBody());
-      TextSecureMessage          mediaMessage = TextSecureMessage.newBuilder()
-                                                                 .withBody(body)
-                                                                 .withAttachments(attachments)
-                                                                 .withTimestamp(message.getSentTimestamp())
-                                                                 .build();
+      TextSecureAddress address      = getPushAddress(destination);
+      String            body         = PartParser.getMessageText(message.getBody());
+      TextSecureMessage mediaMessage = TextSecureMessage.newBuilder()
+                                                        .withBody(body)
+                                                        .withAttachments(attachments)
+                                                        .withTimestamp(message.getSentTimestamp())
+                                                        .build();
 
       messageSender.sendMessage(address, mediaMessage);
     } catch (InvalidNumberException | UnregisteredUserException e) {
@@ -122,6 +123,8 @@ public class PushMediaSendJob extends PushSendJob implements InjectableType {
     } catch (IOException e) {
       Log.w(TAG, e);
       throw new RetryLaterException(e);
+    } finally {
+      if (attachments != null) closeAttachments(attachments);
     }
   }
 }
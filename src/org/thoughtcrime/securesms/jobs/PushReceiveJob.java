@@ -62,6 +62,33 @@ public class PushReceiveJob extends ContextJob {
   }
 
   public void handle(TextSecureEnvelope envelope, boolean sendExplicitReceipt) {
+    long messageId = store(envelope, sendExplicitReceipt);
+
+    if (messageId != -1) {
+      ApplicationContext.getInstance(context)
+                        .getJobManager()
+                        .add(new PushDecryptJob(context, messageId, envelope.getSource()));
+    }
+  }
+
+  /**
+   * Handles a receipt, or stores a message without scheduling its decryption.  The caller
+   * is expected to follow up with a {@link PushDecryptJob} for the message's source.
+   *
+   * @return The id of the stored message, or -1 if there was nothing to decrypt.
+   */
+  public long store(TextSecureEnvelope envelope, boolean sendExplicitReceipt) {
+    updateDirectory(envelope);
+
+    if (envelope.isReceipt()) {
+      handleReceipt(envelope);
+      return -1;
+    } else {
+      return handleMessage(envelope, sendExplicitReceipt);
+    }
+  }
+
+  private void updateDirectory(TextSecureEnvelope envelope) {
     if (!isActiveNumber(context, envelope.getSource())) {
       TextSecureDirectory directory           = TextSecureDirectory.getInstance(context);
       ContactTokenDetails contactTokenDetails = new ContactTokenDetails();
@@ -69,12 +96,9 @@ public class PushReceiveJob extends ContextJob {
 
       directory.setNumber(contactTokenDetails, true);
     }
-
-    if (envelope.isReceipt()) handleReceipt(envelope);
-    else                      handleMessage(envelope, sendExplicitReceipt);
   }
 
-  private void handleMessage(TextSecureEnvelope envelope, boolean sendExplicitReceipt) {
+  private long handleMessage(TextSecureEnvelope envelope, boolean sendExplicitReceipt) {
     JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
     long       messageId  = DatabaseFactory.getPushDatabase(context).insert(envelope);
 
@@ -84,7 +108,7 @@ public class PushReceiveJob extends ContextJob {
                                             envelope.getRelay()));
     }
 
-    jobManager.add(new PushDecryptJob(context, messageId, envelope.getSource()));
+    return messageId;
   }
 
   private void handleReceipt(TextSecureEnvelope envelope) {
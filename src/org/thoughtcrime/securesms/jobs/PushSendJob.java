@@ -78,6 +78,18 @@ public abstract class PushSendJob extends SendJob {
     return attachments;
   }
 
+  protected void closeAttachments(List<TextSecureAttachment> attachments) {
+    for (TextSecureAttachment attachment : attachments) {
+      if (attachment.isStream()) {
+        try {
+          attachment.asStream().getInputStream().close();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+  }
+
   protected void notifyMediaMessageDeliveryFailed(Context context, long messageId) {
     long       threadId   = DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId);
     Recipients recipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
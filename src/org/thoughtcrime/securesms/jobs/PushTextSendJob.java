@@ -66,7 +66,7 @@ public class PushTextSendJob extends PushSendJob implements InjectableType {
       Log.w(TAG, e);
       database.markAsPendingInsecureSmsFallback(record.getId());
       MessageNotifier.notifyMessageDeliveryFailed(context, record.getRecipients(), record.getThreadId());
-      ApplicationContext.getInstance(context).getJobManager().add(new DirectoryRefreshJob(context));
+      ApplicationContext.getInstance(context).getBackgroundJobManager().add(new DirectoryRefreshJob(context));
     } catch (UntrustedIdentityException e) {
       Log.w(TAG, e);
       Recipients recipients  = RecipientFactory.getRecipientsFromString(context, e.getE164Number(), false);
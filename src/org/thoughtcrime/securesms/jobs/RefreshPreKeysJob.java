@@ -69,7 +69,7 @@ public class RefreshPreKeysJob extends MasterSecretJob implements InjectableType
     TextSecurePreferences.setSignedPreKeyRegistered(context, true);
 
     ApplicationContext.getInstance(context)
-                      .getJobManager()
+                      .getBackgroundJobManager()
                       .add(new CleanPreKeysJob(context));
   }
 
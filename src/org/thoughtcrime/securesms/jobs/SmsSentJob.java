@@ -8,7 +8,7 @@ import android.util.Log;
 import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.crypto.SecurityEvent;
-import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
+import org.thoughtcrime.securesms.crypto.storage.AxolotlStoreFactory;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.EncryptingSmsDatabase;
 import org.thoughtcrime.securesms.database.NoSuchMessageException;
@@ -82,7 +82,7 @@ public class SmsSentJob extends MasterSecretJob {
 
           if (record != null && record.isEndSession()) {
             Log.w(TAG, "Ending session...");
-            SessionStore sessionStore = new TextSecureSessionStore(context, masterSecret);
+            SessionStore sessionStore = AxolotlStoreFactory.createSessionStore(context, masterSecret);
             sessionStore.deleteAllSessions(record.getIndividualRecipient().getNumber());
             SecurityEvent.broadcastSecurityUpdateEvent(context, record.getThreadId());
           }
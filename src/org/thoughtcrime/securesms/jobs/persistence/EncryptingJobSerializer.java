@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.jobs.persistence;
 
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.ParcelUtil;
 import org.whispersystems.jobqueue.EncryptionKeys;
 import org.whispersystems.jobqueue.Job;
@@ -9,10 +10,29 @@ import org.whispersystems.jobqueue.persistence.JavaJobSerializer;
 import org.whispersystems.jobqueue.persistence.JobSerializer;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
 
+/**
+ * Serializes jobs with Java serialization, encrypting them with the master secret when
+ * the job has encryption keys.
+ *
+ * Jobs are written as a version prefix followed by the Base64 of the (encrypted)
+ * serialized bytes.  Jobs persisted before the prefix existed were Base64 encoded twice,
+ * once by {@link JavaJobSerializer} and again by {@link MasterCipher#encryptBody(String)},
+ * and are still read through the delegate.
+ */
 public class EncryptingJobSerializer implements JobSerializer {
 
+  private static final String VERSION_PREFIX = "2:";
+
+  private static byte[]       cachedKeys;
+  private static MasterCipher cachedCipher;
+
   private final JavaJobSerializer delegate;
 
   public EncryptingJobSerializer() {
@@ -21,35 +41,79 @@ public class EncryptingJobSerializer implements JobSerializer {
 
   @Override
   public String serialize(Job job) throws IOException {
-    String plaintext = delegate.serialize(job);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream    out  = new ObjectOutputStream(baos);
 
-    if (job.getEncryptionKeys() != null) {
-      MasterSecret masterSecret = ParcelUtil.deserialize(job.getEncryptionKeys().getEncoded(),
-                                                         MasterSecret.CREATOR);
-      MasterCipher masterCipher = new MasterCipher(masterSecret);
+    out.writeObject(job);
+    out.close();
 
-      return masterCipher.encryptBody(plaintext);
-    } else {
-      return plaintext;
+    byte[] serialized = baos.toByteArray();
+
+    if (job.getEncryptionKeys() != null) {
+      serialized = getMasterCipher(job.getEncryptionKeys()).encryptBytes(serialized);
     }
+
+    return VERSION_PREFIX + Base64.encodeBytes(serialized);
   }
 
   @Override
   public Job deserialize(EncryptionKeys keys, boolean encrypted, String serialized) throws IOException {
     try {
-      String plaintext;
+      if (!serialized.startsWith(VERSION_PREFIX)) {
+        return deserializeLegacy(keys, encrypted, serialized);
+      }
+
+      byte[] decoded = Base64.decode(serialized.substring(VERSION_PREFIX.length()), Base64.DONT_GUNZIP);
 
       if (encrypted) {
-        MasterSecret masterSecret = ParcelUtil.deserialize(keys.getEncoded(), MasterSecret.CREATOR);
-        MasterCipher masterCipher = new MasterCipher(masterSecret);
-        plaintext = masterCipher.decryptBody(serialized);
-      } else {
-        plaintext = serialized;
+        decoded = getMasterCipher(keys).decryptBytes(decoded);
       }
 
-      return delegate.deserialize(keys, encrypted, plaintext);
-    } catch (InvalidMessageException e) {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(decoded));
+
+      try {
+        return (Job)in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (InvalidMessageException | ClassNotFoundException | ClassCastException e) {
       throw new IOException(e);
     }
   }
+
+  private Job deserializeLegacy(EncryptionKeys keys, boolean encrypted, String serialized)
+      throws IOException, InvalidMessageException
+  {
+    String plaintext;
+
+    if (encrypted) plaintext = getMasterCipher(keys).decryptBody(serialized);
+    else           plaintext = serialized;
+
+    return delegate.deserialize(keys, encrypted, plaintext);
+  }
+
+  /**
+   * Drops the cached master secret.  Called when the master secret is cleared.
+   */
+  public static synchronized void clearCache() {
+    cachedKeys   = null;
+    cachedCipher = null;
+  }
+
+  /**
+   * Every job persisted while the app is unlocked carries the same keys, so the unparceled
+   * master secret is kept until they change or it's cleared.
+   */
+  private static synchronized MasterCipher getMasterCipher(EncryptionKeys keys) {
+    byte[] encoded = keys.getEncoded();
+
+    if (cachedCipher == null || !Arrays.equals(cachedKeys, encoded)) {
+      MasterSecret masterSecret = ParcelUtil.deserialize(encoded, MasterSecret.CREATOR);
+
+      cachedKeys   = encoded;
+      cachedCipher = new MasterCipher(masterSecret);
+    }
+
+    return cachedCipher;
+  }
 }
@@ -59,6 +59,7 @@ import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
 import java.io.IOException;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import me.leolin.shortcutbadger.ShortcutBadger;
@@ -128,6 +129,28 @@ public class MessageNotifier {
     }
   }
 
+  /**
+   * Updates the notification once for messages which arrived together in several threads.
+   */
+  public static void updateNotification(Context context, MasterSecret masterSecret, Set<Long> threadIds) {
+    if (!TextSecurePreferences.isNotificationsEnabled(context) || threadIds.isEmpty()) {
+      return;
+    }
+
+    long visible = visibleThread;
+
+    if (threadIds.contains(visible)) {
+      DatabaseFactory.getThreadDatabase(context).setRead(visible);
+
+      if (threadIds.size() == 1) {
+        sendInThreadNotification(context);
+        return;
+      }
+    }
+
+    updateNotification(context, masterSecret, true, 0);
+  }
+
   private static void updateNotification(Context context, MasterSecret masterSecret, boolean signal, int reminderCount) {
     Cursor telcoCursor = null;
     Cursor pushCursor  = null;
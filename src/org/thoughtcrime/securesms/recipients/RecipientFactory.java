@@ -24,6 +24,7 @@ import android.util.Log;
 import org.thoughtcrime.securesms.contacts.ContactPhotoFactory;
 import org.thoughtcrime.securesms.database.CanonicalAddressDatabase;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -116,11 +117,23 @@ public class RecipientFactory {
     return getRecipientForNumber(context, recipient, asynchronous);
   }
 
+  public static void prefetchRecipients(Context context, Collection<Long> recipientIds) {
+    provider.prefetch(context, recipientIds);
+  }
+
+  public static int invalidateChangedContacts(Context context) {
+    return provider.invalidateChangedContacts(context);
+  }
+
   public static void clearCache() {
     ContactPhotoFactory.clearCache();
     provider.clearCache();
   }
 
+  public static void clearCache(Context context, String number) {
+    provider.clearCache(CanonicalAddressDatabase.getInstance(context).getCanonicalAddressId(number));
+  }
+
   public static void clearCache(Recipient recipient) {
     ContactPhotoFactory.clearCache(recipient);
     provider.clearCache(recipient);
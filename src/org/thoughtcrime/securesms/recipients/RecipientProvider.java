@@ -21,8 +21,10 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.contacts.ContactPhotoFactory;
@@ -36,21 +38,36 @@ import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.ListenableFutureTask;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 
 public class RecipientProvider {
 
-  private static final Map<Long,Recipient> recipientCache         = Collections.synchronizedMap(new LRUCache<Long,Recipient>(1000));
-  private static final ExecutorService     asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final Map<Long,Recipient>      recipientCache         = Collections.synchronizedMap(new LRUCache<Long,Recipient>(1000));
+  private static final Map<Long,ContactVersion> contactVersions        = new ConcurrentHashMap<>();
+  private static final ExecutorService          asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
 
   private static final String[] CALLER_ID_PROJECTION = new String[] {
     PhoneLookup.DISPLAY_NAME,
     PhoneLookup.LOOKUP_KEY,
     PhoneLookup._ID,
-    PhoneLookup.NUMBER
+    PhoneLookup.NUMBER,
+    PhoneLookup.PHOTO_ID
+  };
+
+  private static final String[] PHONE_PROJECTION = new String[] {
+    Phone.DISPLAY_NAME,
+    Phone.LOOKUP_KEY,
+    Phone.CONTACT_ID,
+    Phone.NUMBER,
+    Phone.PHOTO_ID
   };
 
   public Recipient getRecipient(Context context, long recipientId, boolean asynchronous) {
@@ -70,7 +87,7 @@ public class RecipientProvider {
     final boolean isGroupRecipient = GroupUtil.isEncodedGroup(number);
 
     if (isGroupRecipient) details = getGroupRecipientDetails(context, number);
-    else                  details = getRecipientDetails(context, number);
+    else                  details = getRecipientDetails(context, recipientId, number);
 
     if (details != null) {
       recipient = new Recipient(details.name, details.number, recipientId, details.contactUri, details.avatar);
@@ -96,7 +113,7 @@ public class RecipientProvider {
       @Override
       public RecipientDetails call() throws Exception {
         if (isGroupRecipient) return getGroupRecipientDetails(context, number);
-        else                  return getRecipientDetails(context, number);
+        else                  return getRecipientDetails(context, recipientId, number);
       }
     };
 
@@ -118,35 +135,128 @@ public class RecipientProvider {
     return recipient;
   }
 
+  /**
+   * Resolves every uncached recipient in <code>recipientIds</code> with a single query
+   * against the contacts provider, rather than a lookup per recipient.
+   */
+  public void prefetch(Context context, Collection<Long> recipientIds) {
+    Map<Long, String> numbers = new HashMap<>();
+
+    for (long recipientId : recipientIds) {
+      if (recipientCache.containsKey(recipientId)) continue;
+
+      String number = CanonicalAddressDatabase.getInstance(context).getAddressFromId(recipientId);
+
+      if (GroupUtil.isEncodedGroup(number)) getSynchronousRecipient(context, recipientId);
+      else if (number != null)              numbers.put(recipientId, number);
+    }
+
+    if (numbers.isEmpty()) return;
+
+    Log.w("RecipientProvider", "Prefetching " + numbers.size() + " recipients");
+
+    ContactIndex index = ContactIndex.load(context);
+
+    for (Map.Entry<Long, String> entry : numbers.entrySet()) {
+      long             recipientId = entry.getKey();
+      ContactVersion   version     = index.find(entry.getValue());
+      RecipientDetails details     = version != null ? getRecipientDetails(context, recipientId, version) : null;
+      Recipient        recipient;
+
+      if (details != null) {
+        recipient = new Recipient(details.name, details.number, recipientId, details.contactUri, details.avatar);
+      } else {
+        recipient = new Recipient(null, entry.getValue(), recipientId, null, ContactPhotoFactory.getDefaultContactPhoto(context));
+      }
+
+      recipientCache.put(recipientId, recipient);
+    }
+  }
+
+  /**
+   * Compares every cached recipient against the contacts provider, and evicts only
+   * those whose contact has been added, removed, renamed, or given a new photo.
+   *
+   * @return the number of recipients evicted.
+   */
+  public int invalidateChangedContacts(Context context) {
+    Map<Long, String> numbers = new HashMap<>();
+
+    synchronized (recipientCache) {
+      for (Map.Entry<Long, Recipient> entry : recipientCache.entrySet()) {
+        if (!entry.getValue().isGroupRecipient()) {
+          numbers.put(entry.getKey(), CanonicalAddressDatabase.getInstance(context).getAddressFromId(entry.getKey()));
+        }
+      }
+    }
+
+    contactVersions.keySet().retainAll(numbers.keySet());
+
+    ContactIndex index       = ContactIndex.load(context);
+    int          invalidated = 0;
+
+    for (Map.Entry<Long, String> entry : numbers.entrySet()) {
+      ContactVersion previous = contactVersions.get(entry.getKey());
+      ContactVersion current  = entry.getValue() != null ? index.find(entry.getValue()) : null;
+
+      if (previous == null ? current != null : !previous.equals(current)) {
+        recipientCache.remove(entry.getKey());
+        contactVersions.remove(entry.getKey());
+
+        if (previous != null) ContactPhotoFactory.clearCache(previous.getPhotoUri());
+        invalidated++;
+      }
+    }
+
+    Log.w("RecipientProvider", "Invalidated " + invalidated + " of " + numbers.size() + " cached recipients");
+    return invalidated;
+  }
+
   public void clearCache() {
     recipientCache.clear();
+    contactVersions.clear();
   }
 
   public void clearCache(Recipient recipient) {
     if (recipientCache.containsKey(recipient.getRecipientId()))
       recipientCache.remove(recipient.getRecipientId());
+
+    contactVersions.remove(recipient.getRecipientId());
+  }
+
+  public void clearCache(long recipientId) {
+    recipientCache.remove(recipientId);
+    contactVersions.remove(recipientId);
   }
 
-  private RecipientDetails getRecipientDetails(Context context, String number) {
+  private RecipientDetails getRecipientDetails(Context context, long recipientId, String number) {
     Uri uri       = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
     Cursor cursor = context.getContentResolver().query(uri, CALLER_ID_PROJECTION,
                                                        null, null, null);
 
     try {
       if (cursor != null && cursor.moveToFirst()) {
-        Uri contactUri      = Contacts.getLookupUri(cursor.getLong(2), cursor.getString(1));
-        Bitmap contactPhoto = ContactPhotoFactory.getContactPhoto(context, Uri.withAppendedPath(Contacts.CONTENT_URI,
-                                                                                                cursor.getLong(2)+""));
-        return new RecipientDetails(cursor.getString(0), cursor.getString(3), contactUri, contactPhoto);
+        return getRecipientDetails(context, recipientId, new ContactVersion(cursor.getLong(2), cursor.getString(1),
+                                                                            cursor.getString(0), cursor.getString(3),
+                                                                            cursor.getLong(4)));
       }
     } finally {
       if (cursor != null)
         cursor.close();
     }
 
+    contactVersions.remove(recipientId);
     return null;
   }
 
+  private RecipientDetails getRecipientDetails(Context context, long recipientId, ContactVersion version) {
+    Uri    contactUri   = Contacts.getLookupUri(version.contactId, version.lookupKey);
+    Bitmap contactPhoto = ContactPhotoFactory.getContactPhoto(context, version.getPhotoUri());
+
+    contactVersions.put(recipientId, version);
+    return new RecipientDetails(version.name, version.number, contactUri, contactPhoto);
+  }
+
   private RecipientDetails getGroupRecipientDetails(Context context, String groupId) {
     try {
       GroupDatabase.GroupRecord record  = DatabaseFactory.getGroupDatabase(context)
@@ -169,6 +279,107 @@ public class RecipientProvider {
     }
   }
 
+  /**
+   * The parts of a contact which are reflected in a {@link Recipient}, so that a change
+   * to any of them can be detected without rebuilding the recipient.
+   */
+  private static class ContactVersion {
+    private final long   contactId;
+    private final String lookupKey;
+    private final String name;
+    private final String number;
+    private final long   photoId;
+
+    public ContactVersion(long contactId, String lookupKey, String name, String number, long photoId) {
+      this.contactId = contactId;
+      this.lookupKey = lookupKey;
+      this.name      = name;
+      this.number    = number;
+      this.photoId   = photoId;
+    }
+
+    public Uri getPhotoUri() {
+      return Uri.withAppendedPath(Contacts.CONTENT_URI, String.valueOf(contactId));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other == null || !(other instanceof ContactVersion)) return false;
+
+      ContactVersion that = (ContactVersion)other;
+
+      return this.contactId == that.contactId &&
+             this.photoId   == that.photoId   &&
+             equals(this.lookupKey, that.lookupKey) &&
+             equals(this.name, that.name)           &&
+             equals(this.number, that.number);
+    }
+
+    private static boolean equals(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public int hashCode() {
+      return (int)(contactId ^ (contactId >>> 32));
+    }
+  }
+
+  /**
+   * Every phone number in the contacts provider, read in one query and bucketed by
+   * caller ID minimum match so that numbers can be matched the way PhoneLookup does.
+   */
+  private static class ContactIndex {
+    private final Map<String, List<ContactVersion>> contacts = new HashMap<>();
+
+    public static ContactIndex load(Context context) {
+      ContactIndex index  = new ContactIndex();
+      Cursor       cursor = null;
+
+      try {
+        cursor = context.getContentResolver().query(Phone.CONTENT_URI, PHONE_PROJECTION, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          String number = cursor.getString(3);
+
+          if (number == null) continue;
+
+          index.add(PhoneNumberUtils.toCallerIDMinMatch(number),
+                    new ContactVersion(cursor.getLong(2), cursor.getString(1), cursor.getString(0),
+                                       number, cursor.getLong(4)));
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+
+      return index;
+    }
+
+    private void add(String key, ContactVersion version) {
+      List<ContactVersion> bucket = contacts.get(key);
+
+      if (bucket == null) {
+        bucket = new LinkedList<>();
+        contacts.put(key, bucket);
+      }
+
+      bucket.add(version);
+    }
+
+    public ContactVersion find(String number) {
+      List<ContactVersion> bucket = contacts.get(PhoneNumberUtils.toCallerIDMinMatch(number));
+
+      if (bucket != null) {
+        for (ContactVersion version : bucket) {
+          if (PhoneNumberUtils.compare(number, version.number)) return version;
+        }
+      }
+
+      return null;
+    }
+  }
+
   public static class RecipientDetails {
     public final String name;
     public final String number;
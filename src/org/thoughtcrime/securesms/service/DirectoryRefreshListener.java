@@ -44,7 +44,7 @@ public class DirectoryRefreshListener extends BroadcastReceiver {
     if (time <= System.currentTimeMillis()) {
       if (time != 0) {
         ApplicationContext.getInstance(context)
-                          .getJobManager()
+                          .getBackgroundJobManager()
                           .add(new DirectoryRefreshJob(context));
       }
 
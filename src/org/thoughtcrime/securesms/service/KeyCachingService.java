@@ -38,8 +38,12 @@ import org.thoughtcrime.securesms.DatabaseUpgradeActivity;
 import org.thoughtcrime.securesms.DummyActivity;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.crypto.InvalidPassphraseException;
+import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.crypto.MasterSecretUtil;
+import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
+import org.thoughtcrime.securesms.database.PlaintextCache;
+import org.thoughtcrime.securesms.jobs.persistence.EncryptingJobSerializer;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.util.DynamicLanguage;
 import org.thoughtcrime.securesms.util.ParcelUtil;
@@ -108,7 +112,6 @@ public class KeyCachingService extends Service {
         protected Void doInBackground(Void... params) {
           if (!DatabaseUpgradeActivity.isUpdate(KeyCachingService.this)) {
             ApplicationContext.getInstance(KeyCachingService.this)
-                              .getJobManager()
                               .setEncryptionKeys(new EncryptionKeys(ParcelUtil.serialize(masterSecret)));
             MessageNotifier.updateNotification(KeyCachingService.this, masterSecret);
           }
@@ -190,6 +193,10 @@ public class KeyCachingService extends Service {
   private void handleClearKey() {
     Log.w("KeyCachingService", "handleClearKey()");
     KeyCachingService.masterSecret = null;
+    TextSecureSessionStore.clearCache();
+    PlaintextCache.getInstance().clear();
+    EncryptingJobSerializer.clearCache();
+    MasterCipher.clearContexts();
     stopForeground(true);
 
     Intent intent = new Intent(CLEAR_KEY_EVENT);
@@ -7,10 +7,13 @@ import android.os.IBinder;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.gcm.GcmBroadcastReceiver;
+import org.thoughtcrime.securesms.jobs.PushDecryptJob;
 import org.thoughtcrime.securesms.jobs.PushReceiveJob;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
 import org.whispersystems.jobqueue.requirements.NetworkRequirementProvider;
 import org.whispersystems.jobqueue.requirements.RequirementListener;
@@ -19,8 +22,11 @@ import org.whispersystems.textsecure.api.TextSecureMessagePipe;
 import org.whispersystems.textsecure.api.TextSecureMessageReceiver;
 import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
 
+import java.io.IOException;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -34,6 +40,8 @@ public class MessageRetrievalService extends Service implements Runnable, Inject
   public static final  String ACTION_ACTIVITY_FINISHED = "ACTIVITY_FINISHED";
   public static final  String ACTION_PUSH_RECEIVED     = "PUSH_RECEIVED";
   private static final long   REQUEST_TIMEOUT_MINUTES  = 1;
+  private static final long   BATCH_WINDOW_MILLIS      = 250;
+  private static final int    MAX_BATCH_SIZE           = 100;
 
   private NetworkRequirement         networkRequirement;
   private NetworkRequirementProvider networkRequirementProvider;
@@ -44,6 +52,9 @@ public class MessageRetrievalService extends Service implements Runnable, Inject
   private int          activeActivities = 0;
   private List<Intent> pushPending      = new LinkedList<>();
 
+  private final Set<String> batchSenders = new HashSet<>();
+  private       int         batchCount   = 0;
+
   @Override
   public void onCreate() {
     super.onCreate();
@@ -53,6 +64,7 @@ public class MessageRetrievalService extends Service implements Runnable, Inject
     networkRequirementProvider = new NetworkRequirementProvider(this);
 
     networkRequirementProvider.setListener(this);
+    scheduleOrphanedDecrypts();
     new Thread(this, "MessageRetrievalService").start();
   }
 
@@ -79,25 +91,22 @@ public class MessageRetrievalService extends Service implements Runnable, Inject
         while (isConnectionNecessary()) {
           try {
             Log.w(TAG, "Reading message...");
-            pipe.read(REQUEST_TIMEOUT_MINUTES, TimeUnit.MINUTES,
-                      new TextSecureMessagePipe.MessagePipeCallback() {
-                        @Override
-                        public void onMessage(TextSecureEnvelope envelope) {
-                          Log.w(TAG, "Retrieved envelope! " + envelope.getSource());
-
-                          PushReceiveJob receiveJob = new PushReceiveJob(MessageRetrievalService.this);
-                          receiveJob.handle(envelope, false);
-
-                          decrementPushReceived();
-                        }
-                      });
-          } catch (TimeoutException | InvalidVersionException e) {
+
+            if (batchCount == 0) readMessage(pipe, TimeUnit.MINUTES.toMillis(REQUEST_TIMEOUT_MINUTES));
+            else                 readMessage(pipe, BATCH_WINDOW_MILLIS);
+
+            if (batchCount >= MAX_BATCH_SIZE) flushBatch();
+          } catch (TimeoutException e) {
+            if (batchCount > 0) flushBatch();
+            else                Log.w(TAG, e);
+          } catch (InvalidVersionException e) {
             Log.w(TAG, e);
           }
         }
       } catch (Throwable e) {
         Log.w(TAG, e);
       } finally {
+        flushBatch();
         Log.w(TAG, "Shutting down pipe...");
         shutdown(pipe);
       }
@@ -106,6 +115,64 @@ public class MessageRetrievalService extends Service implements Runnable, Inject
     }
   }
 
+  /**
+   * Envelopes are stored as they arrive, since the pipe acknowledges each one to the server
+   * as soon as this returns.  Decryption is scheduled once per sender when the batch is
+   * flushed, after no more envelopes have arrived for {@link #BATCH_WINDOW_MILLIS}.
+   * Receipts are applied as they arrive, for the same reason.
+   */
+  private void readMessage(TextSecureMessagePipe pipe, long timeoutMillis)
+      throws TimeoutException, IOException, InvalidVersionException
+  {
+    pipe.read(timeoutMillis, TimeUnit.MILLISECONDS,
+              new TextSecureMessagePipe.MessagePipeCallback() {
+                @Override
+                public void onMessage(TextSecureEnvelope envelope) {
+                  Log.w(TAG, "Retrieved envelope! " + envelope.getSource());
+
+                  PushReceiveJob receiveJob = new PushReceiveJob(MessageRetrievalService.this);
+
+                  if (receiveJob.store(envelope, false) != -1) {
+                    batchSenders.add(envelope.getSource());
+                  }
+
+                  batchCount++;
+                }
+              });
+  }
+
+  private void flushBatch() {
+    if (batchCount == 0) return;
+
+    Log.w(TAG, "Flushing batch of " + batchCount + " envelopes from " + batchSenders.size() + " senders");
+
+    JobManager jobManager = ApplicationContext.getInstance(this).getJobManager();
+
+    for (String sender : batchSenders) {
+      jobManager.add(new PushDecryptJob(this, sender));
+    }
+
+    for (int i=0;i<batchCount;i++) {
+      decrementPushReceived();
+    }
+
+    batchSenders.clear();
+    batchCount = 0;
+  }
+
+  /**
+   * Schedules decryption for messages stored but never decrypted, for instance because
+   * the process was killed before a batch was flushed.  The jobs wait for the master
+   * secret themselves, so this doesn't need it.
+   */
+  private void scheduleOrphanedDecrypts() {
+    JobManager jobManager = ApplicationContext.getInstance(this).getJobManager();
+
+    for (String sender : DatabaseFactory.getPushDatabase(this).getPendingSources()) {
+      jobManager.add(new PushDecryptJob(this, sender));
+    }
+  }
+
   @Override
   public void onRequirementStatusChanged() {
     synchronized (this) {
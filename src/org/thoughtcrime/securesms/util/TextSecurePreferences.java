@@ -68,6 +68,8 @@ public class TextSecurePreferences {
   private static final String WEBSOCKET_REGISTERED_PREF        = "pref_websocket_registered";
   private static final String RATING_LATER_PREF                = "pref_rating_later";
   private static final String RATING_ENABLED_PREF              = "pref_rating_enabled";
+  private static final String DATABASE_KEY_STORE_PREF          = "pref_database_key_store";
+  private static final String DATABASE_KEY_STORE_MIGRATED_PREF = "pref_database_key_store_migrated";
 
   public  static final String REPEAT_ALERTS_PREF               = "pref_repeat_alerts";
 
@@ -87,6 +89,22 @@ public class TextSecurePreferences {
     setBooleanPreference(context, RATING_ENABLED_PREF, enabled);
   }
 
+  public static boolean isDatabaseKeyStoreEnabled(Context context) {
+    return getBooleanPreference(context, DATABASE_KEY_STORE_PREF, false);
+  }
+
+  public static void setDatabaseKeyStoreEnabled(Context context, boolean enabled) {
+    setBooleanPreference(context, DATABASE_KEY_STORE_PREF, enabled);
+  }
+
+  public static boolean isDatabaseKeyStoreMigrated(Context context) {
+    return getBooleanPreference(context, DATABASE_KEY_STORE_MIGRATED_PREF, false);
+  }
+
+  public static void setDatabaseKeyStoreMigrated(Context context, boolean migrated) {
+    setBooleanPreference(context, DATABASE_KEY_STORE_MIGRATED_PREF, migrated);
+  }
+
   public static boolean isWebsocketRegistered(Context context) {
     return getBooleanPreference(context, WEBSOCKET_REGISTERED_PREF, false);
   }